@@ -0,0 +1,81 @@
+package akka.sample.persistence;
+
+import akka.persistence.journal.Tagged;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The allocations of the persist path of a command, the tag set, the event timestamp and the event, each as it was
+ * done before, with a new tag set and a {@link LocalDateTime} per event, and as it is done now.
+ * <p>
+ * <p>Run with the GC profiler, {@code java -jar benchmarks/target/benchmarks.jar Allocation -prof gc}, and compare
+ * the {@code gc.alloc.rate.norm} of the pairs, which is the bytes allocated per command.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+    private final AccountEventTags eventTags = AccountEventTags.create(ConfigFactory.load("benchmark"));
+    private final AccountIdentifier accountIdentifier = AccountIdentifier.create("benchmark");
+    private final CurrencyValue amount = CurrencyValue.create("99.95");
+    private final String tag = eventTags.tagFor(accountIdentifier);
+    private final AccountWriteSide.EventDeposit event = new AccountWriteSide.EventDeposit(accountIdentifier, amount);
+
+    @Benchmark
+    public Tagged tagSetBefore() {
+        return new Tagged(event, new HashSet<>(Arrays.asList(tag)));
+    }
+
+    @Benchmark
+    public Tagged tagSetAfter() {
+        return new Tagged(event, eventTags.tagSetFor(accountIdentifier));
+    }
+
+    @Benchmark
+    public LocalDateTime timestampBefore() {
+        return LocalDateTime.now();
+    }
+
+    @Benchmark
+    public long timestampAfter() {
+        return EpochMicros.now();
+    }
+
+    @Benchmark
+    public Tagged taggedEventBefore() {
+        LocalDateTime time = LocalDateTime.now();
+        return new Tagged(new AccountWriteSide.EventDeposit(accountIdentifier, amount, EpochMicros.of(time)),
+                new HashSet<>(Arrays.asList(tag)));
+    }
+
+    @Benchmark
+    public Tagged taggedEventAfter() {
+        return new Tagged(new AccountWriteSide.EventDeposit(accountIdentifier, amount), eventTags.tagSetFor(accountIdentifier));
+    }
+
+    @Benchmark
+    public String toStringBefore() {
+        return String.format("%s[%s, %s]", "CommandDeposit", accountIdentifier.toString(), amount.toString());
+    }
+
+    @Benchmark
+    public String toStringAfter() {
+        return new AccountWriteSide.CommandDeposit(accountIdentifier, amount).toString();
+    }
+}
@@ -0,0 +1,91 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.japi.pf.ReceiveBuilder;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * An actor system for a benchmark trial, with a journal and snapshot store of its own in a temporary directory.
+ */
+class BenchmarkActorSystem {
+    private final Path directory;
+    private final ActorSystem actorSystem;
+
+    BenchmarkActorSystem(String name, String overrides) {
+        try {
+            directory = Files.createTempDirectory("akka-java-persistence-benchmark");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        Config config = ConfigFactory.parseString(overrides)
+                .withFallback(ConfigFactory.parseString(String.format(
+                        "akka.persistence.journal.leveldb.dir = \"%s\"%nakka.persistence.snapshot-store.local.dir = \"%s\"",
+                        directory.resolve("journal"), directory.resolve("snapshots"))))
+                .withFallback(ConfigFactory.load("benchmark"));
+        actorSystem = ActorSystem.create(name, config);
+    }
+
+    ActorSystem actorSystem() {
+        return actorSystem;
+    }
+
+    WriteSideSettings writeSideSettings() {
+        return WriteSideSettings.create(actorSystem.settings().config());
+    }
+
+    void terminate() throws Exception {
+        Await.result(actorSystem.terminate(), Duration.create(30, TimeUnit.SECONDS));
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Completes a future when the expected number of replies has been received.
+     */
+    static class Replies extends AbstractActor {
+        private final CompletableFuture<Integer> done;
+        private final int expected;
+        private int received = 0;
+
+        public Replies(int expected, CompletableFuture<Integer> done) {
+            this.expected = expected;
+            this.done = done;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return ReceiveBuilder.create()
+                    .matchAny(this::reply)
+                    .build();
+        }
+
+        private void reply(Object reply) {
+            if (++received == expected) {
+                done.complete(received);
+                context().stop(self());
+            }
+        }
+
+        static Props props(int expected, CompletableFuture<Integer> done) {
+            return Props.create(Replies.class, expected, done);
+        }
+    }
+}
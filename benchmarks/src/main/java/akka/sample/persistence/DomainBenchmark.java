@@ -0,0 +1,99 @@
+package akka.sample.persistence;
+
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the account domain: currency arithmetic, account updates and account identifier hashing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DomainBenchmark {
+    private static final int IDENTIFIERS = 1024;
+
+    private final CurrencyValue amount = CurrencyValue.create("99.95");
+    private final AccountEventTags eventTags = AccountEventTags.create(ConfigFactory.load("benchmark"));
+    private final AccountIdentifier[] identifiers = new AccountIdentifier[IDENTIFIERS];
+    private final AccountIdentifier[] equalIdentifiers = new AccountIdentifier[IDENTIFIERS];
+    private Account account;
+    private int next = 0;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        account = new Account(AccountIdentifier.create("benchmark"), CurrencyValue.create(1_000_000));
+        for (int i = 0; i < IDENTIFIERS; i++) {
+            identifiers[i] = AccountIdentifier.create(String.format("account-%d", i));
+            equalIdentifiers[i] = AccountIdentifier.create(String.format("account-%d", i));
+        }
+    }
+
+    @Benchmark
+    public CurrencyValue currencyValueFromString() {
+        return CurrencyValue.create("1234.56");
+    }
+
+    @Benchmark
+    public CurrencyValue currencyValueFromDouble() {
+        return CurrencyValue.create(1234.56);
+    }
+
+    @Benchmark
+    public BigDecimal currencyValueAmount() {
+        return amount.amount();
+    }
+
+    @Benchmark
+    public long accountDepositAndWithdrawal() {
+        account.deposit(amount);
+        account.withdrawal(amount);
+        return account.balanceUnits();
+    }
+
+    @Benchmark
+    public CurrencyValue accountBalance() {
+        return account.balance();
+    }
+
+    @Benchmark
+    public Account accountCopy() {
+        return account.copy();
+    }
+
+    @Benchmark
+    public int accountIdentifierHashCode() {
+        return identifiers[next()].hashCode();
+    }
+
+    @Benchmark
+    public boolean accountIdentifierEquals() {
+        int i = next();
+        return identifiers[i].equals(equalIdentifiers[i]);
+    }
+
+    @Benchmark
+    public String accountEventTag() {
+        return eventTags.tagFor(identifiers[next()]);
+    }
+
+    private int next() {
+        next = (next + 1) & (IDENTIFIERS - 1);
+        return next;
+    }
+}
@@ -0,0 +1,111 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.japi.pf.ReceiveBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static akka.pattern.PatternsCS.ask;
+
+/**
+ * Command latency of an {@link AccountWriteSide} entity while the read side is overloaded.
+ * <p>
+ * <p>Actors that stand in for read side lanes that fall behind keep every thread of their dispatcher busy. With
+ * {@code shared} they run on the default dispatcher together with the entity, as all of the actors did before the
+ * dispatchers were split. With {@code bulkheaded} they run on the read side dispatcher and the entity on the write
+ * side dispatcher. Compare the p99 and p99.9 of the command latency.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class IsolationBenchmark {
+    private static final String DEFAULT_DISPATCHER = "akka.actor.default-dispatcher";
+    private static final int OVERLOAD_ACTORS_PER_CORE = 2;
+    private static final int OVERLOAD_MESSAGES = 10;
+    private static final long OVERLOAD_WORK_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    @Param({"shared", "bulkheaded"})
+    public String dispatchers;
+
+    private final AccountIdentifier accountIdentifier = AccountIdentifier.create("isolation");
+    private final CurrencyValue amount = CurrencyValue.create("1.00");
+    private BenchmarkActorSystem benchmarkActorSystem;
+    private ActorRef entity;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        benchmarkActorSystem = new BenchmarkActorSystem("isolation", "");
+        ActorSystem actorSystem = benchmarkActorSystem.actorSystem();
+        boolean shared = dispatchers.equals("shared");
+
+        Props entityProps = AccountWriteSide.props(accountIdentifier, benchmarkActorSystem.writeSideSettings());
+        entity = actorSystem.actorOf(shared ? entityProps.withDispatcher(DEFAULT_DISPATCHER) : entityProps);
+
+        Props overloadProps = Overload.props().withDispatcher(shared ? DEFAULT_DISPATCHER : AccountsReadSide.DISPATCHER);
+        for (int i = 0; i < OVERLOAD_ACTORS_PER_CORE * Runtime.getRuntime().availableProcessors(); i++) {
+            ActorRef overload = actorSystem.actorOf(overloadProps);
+            for (int message = 0; message < OVERLOAD_MESSAGES; message++) {
+                overload.tell(Overload.Work.INSTANCE, ActorRef.noSender());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        benchmarkActorSystem.terminate();
+    }
+
+    @Benchmark
+    public Object deposit() throws Exception {
+        return ask(entity, new AccountWriteSide.CommandDeposit(accountIdentifier, amount), 30_000)
+                .toCompletableFuture()
+                .get(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Busy for a while with each message and sends it to itself again, so it never runs out of work.
+     */
+    static class Overload extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return ReceiveBuilder.create()
+                    .match(Work.class, this::work)
+                    .build();
+        }
+
+        private void work(Work work) {
+            long until = System.nanoTime() + OVERLOAD_WORK_NANOS;
+            while (System.nanoTime() - until < 0) {
+                // busy, as a lane that applies events
+            }
+            self().tell(work, self());
+        }
+
+        static Props props() {
+            return Props.create(Overload.class);
+        }
+
+        private static class Work {
+            private static final Work INSTANCE = new Work();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package akka.sample.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static akka.pattern.PatternsCS.ask;
+import static akka.pattern.PatternsCS.gracefulStop;
+import static akka.sample.persistence.AccountWriteSide.*;
+
+/**
+ * Recovery time of an {@link AccountWriteSide} entity from a local LevelDB journal.
+ * <p>
+ * <p>The trial setup writes the events of one account with group commit, then stops the entity. Snapshots are
+ * disabled, so every recovery replays all of the events. Each invocation starts the entity again, waits until it has replayed the events and answered a
+ * get account command, and stops it.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class RecoveryBenchmark {
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    @Param({"100", "1000", "10000"})
+    public int events;
+
+    private final AccountIdentifier accountIdentifier = AccountIdentifier.create("recovery");
+    private BenchmarkActorSystem benchmarkActorSystem;
+    private WriteSideSettings settings;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        benchmarkActorSystem = new BenchmarkActorSystem("recovery", String.format("%s%n%s%n%s",
+                "account.write-side.group-commit.enabled = on",
+                "account.write-side.snapshot.every-n-events = 0",
+                "account.write-side.snapshot.on-passivation = off"));
+        ActorSystem actorSystem = benchmarkActorSystem.actorSystem();
+        settings = benchmarkActorSystem.writeSideSettings();
+
+        CurrencyValue amount = CurrencyValue.create("1.00");
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        ActorRef replies = actorSystem.actorOf(BenchmarkActorSystem.Replies.props(events, done));
+        ActorRef entity = actorSystem.actorOf(AccountWriteSide.props(accountIdentifier, settings));
+
+        for (int i = 0; i < events; i++) {
+            entity.tell(new CommandDeposit(accountIdentifier, amount), replies);
+        }
+        done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        stop(entity);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        benchmarkActorSystem.terminate();
+    }
+
+    @Benchmark
+    public Object recover() throws Exception {
+        ActorRef entity = benchmarkActorSystem.actorSystem().actorOf(AccountWriteSide.props(accountIdentifier, settings));
+        Object reply = ask(entity, new CommandGetAccount(accountIdentifier), TIMEOUT_MILLIS)
+                .toCompletableFuture()
+                .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        stop(entity);
+        return reply;
+    }
+
+    private static void stop(ActorRef entity) throws Exception {
+        gracefulStop(entity, Duration.create(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), new Stop())
+                .toCompletableFuture()
+                .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
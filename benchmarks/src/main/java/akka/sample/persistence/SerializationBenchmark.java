@@ -0,0 +1,99 @@
+package akka.sample.persistence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static akka.sample.persistence.AccountWriteSide.*;
+
+/**
+ * Microbenchmarks of the {@link AccountSerializer} compared with Java serialization, for the events that are
+ * written to the journal on every command and the account snapshots.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"event-deposit", "event-withdrawal", "account", "command-deposit"})
+    public String message;
+
+    private final AccountSerializer serializer = new AccountSerializer();
+    private Object value;
+    private String manifest;
+    private byte[] binary;
+    private byte[] java;
+
+    @Setup
+    public void setup() throws IOException {
+        value = message(message);
+        manifest = serializer.manifest(value);
+        binary = serializer.toBinary(value);
+        java = javaSerialize(value);
+    }
+
+    @Benchmark
+    public byte[] accountSerializerToBinary() {
+        return serializer.toBinary(value);
+    }
+
+    @Benchmark
+    public Object accountSerializerFromBinary() {
+        return serializer.fromBinary(binary, manifest);
+    }
+
+    @Benchmark
+    public byte[] javaSerializerToBinary() throws IOException {
+        return javaSerialize(value);
+    }
+
+    @Benchmark
+    public Object javaSerializerFromBinary() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(java))) {
+            return in.readObject();
+        }
+    }
+
+    private static byte[] javaSerialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object message(String message) {
+        AccountIdentifier accountIdentifier = AccountIdentifier.create("account-12345");
+        CurrencyValue amount = CurrencyValue.create("99.95");
+
+        switch (message) {
+            case "event-deposit":
+                return new EventDeposit(accountIdentifier, amount);
+            case "event-withdrawal":
+                return new EventWithdrawal(accountIdentifier, amount);
+            case "account":
+                return new Account(accountIdentifier, CurrencyValue.create("1234.56"));
+            case "command-deposit":
+                return new CommandDeposit(accountIdentifier, amount);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown message %s", message));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package akka.sample.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static akka.sample.persistence.AccountWriteSide.*;
+
+/**
+ * Command throughput of {@link AccountWriteSide} entities against a local LevelDB journal.
+ * <p>
+ * <p>Each invocation sends a burst of deposits spread over the accounts and waits for all of the replies, so the
+ * score is the number of persisted and replied commands per second.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class WriteSideBenchmark {
+    private static final int COMMANDS = 1_000;
+
+    @Param({"1", "100"})
+    public int accounts;
+
+    @Param({"off", "on"})
+    public String groupCommit;
+
+    private final CurrencyValue amount = CurrencyValue.create("1.00");
+    private BenchmarkActorSystem benchmarkActorSystem;
+    private ActorRef[] entities;
+    private AccountIdentifier[] accountIdentifiers;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        benchmarkActorSystem = new BenchmarkActorSystem("write-side",
+                String.format("account.write-side.group-commit.enabled = %s", groupCommit));
+        ActorSystem actorSystem = benchmarkActorSystem.actorSystem();
+        WriteSideSettings settings = benchmarkActorSystem.writeSideSettings();
+
+        entities = new ActorRef[accounts];
+        accountIdentifiers = new AccountIdentifier[accounts];
+        for (int i = 0; i < accounts; i++) {
+            accountIdentifiers[i] = AccountIdentifier.create(String.format("account-%d", i));
+            entities[i] = actorSystem.actorOf(AccountWriteSide.props(accountIdentifiers[i], settings));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        benchmarkActorSystem.terminate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public int deposits() throws Exception {
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        ActorRef replies = benchmarkActorSystem.actorSystem().actorOf(BenchmarkActorSystem.Replies.props(COMMANDS, done));
+
+        for (int i = 0; i < COMMANDS; i++) {
+            int account = i % accounts;
+            entities[account].tell(new CommandDeposit(accountIdentifiers[account], amount), replies);
+        }
+        return done.get(30, TimeUnit.SECONDS);
+    }
+}
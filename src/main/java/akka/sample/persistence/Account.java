@@ -1,17 +1,39 @@
 package akka.sample.persistence;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Currency;
 
 /**
  * A account with an identifier and a balance.
+ * <p>
+ * <p>The balance is kept as a count of minor units that is updated in place, so applying a deposit or a withdrawal
+ * does not allocate. Deposits and withdrawals must be in the currency of the account, and must not overflow the
+ * balance. They are checked with {@link #rejectDeposit} and {@link #rejectWithdrawal} before their events are
+ * written, and an event that cannot be applied is not applied, so an event in the journal never fails the
+ * recovery of the account.</p>
  */
 class Account implements Serializable {
+    private static final long serialVersionUID = -2805003915767523577L;
+    // Java serialization keeps the fields of the original class, so that snapshots that were written with Java
+    // serialization can still be read.
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("accountIdentifier", AccountIdentifier.class),
+            new ObjectStreamField("balance", CurrencyValue.class)};
+
     private final AccountIdentifier accountIdentifier;
-    private CurrencyValue balance;
+    private final Currency currency;
+    private long balance;
+    private transient AccountIdentifier serializedAccountIdentifier;
+    private transient CurrencyValue serializedBalance;
 
     Account(AccountIdentifier accountIdentifier, CurrencyValue balance) {
         this.accountIdentifier = accountIdentifier;
-        this.balance = balance;
+        this.currency = balance.currency();
+        this.balance = balance.units();
     }
 
     AccountIdentifier accountIdentifier() {
@@ -19,17 +41,90 @@ class Account implements Serializable {
     }
 
     CurrencyValue balance() {
-        return balance;
+        return CurrencyValue.ofUnits(balance, currency);
     }
 
-    CurrencyValue deposit(CurrencyValue deposit) {
-        balance = CurrencyValue.create(balance.amount().add(deposit.amount()));
+    long balanceUnits() {
         return balance;
     }
 
-    CurrencyValue withdrawal(CurrencyValue withdrawal) {
-        balance = CurrencyValue.create(balance.amount().subtract(withdrawal.amount()));
-        return balance;
+    /**
+     * @return true when the deposit was applied, false when it is not in the currency of the account or would
+     * overflow the balance.
+     */
+    boolean deposit(CurrencyValue deposit) {
+        if (rejectDeposit(deposit, balance) != null) {
+            return false;
+        }
+        balance += deposit.units();
+        return true;
+    }
+
+    /**
+     * @return true when the withdrawal was applied, false when it is not in the currency of the account or would
+     * overflow the balance.
+     */
+    boolean withdrawal(CurrencyValue withdrawal) {
+        if (rejectWithdrawal(withdrawal, balance) != null) {
+            return false;
+        }
+        balance -= withdrawal.units();
+        return true;
+    }
+
+    /**
+     * Checks a deposit against a balance of this account, which includes the changes that were accepted and not yet
+     * applied.
+     *
+     * @return why the deposit cannot be applied, or null when it can.
+     */
+    String rejectDeposit(CurrencyValue deposit, long balance) {
+        if (!deposit.currency().equals(currency)) {
+            return String.format("%s is not in the currency of %s", deposit, accountIdentifier);
+        }
+        long result = balance + deposit.units();
+        if (((balance ^ result) & (deposit.units() ^ result)) < 0) {
+            return String.format("%s overflows the balance of %s", deposit, accountIdentifier);
+        }
+        return null;
+    }
+
+    /**
+     * @return why the withdrawal cannot be applied to the balance, or null when it can, see {@link #rejectDeposit}.
+     */
+    String rejectWithdrawal(CurrencyValue withdrawal, long balance) {
+        if (!withdrawal.currency().equals(currency)) {
+            return String.format("%s is not in the currency of %s", withdrawal, accountIdentifier);
+        }
+        long result = balance - withdrawal.units();
+        if (((balance ^ withdrawal.units()) & (balance ^ result)) < 0) {
+            return String.format("%s overflows the balance of %s", withdrawal, accountIdentifier);
+        }
+        return null;
+    }
+
+    /**
+     * A copy of this account, for sending the state to other actors or to the snapshot store.
+     */
+    Account copy() {
+        return new Account(accountIdentifier, balance());
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("accountIdentifier", accountIdentifier);
+        fields.put("balance", balance());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        serializedAccountIdentifier = (AccountIdentifier) fields.get("accountIdentifier", null);
+        serializedBalance = (CurrencyValue) fields.get("balance", null);
+    }
+
+    private Object readResolve() {
+        return new Account(serializedAccountIdentifier, serializedBalance);
     }
 
     @Override
@@ -39,18 +134,19 @@ class Account implements Serializable {
 
         Account account = (Account) o;
 
-        return accountIdentifier.equals(account.accountIdentifier) && balance.equals(account.balance);
+        return accountIdentifier.equals(account.accountIdentifier) && currency.equals(account.currency) && balance == account.balance;
     }
 
     @Override
     public int hashCode() {
         int result = accountIdentifier.hashCode();
-        result = 31 * result + balance.hashCode();
+        result = 31 * result + currency.hashCode();
+        result = 31 * result + Long.hashCode(balance);
         return result;
     }
 
     @Override
     public String toString() {
-        return String.format("%s[%s, %s]", getClass().getSimpleName(), accountIdentifier, balance);
+        return getClass().getSimpleName() + "[" + accountIdentifier + ", " + balance() + "]";
     }
 }
@@ -0,0 +1,176 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.sample.persistence.AccountWriteSide.CommandRejected;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control of the account commands of this node, one instance per actor system.
+ * <p>
+ * <p>A command may carry a deadline, in microseconds since the epoch, see {@link EpochMicros}. A command is shed,
+ * rejected with a {@link CommandRejected} reply, when its deadline has passed or when the journal writes that it
+ * would wait for are expected to take longer than the time that is left. {@link AccountsWriteSide} checks the
+ * deadline before it routes a command, and the {@link AccountWriteSide} entity checks it again, with the writes that
+ * are queued in the account, before it accepts the command.</p>
+ * <p>
+ * <p>The expected time of a journal write is a moving average of the recent writes of the accounts of this node.
+ * An average that has not been updated for the configured expiry is not used, so after a stall the commands are
+ * admitted again and show how fast the journal is now.</p>
+ * <p>
+ * <p>The commands that the accounts of this node have accepted and not yet replied to are bounded, an account
+ * rejects a command when the node is full. The deadlines are wall clock times, so the clocks of the nodes must agree
+ * to well within the deadlines.</p>
+ */
+class AccountAdmission implements Extension {
+    static final long NO_DEADLINE = 0;
+    static final CommandRejected DEADLINE_EXPIRED = new CommandRejected("Deadline expired");
+    static final CommandRejected DEADLINE_UNREACHABLE = new CommandRejected("Expected wait exceeds the deadline");
+    static final CommandRejected ACCOUNT_QUEUE_FULL = new CommandRejected("Account queue full");
+    static final CommandRejected NODE_QUEUE_FULL = new CommandRejected("Node queue full");
+    // The weight of a new write in the moving average is 1 / 2^WEIGHT_SHIFT.
+    private static final int WEIGHT_SHIFT = 3;
+
+    private final AccountMetrics metrics;
+    private final boolean enabled;
+    private final int maxQueuedPerNode;
+    private final long estimateExpiryNanos;
+    private final AtomicInteger queued = new AtomicInteger();
+    // Written by the accounts without synchronization, an update that is lost to a concurrent one does not matter
+    // for an estimate.
+    private volatile long writeNanos;
+    private volatile long writtenAt;
+
+    private AccountAdmission(ActorSystem actorSystem) {
+        WriteSideSettings settings = WriteSideSettings.create(actorSystem.settings().config());
+        metrics = AccountMetrics.get(actorSystem);
+        enabled = settings.admissionEnabled();
+        maxQueuedPerNode = settings.admissionMaxQueuedPerNode();
+        estimateExpiryNanos = settings.admissionEstimateExpiry().toNanos();
+        writtenAt = System.nanoTime() - estimateExpiryNanos;
+    }
+
+    static AccountAdmission get(ActorSystem actorSystem) {
+        return Id.ID.get(actorSystem);
+    }
+
+    /**
+     * @return the deadline that is the given time from now, in microseconds since the epoch.
+     */
+    static long deadlineIn(long duration, TimeUnit unit) {
+        return duration <= 0 ? NO_DEADLINE : EpochMicros.now() + unit.toMicros(duration);
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Checks the deadline of a command that waits for the given number of journal writes.
+     *
+     * @return the rejection when the command is shed, or null when it may be processed.
+     */
+    CommandRejected shed(long deadline, long writes) {
+        if (!enabled || deadline == NO_DEADLINE) {
+            return null;
+        }
+        long now = EpochMicros.now();
+        if (now >= deadline) {
+            metrics.shedExpired();
+            return DEADLINE_EXPIRED;
+        }
+        if (writes > 0 && now + TimeUnit.NANOSECONDS.toMicros(writes * expectedWriteNanos()) > deadline) {
+            metrics.shedDeadline();
+            return DEADLINE_UNREACHABLE;
+        }
+        return null;
+    }
+
+    /**
+     * Checks the deadline of a {@link AccountWriteSide.CommandBatch}. The batch is split by account, each account
+     * writes its commands of the batch with a single journal write and the accounts write in parallel, so the batch
+     * waits for one write whatever its size, as each account charges it.
+     *
+     * @return the rejection when the batch is shed, or null when it may be processed.
+     */
+    CommandRejected shedBatch(long deadline) {
+        return shed(deadline, 1);
+    }
+
+    /**
+     * Takes a place in the queue of the node for a command that an account accepts, which is given back with
+     * {@link #release(int)} when the command is replied to.
+     *
+     * @return the rejection when the node is full, or null when the command has a place.
+     */
+    CommandRejected acquire() {
+        if (!enabled) {
+            return null;
+        }
+        int current;
+        do {
+            current = queued.get();
+            if (current >= maxQueuedPerNode) {
+                metrics.shedNodeQueue();
+                return NODE_QUEUE_FULL;
+            }
+        } while (!queued.compareAndSet(current, current + 1));
+        return null;
+    }
+
+    void release(int commands) {
+        if (enabled && commands > 0) {
+            queued.addAndGet(-commands);
+        }
+    }
+
+    /**
+     * A journal write of an account of this node completed after the given time. The first write after the average
+     * expired starts a new average.
+     */
+    void written(long nanos) {
+        long now = System.nanoTime();
+        long average = now - writtenAt < estimateExpiryNanos ? writeNanos : nanos;
+        writeNanos = average + ((nanos - average) >> WEIGHT_SHIFT);
+        writtenAt = now;
+    }
+
+    /**
+     * @return the expected time of a journal write, or 0 when no write completed recently.
+     */
+    long expectedWriteNanos() {
+        return System.nanoTime() - writtenAt < estimateExpiryNanos ? writeNanos : 0;
+    }
+
+    int queued() {
+        return queued.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[queued %d, expected write %dus]", getClass().getSimpleName(), queued(),
+                TimeUnit.NANOSECONDS.toMicros(expectedWriteNanos()));
+    }
+
+    static class Id extends AbstractExtensionId<AccountAdmission> implements ExtensionIdProvider {
+        static final Id ID = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return ID;
+        }
+
+        @Override
+        public AccountAdmission createExtension(ExtendedActorSystem actorSystem) {
+            return new AccountAdmission(actorSystem);
+        }
+    }
+}
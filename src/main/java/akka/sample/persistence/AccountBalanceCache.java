@@ -0,0 +1,148 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.Currency;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The recently known balances of the accounts of this node, one instance per actor system.
+ * <p>
+ * <p>Each account entity on this node registers an {@link Entry} once it has events, and writes its balance to the
+ * entry after every event, which is a single volatile write. {@link AccountsWriteSide} answers
+ * {@link AccountWriteSide.CommandGetAccount} from the entry, so reading a balance neither starts nor recovers the
+ * account and does not wait behind the commands in its mailbox.</p>
+ * <p>
+ * <p>While its account runs on this node all of the writes of the account go through it, so the entry is current
+ * except for writes that are in flight. A passivated account may start on another node when its shard is
+ * rebalanced, so the entry of a passivated account is only used for the configured staleness. An account that stops
+ * for any other reason, for example because its shard is handed off, removes its entry.</p>
+ */
+class AccountBalanceCache implements Extension {
+    private final ConcurrentHashMap<AccountIdentifier, Entry> entries = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final long maxStalenessNanos;
+    private final int maxEntries;
+
+    private AccountBalanceCache(ActorSystem actorSystem) {
+        WriteSideSettings settings = WriteSideSettings.create(actorSystem.settings().config());
+        enabled = settings.balanceCacheEnabled();
+        maxStalenessNanos = settings.balanceCacheMaxStaleness().toNanos();
+        maxEntries = settings.balanceCacheMaxEntries();
+
+        if (enabled) {
+            Cancellable expiry = actorSystem.scheduler().schedule(
+                    settings.balanceCacheMaxStaleness(),
+                    settings.balanceCacheMaxStaleness(),
+                    this::removeExpired,
+                    actorSystem.dispatcher());
+            actorSystem.registerOnTermination(expiry::cancel);
+        }
+    }
+
+    static AccountBalanceCache get(ActorSystem actorSystem) {
+        return Id.ID.get(actorSystem);
+    }
+
+    /**
+     * Registers the entry of a running account, unless the cache is disabled or full.
+     *
+     * @return the entry, or null when it is not registered.
+     */
+    Entry register(Account account) {
+        if (!enabled || entries.size() >= maxEntries && !entries.containsKey(account.accountIdentifier())) {
+            return null;
+        }
+        Entry entry = new Entry(account);
+        entries.put(account.accountIdentifier(), entry);
+        return entry;
+    }
+
+    /**
+     * @return the cached state of the account, or null when it is not known or too stale.
+     */
+    Account account(AccountIdentifier accountIdentifier) {
+        Entry entry = enabled ? entries.get(accountIdentifier) : null;
+        if (entry == null || !entry.fresh(System.nanoTime())) {
+            return null;
+        }
+        return new Account(accountIdentifier, CurrencyValue.ofUnits(entry.balance, entry.currency));
+    }
+
+    /**
+     * The account of the entry was passivated, its balance is kept for the configured staleness.
+     */
+    void passivated(Entry entry) {
+        entry.stoppedAt = System.nanoTime();
+        entry.running = false;
+    }
+
+    /**
+     * The account of the entry stopped and may start on another node.
+     */
+    void removed(Entry entry) {
+        entry.running = false;
+        entries.remove(entry.accountIdentifier, entry);
+    }
+
+    private void removeExpired() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> !entry.fresh(now));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * The balance of an account, written by its entity and read by any thread on the same node.
+     */
+    class Entry {
+        private final AccountIdentifier accountIdentifier;
+        private final Currency currency;
+        private volatile long balance;
+        private volatile boolean running = true;
+        private volatile long stoppedAt;
+
+        private Entry(Account account) {
+            accountIdentifier = account.accountIdentifier();
+            currency = account.balance().currency();
+            balance = account.balanceUnits();
+        }
+
+        void update(Account account) {
+            balance = account.balanceUnits();
+        }
+
+        private boolean fresh(long now) {
+            return running || now - stoppedAt < maxStalenessNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, running %b]", getClass().getSimpleName(), accountIdentifier, running);
+        }
+    }
+
+    static class Id extends AbstractExtensionId<AccountBalanceCache> implements ExtensionIdProvider {
+        static final Id ID = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return ID;
+        }
+
+        @Override
+        public AccountBalanceCache createExtension(ExtendedActorSystem actorSystem) {
+            return new AccountBalanceCache(actorSystem);
+        }
+    }
+}
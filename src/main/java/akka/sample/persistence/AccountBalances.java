@@ -0,0 +1,332 @@
+package akka.sample.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * The balances of the accounts of one read side, kept in memory.
+ * <p>
+ * <p>This is an open addressing hash table with linear probing. The account identifiers, balances, event sequence
+ * numbers and currencies are held in parallel arrays, so an account costs one slot in each array and no objects of
+ * its own besides its identifier. The balances are held in the minor units of the account currency, see
+ * {@link CurrencyValue#units()}, and the currencies as an index into a small table of the currencies seen so far.</p>
+ * <p>
+ * <p>The sequence number of the last event that was applied to an account makes the updates idempotent, an event
+ * that is delivered again after a restart is recognised and skipped.</p>
+ * <p>
+ * <p>An event that is not in the currency of its account, or that would overflow the balance, is skipped, as the
+ * write side skips it, and counted. Its sequence number is still applied, so it is not delivered again.</p>
+ * <p>
+ * <p>The accounts that were changed by events since the last {@link #changesToBytes()} are marked, so an incremental
+ * checkpoint only writes the changed accounts.</p>
+ * <p>
+ * <p>This class is not thread safe, it is owned by a single actor.</p>
+ */
+class AccountBalances {
+    private static final int FORMAT_VERSION = 1;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CURRENCIES = Short.MAX_VALUE;
+
+    private String[] identifiers;
+    private long[] balances;
+    private long[] sequenceNrs;
+    private short[] currencyIndexes;
+    private boolean[] changed;
+    private int changedCount;
+    private long skipped;
+    private final List<Currency> currencies = new ArrayList<>();
+    private int size;
+    private int mask;
+
+    AccountBalances() {
+        this(MIN_CAPACITY);
+    }
+
+    private AccountBalances(int capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * Applies a deposit to an account, unless an event with the same or a higher sequence number was already applied.
+     */
+    Outcome deposit(String identifier, long sequenceNr, long units, Currency currency) {
+        return apply(identifier, sequenceNr, units, false, currency);
+    }
+
+    /**
+     * Applies a withdrawal to an account, unless an event with the same or a higher sequence number was already
+     * applied.
+     */
+    Outcome withdrawal(String identifier, long sequenceNr, long units, Currency currency) {
+        return apply(identifier, sequenceNr, units, true, currency);
+    }
+
+    private Outcome apply(String identifier, long sequenceNr, long units, boolean withdrawal, Currency currency) {
+        int slot = slot(identifier);
+
+        if (identifiers[slot] == null) {
+            // A new account starts with a zero balance in the default currency, as on the write side.
+            insert(slot, identifier, 0, 0, currencyIndex(CurrencyValue.DEFAULT_CURRENCY));
+            slot = slot(identifier);
+        }
+        else if (sequenceNr <= sequenceNrs[slot]) {
+            return Outcome.DUPLICATE;
+        }
+
+        long balance = balances[slot];
+        long result = withdrawal ? balance - units : balance + units;
+        boolean overflow = withdrawal
+                ? ((balance ^ units) & (balance ^ result)) < 0
+                : ((balance ^ result) & (units ^ result)) < 0;
+        sequenceNrs[slot] = sequenceNr;
+        markChanged(slot);
+
+        if (overflow || !currencies.get(currencyIndexes[slot]).equals(currency)) {
+            skipped++;
+            return Outcome.SKIPPED;
+        }
+        balances[slot] = result;
+        return Outcome.APPLIED;
+    }
+
+    /**
+     * @return the number of events that were skipped because they could not be applied.
+     */
+    long skipped() {
+        return skipped;
+    }
+
+    private void markChanged(int slot) {
+        if (!changed[slot]) {
+            changed[slot] = true;
+            changedCount++;
+        }
+    }
+
+    boolean contains(String identifier) {
+        return identifiers[slot(identifier)] != null;
+    }
+
+    /**
+     * @return the balance of the account, or null when the account has no events.
+     */
+    CurrencyValue balance(String identifier) {
+        int slot = slot(identifier);
+        return identifiers[slot] == null
+                ? null
+                : CurrencyValue.ofUnits(balances[slot], currencies.get(currencyIndexes[slot]));
+    }
+
+    /**
+     * @return the sequence number of the last event that was applied to the account, or 0 when it has no events.
+     */
+    long sequenceNr(String identifier) {
+        int slot = slot(identifier);
+        return identifiers[slot] == null ? 0 : sequenceNrs[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copies the accounts of this table into one of a number of tables, used to split a view over the lanes of a read
+     * side. An account that is already in the target table keeps the state of the higher sequence number.
+     */
+    void distribute(AccountBalances[] targets, ToIntFunction<String> target) {
+        forEach((identifier, sequenceNr, balance, currency) ->
+                targets[target.applyAsInt(identifier)].put(identifier, sequenceNr, balance, currency));
+    }
+
+    /**
+     * Sets the state of an account, unless the account already has the same or a higher sequence number.
+     */
+    void put(String identifier, long sequenceNr, long balance, Currency currency) {
+        int slot = slot(identifier);
+
+        if (identifiers[slot] == null) {
+            insert(slot, identifier, sequenceNr, balance, currencyIndex(currency));
+        }
+        else if (sequenceNr > sequenceNrs[slot]) {
+            balances[slot] = balance;
+            sequenceNrs[slot] = sequenceNr;
+        }
+    }
+
+    void forEach(AccountConsumer consumer) {
+        for (int slot = 0; slot < identifiers.length; slot++) {
+            if (identifiers[slot] != null) {
+                consumer.accept(identifiers[slot], sequenceNrs[slot], balances[slot], currencies.get(currencyIndexes[slot]));
+            }
+        }
+    }
+
+    private int slot(String identifier) {
+        int slot = hash(identifier) & mask;
+        while (identifiers[slot] != null && !identifiers[slot].equals(identifier)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, String identifier, long sequenceNr, long units, short currencyIndex) {
+        identifiers[slot] = identifier;
+        balances[slot] = units;
+        sequenceNrs[slot] = sequenceNr;
+        currencyIndexes[slot] = currencyIndex;
+
+        if (++size > identifiers.length >> 1) {
+            resize(identifiers.length << 1);
+        }
+    }
+
+    private short currencyIndex(Currency currency) {
+        int index = currencies.indexOf(currency);
+        if (index < 0) {
+            if (currencies.size() == MAX_CURRENCIES) {
+                throw new IllegalStateException(String.format("More than %d currencies", MAX_CURRENCIES));
+            }
+            currencies.add(currency);
+            index = currencies.size() - 1;
+        }
+        return (short) index;
+    }
+
+    private void resize(int capacity) {
+        String[] oldIdentifiers = identifiers;
+        long[] oldBalances = balances;
+        long[] oldSequenceNrs = sequenceNrs;
+        short[] oldCurrencyIndexes = currencyIndexes;
+        boolean[] oldChanged = changed;
+
+        allocate(capacity);
+        for (int oldSlot = 0; oldSlot < oldIdentifiers.length; oldSlot++) {
+            if (oldIdentifiers[oldSlot] != null) {
+                int slot = slot(oldIdentifiers[oldSlot]);
+                identifiers[slot] = oldIdentifiers[oldSlot];
+                balances[slot] = oldBalances[oldSlot];
+                sequenceNrs[slot] = oldSequenceNrs[oldSlot];
+                currencyIndexes[slot] = oldCurrencyIndexes[oldSlot];
+                changed[slot] = oldChanged[oldSlot];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        identifiers = new String[capacity];
+        balances = new long[capacity];
+        sequenceNrs = new long[capacity];
+        currencyIndexes = new short[capacity];
+        changed = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(String identifier) {
+        int h = identifier.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size) * 4 - 1));
+    }
+
+    /**
+     * Writes the table in a compact binary form, used to checkpoint the view together with the event offset.
+     */
+    byte[] toBytes() {
+        return toBytes(false);
+    }
+
+    /**
+     * Writes the accounts that changed since the last call in the same form as {@link #toBytes()}, and clears the
+     * changes.
+     */
+    byte[] changesToBytes() {
+        byte[] bytes = toBytes(true);
+        Arrays.fill(changed, false);
+        changedCount = 0;
+        return bytes;
+    }
+
+    private byte[] toBytes(boolean changesOnly) {
+        int count = changesOnly ? changedCount : size;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + count * 32);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeShort(currencies.size());
+            for (Currency currency : currencies) {
+                out.writeUTF(currency.getCurrencyCode());
+            }
+            out.writeInt(count);
+            for (int slot = 0; slot < identifiers.length; slot++) {
+                if (identifiers[slot] != null && (!changesOnly || changed[slot])) {
+                    out.writeUTF(identifiers[slot]);
+                    out.writeLong(balances[slot]);
+                    out.writeLong(sequenceNrs[slot]);
+                    out.writeShort(currencyIndexes[slot]);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static AccountBalances fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException(String.format("Unknown account balances format %d", version));
+            }
+
+            int currencyCount = in.readShort();
+            Currency[] currencies = new Currency[currencyCount];
+            for (int i = 0; i < currencyCount; i++) {
+                currencies[i] = Currency.getInstance(in.readUTF());
+            }
+
+            int size = in.readInt();
+            AccountBalances accountBalances = new AccountBalances(capacityFor(size));
+            accountBalances.currencies.addAll(Arrays.asList(currencies));
+            for (int i = 0; i < size; i++) {
+                String identifier = in.readUTF();
+                long balance = in.readLong();
+                long sequenceNr = in.readLong();
+                short currencyIndex = in.readShort();
+                accountBalances.insert(accountBalances.slot(identifier), identifier, sequenceNr, balance, currencyIndex);
+            }
+            return accountBalances;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%d accounts, capacity %d, skipped %d]", getClass().getSimpleName(), size, identifiers.length, skipped);
+    }
+
+    enum Outcome {
+        APPLIED,
+        /** The event was already applied. */
+        DUPLICATE,
+        /** The event is not in the currency of the account or overflows its balance. */
+        SKIPPED
+    }
+
+    interface AccountConsumer {
+        void accept(String identifier, long sequenceNr, long balance, Currency currency);
+    }
+}
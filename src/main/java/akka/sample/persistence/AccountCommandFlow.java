@@ -0,0 +1,99 @@
+package akka.sample.persistence;
+
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.sample.persistence.AccountWriteSide.Command;
+import akka.sample.persistence.AccountWriteSide.CommandBatch;
+import akka.sample.persistence.AccountWriteSide.CommandBatchResult;
+import akka.sample.persistence.AccountWriteSide.CommandOutcomeUnknown;
+import akka.sample.persistence.AccountWriteSide.CommandRejected;
+import akka.stream.javadsl.Flow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static akka.pattern.PatternsCS.ask;
+
+/**
+ * A stream of deposits and withdrawals to the write side, with the outcome of each command in the order of the
+ * commands.
+ * <p>
+ * <p>The commands are grouped into {@link CommandBatch}es of the configured size, or of the commands that arrived
+ * within the configured linger time, and sent to {@link AccountsWriteSide}. A batch is split by account and each
+ * account writes its commands of the batch with a single journal write, so the commands of different accounts are
+ * written in parallel and the commands of an account are written together.</p>
+ * <p>
+ * <p>The configured number of batches is in flight at the same time. The batches reach {@link AccountsWriteSide},
+ * and their commands reach the accounts, in the order of the stream, so the commands of an account that are written
+ * are written in order. A command that is rejected, or whose outcome is unknown, does not hold back the later
+ * commands of its account, which may be in a batch that is already in flight. When a command must only be written
+ * after the earlier commands of its account were, set the parallelism to 1 and stop the stream on the first
+ * outcome that is not an event. When all of the batches are in flight the flow backpressures its upstream.</p>
+ * <p>
+ * <p>The commands of an account are only written together when they are in the same batch, so a source that is
+ * ordered, or clustered, by account gets the largest journal writes.</p>
+ */
+class AccountCommandFlow {
+    private AccountCommandFlow() {
+    }
+
+    /**
+     * @param accounts the {@link AccountsWriteSide} of this node.
+     */
+    static Flow<Command, Result, NotUsed> create(ActorRef accounts, WriteSideSettings settings) {
+        long timeout = settings.commandFlowTimeout().toMillis();
+
+        return Flow.<Command>create()
+                .groupedWithin(settings.commandFlowBatchSize(), settings.commandFlowLinger())
+                .mapAsync(settings.commandFlowParallelism(), commands -> ask(accounts, new CommandBatch(commands), timeout)
+                        .handle((reply, e) -> results(commands, e == null ? reply : new CommandOutcomeUnknown(String.format("No reply to batch, %s", e)))))
+                .mapConcat(results -> results);
+    }
+
+    static List<Result> results(List<Command> commands, Object reply) {
+        List<Object> outcomes = CommandBatchResult.outcomes(reply, commands.size());
+        List<Result> results = new ArrayList<>(commands.size());
+
+        for (int i = 0; i < commands.size(); i++) {
+            results.add(new Result(commands.get(i), outcomes.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * A command and its outcome, the persisted event, {@link CommandRejected} or {@link CommandOutcomeUnknown}.
+     */
+    static class Result {
+        private final Command command;
+        private final Object outcome;
+
+        private Result(Command command, Object outcome) {
+            this.command = command;
+            this.outcome = outcome;
+        }
+
+        Command command() {
+            return command;
+        }
+
+        Object outcome() {
+            return outcome;
+        }
+
+        boolean rejected() {
+            return outcome instanceof CommandRejected;
+        }
+
+        /**
+         * @return whether the command may or may not have been written, see {@link CommandOutcomeUnknown}.
+         */
+        boolean unknown() {
+            return outcome instanceof CommandOutcomeUnknown;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + command + ", " + outcome + "]";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package akka.sample.persistence;
+
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.Set;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tags of the account events.
+ * <p>
+ * <p>The events are spread over a configured number of partition tags, {@code account-0} to {@code account-N-1}.
+ * The partition of an account is a stable hash of its identifier, so all of the events of an account are in the same
+ * tag and in order. With one partition all events have the single tag {@code account}.</p>
+ * <p>
+ * <p>The tag set of each partition is built once, so tagging an event does not allocate a set.</p>
+ * <p>
+ * <p>The number of partitions must not be changed once events have been written, because the events that were
+ * already written keep their tags.</p>
+ */
+class AccountEventTags {
+    private static final String TAG = "account";
+    private final String[] tags;
+    private final Set<String>[] tagSets;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private AccountEventTags(int partitions) {
+        tags = new String[partitions];
+        tagSets = new Set[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            tags[partition] = partitions == 1 ? TAG : TAG + "-" + partition;
+            tagSets[partition] = JavaConverters.asScalaSetConverter(Collections.singleton(tags[partition])).asScala().toSet();
+        }
+    }
+
+    static AccountEventTags create(Config config) {
+        return new AccountEventTags(config.getInt("account.event-tags.partitions"));
+    }
+
+    String tagFor(AccountIdentifier accountIdentifier) {
+        return tags[partition(accountIdentifier)];
+    }
+
+    /**
+     * @return the immutable set with the tag of the account, shared by all of the events of the partition.
+     */
+    Set<String> tagSetFor(AccountIdentifier accountIdentifier) {
+        return tagSets[partition(accountIdentifier)];
+    }
+
+    private int partition(AccountIdentifier accountIdentifier) {
+        return Math.floorMod(accountIdentifier.hashCode(), tags.length);
+    }
+
+    List<String> tags() {
+        return Collections.unmodifiableList(Arrays.asList(tags));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%s", getClass().getSimpleName(), Arrays.toString(tags));
+    }
+}
@@ -6,6 +6,7 @@ import java.io.Serializable;
  * An account identifier.
  */
 public class AccountIdentifier implements Serializable {
+    private static final long serialVersionUID = -9147689143957103349L;
     private final String identifier;
 
     private AccountIdentifier(String identifier) {
@@ -37,6 +38,6 @@ public class AccountIdentifier implements Serializable {
 
     @Override
     public String toString() {
-        return String.format("%s[%s]", getClass().getSimpleName(), identifier);
+        return getClass().getSimpleName() + "[" + identifier + "]";
     }
 }
@@ -0,0 +1,124 @@
+package akka.sample.persistence;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the accounts of generated commands, as an index from 0 to the number of accounts.
+ * <p>
+ * <p>The {@code account.load-generator.distribution} setting selects the distribution. {@code uniform} picks each
+ * account with the same probability. {@code zipfian} picks the account of rank {@code k} with a probability
+ * proportional to {@code 1 / k^s}, so a few accounts get most of the commands, as with real customers.
+ * {@code hotspot} sends a fraction of the commands to a small fraction of the accounts and the rest uniformly to the
+ * other accounts.</p>
+ */
+interface AccountKeyDistribution {
+    static AccountKeyDistribution create(LoadGeneratorSettings settings) {
+        switch (settings.distribution()) {
+            case "uniform":
+                return new Uniform(settings.accounts());
+            case "zipfian":
+                return new Zipfian(settings.accounts(), settings.zipfianExponent());
+            case "hotspot":
+                return new Hotspot(settings.accounts(), settings.hotspotAccounts(), settings.hotspotCommands());
+            default:
+                throw new IllegalArgumentException(String.format("Unknown account distribution %s", settings.distribution()));
+        }
+    }
+
+    int next(ThreadLocalRandom random);
+
+    class Uniform implements AccountKeyDistribution {
+        private final int accounts;
+
+        Uniform(int accounts) {
+            this.accounts = accounts;
+        }
+
+        @Override
+        public int next(ThreadLocalRandom random) {
+            return random.nextInt(accounts);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d]", getClass().getSimpleName(), accounts);
+        }
+    }
+
+    /**
+     * The Zipfian generator of Gray et al., Quickly Generating Billion-Record Synthetic Databases, which draws a rank
+     * in constant time after computing the zeta constant of the number of accounts once. The exponent must be
+     * between 0 and 1, exclusive.
+     */
+    class Zipfian implements AccountKeyDistribution {
+        private final int accounts;
+        private final double exponent;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+        private final double halfPowExponent;
+
+        Zipfian(int accounts, double exponent) {
+            if (exponent <= 0 || exponent >= 1) {
+                throw new IllegalArgumentException(String.format("Zipfian exponent %f is not between 0 and 1", exponent));
+            }
+            this.accounts = accounts;
+            this.exponent = exponent;
+            zetaN = zeta(accounts, exponent);
+            alpha = 1 / (1 - exponent);
+            eta = (1 - Math.pow(2.0 / accounts, 1 - exponent)) / (1 - zeta(2, exponent) / zetaN);
+            halfPowExponent = 1 + Math.pow(0.5, exponent);
+        }
+
+        private static double zeta(int n, double exponent) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, exponent);
+            }
+            return sum;
+        }
+
+        @Override
+        public int next(ThreadLocalRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < halfPowExponent) {
+                return 1;
+            }
+            return Math.min(accounts - 1, (int) (accounts * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, %.2f]", getClass().getSimpleName(), accounts, exponent);
+        }
+    }
+
+    class Hotspot implements AccountKeyDistribution {
+        private final int accounts;
+        private final int hotAccounts;
+        private final double hotCommands;
+
+        Hotspot(int accounts, double hotAccountsFraction, double hotCommands) {
+            this.accounts = accounts;
+            this.hotAccounts = Math.max(1, Math.min(accounts, (int) (accounts * hotAccountsFraction)));
+            this.hotCommands = hotCommands;
+        }
+
+        @Override
+        public int next(ThreadLocalRandom random) {
+            if (hotAccounts == accounts || random.nextDouble() < hotCommands) {
+                return random.nextInt(hotAccounts);
+            }
+            return hotAccounts + random.nextInt(accounts - hotAccounts);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d of %d, %.2f]", getClass().getSimpleName(), hotAccounts, accounts, hotCommands);
+        }
+    }
+}
@@ -0,0 +1,749 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.sample.persistence.AccountMetricsMXBean.Distribution;
+import com.typesafe.config.Config;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and counters of the account write side, one instance per actor system.
+ * <p>
+ * <p>The entities record into HdrHistogram recorders and counters, which are lock free and do not allocate, so the
+ * recording cost on the hot path is a few nanoseconds. Latencies are recorded in nanoseconds and reported in
+ * microseconds.</p>
+ * <p>
+ * <p>Recoveries are throttled by {@code akka.persistence.max-concurrent-recoveries}, an account that starts while
+ * that many accounts recover waits for a recovery permit. The recovery wait is the time from the start of an account
+ * to the first step of its recovery, and the recovery queue is the number of accounts that wait for a permit.</p>
+ * <p>
+ * <p>At the configured report interval the histograms of the interval are taken as a {@link Snapshot}, which is
+ * published through the {@link AccountMetricsMXBean} and passed to the configured {@link Reporter}s.</p>
+ */
+class AccountMetrics implements Extension {
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final LoggingAdapter log;
+    private final Recorder commandToPersist = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder persistToReply = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder recoveryWait = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder recoveryDuration = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder recoveryEvents = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder snapshotSave = new Recorder(SIGNIFICANT_DIGITS);
+    private final LongAdder activations = new LongAdder();
+    private final LongAdder passivations = new LongAdder();
+    private final LongAdder snapshotFailures = new LongAdder();
+    private final LongAdder entityHits = new LongAdder();
+    private final LongAdder entityMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder shedExpired = new LongAdder();
+    private final LongAdder shedDeadline = new LongAdder();
+    private final LongAdder shedAccountQueue = new LongAdder();
+    private final LongAdder shedNodeQueue = new LongAdder();
+    private final LongAdder stashOverflows = new LongAdder();
+    private final LongAdder recoveries = new LongAdder();
+    private final int maxConcurrentRecoveries;
+    private final List<Reporter> reporters = new ArrayList<>();
+    private volatile Snapshot lastSnapshot;
+    private long lastSnapshotNanos = System.nanoTime();
+
+    private AccountMetrics(ActorSystem actorSystem) {
+        Config config = actorSystem.settings().config().getConfig("account.metrics");
+        FiniteDuration reportInterval = Duration.create(config.getDuration("report-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+
+        log = Logging.getLogger(actorSystem, this);
+        maxConcurrentRecoveries = actorSystem.settings().config().getInt("akka.persistence.max-concurrent-recoveries");
+        lastSnapshot = takeSnapshot();
+
+        for (String reporter : config.getStringList("reporters")) {
+            reporters.add(createReporter(reporter, actorSystem));
+        }
+        if (config.getBoolean("jmx")) {
+            registerMBean(actorSystem);
+        }
+
+        Cancellable reports = actorSystem.scheduler().schedule(
+                reportInterval,
+                reportInterval,
+                this::report,
+                actorSystem.dispatcher());
+        actorSystem.registerOnTermination(reports::cancel);
+    }
+
+    static AccountMetrics get(ActorSystem actorSystem) {
+        return Id.ID.get(actorSystem);
+    }
+
+    void commandToPersist(long nanos) {
+        commandToPersist.recordValue(nanos);
+    }
+
+    void persistToReply(long nanos) {
+        persistToReply.recordValue(nanos);
+    }
+
+    /**
+     * An account started, its recovery waits for a permit or runs until it is completed or abandoned.
+     */
+    void recoveryRequested() {
+        recoveries.increment();
+    }
+
+    void recoveryWaited(long nanos) {
+        recoveryWait.recordValue(nanos);
+    }
+
+    void recovered(long nanos, long events) {
+        recoveries.decrement();
+        recoveryDuration.recordValue(nanos);
+        recoveryEvents.recordValue(events);
+    }
+
+    /**
+     * An account stopped before its recovery completed.
+     */
+    void recoveryAbandoned() {
+        recoveries.decrement();
+    }
+
+    /**
+     * @return the number of accounts that wait for a recovery permit, estimated from the accounts that recover.
+     */
+    long recoveryQueue() {
+        return Math.max(0, recoveries.sum() - maxConcurrentRecoveries);
+    }
+
+    void snapshotSaved(long nanos) {
+        snapshotSave.recordValue(nanos);
+    }
+
+    void snapshotFailed() {
+        snapshotFailures.increment();
+    }
+
+    void activated() {
+        activations.increment();
+    }
+
+    void passivated() {
+        passivations.increment();
+    }
+
+    /**
+     * A command for an account that was already active.
+     */
+    void entityHit() {
+        entityHits.increment();
+    }
+
+    /**
+     * A command that started an account, which had to be recovered first.
+     */
+    void entityMiss() {
+        entityMisses.increment();
+    }
+
+    void evicted() {
+        evictions.increment();
+    }
+
+    /**
+     * An account query that was answered from the balance cache.
+     */
+    void cacheHit() {
+        cacheHits.increment();
+    }
+
+    /**
+     * An account query that was sent to the account.
+     */
+    void cacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /**
+     * A command that was rejected because its deadline had passed.
+     */
+    void shedExpired() {
+        shedExpired.increment();
+    }
+
+    /**
+     * A command that was rejected because it was not expected to be written before its deadline.
+     */
+    void shedDeadline() {
+        shedDeadline.increment();
+    }
+
+    /**
+     * A command that was rejected because its account had the maximum number of commands queued.
+     */
+    void shedAccountQueue() {
+        shedAccountQueue.increment();
+    }
+
+    /**
+     * A command that was rejected because the accounts of the node had the maximum number of commands queued.
+     */
+    void shedNodeQueue() {
+        shedNodeQueue.increment();
+    }
+
+    /**
+     * A command that was rejected because it did not fit in the stash of its account.
+     */
+    void stashOverflow() {
+        stashOverflows.increment();
+    }
+
+    Snapshot lastSnapshot() {
+        return lastSnapshot;
+    }
+
+    private void report() {
+        Snapshot snapshot = takeSnapshot();
+        lastSnapshot = snapshot;
+
+        for (Reporter reporter : reporters) {
+            try {
+                reporter.report(snapshot);
+            }
+            catch (RuntimeException e) {
+                log.warning("Reporter {} failed {}", reporter, e);
+            }
+        }
+    }
+
+    private synchronized Snapshot takeSnapshot() {
+        long now = System.nanoTime();
+        Snapshot snapshot = new Snapshot.Builder(now - lastSnapshotNanos)
+                .commandToPersist(commandToPersist.getIntervalHistogram())
+                .persistToReply(persistToReply.getIntervalHistogram())
+                .recoveryWait(recoveryWait.getIntervalHistogram())
+                .recoveryDuration(recoveryDuration.getIntervalHistogram())
+                .recoveryEvents(recoveryEvents.getIntervalHistogram())
+                .snapshotSave(snapshotSave.getIntervalHistogram())
+                .activations(activations.sum())
+                .passivations(passivations.sum())
+                .snapshotFailures(snapshotFailures.sum())
+                .entityHits(entityHits.sum())
+                .entityMisses(entityMisses.sum())
+                .evictions(evictions.sum())
+                .cacheHits(cacheHits.sum())
+                .cacheMisses(cacheMisses.sum())
+                .shedExpired(shedExpired.sum())
+                .shedDeadline(shedDeadline.sum())
+                .shedAccountQueue(shedAccountQueue.sum())
+                .shedNodeQueue(shedNodeQueue.sum())
+                .stashOverflows(stashOverflows.sum())
+                .recoveryQueue(recoveryQueue())
+                .build();
+        lastSnapshotNanos = now;
+        return snapshot;
+    }
+
+    private Reporter createReporter(String className, ActorSystem actorSystem) {
+        try {
+            Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(ActorSystem.class);
+            constructor.setAccessible(true);
+            return (Reporter) constructor.newInstance(actorSystem);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(String.format("Cannot create metrics reporter %s", className), e);
+        }
+    }
+
+    private void registerMBean(ActorSystem actorSystem) {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName name = new ObjectName(String.format("akka.sample.persistence:type=AccountMetrics,system=%s", actorSystem.name()));
+            mBeanServer.registerMBean(new MXBean(this), name);
+            actorSystem.registerOnTermination(() -> unregisterMBean(mBeanServer, name));
+        }
+        catch (JMException e) {
+            log.warning("Account metrics not registered in JMX {}", e);
+        }
+    }
+
+    private void unregisterMBean(MBeanServer mBeanServer, ObjectName name) {
+        try {
+            mBeanServer.unregisterMBean(name);
+        }
+        catch (JMException e) {
+            log.warning("Account metrics not unregistered from JMX {}", e);
+        }
+    }
+
+    /**
+     * Receives a snapshot of the metrics at every report interval.
+     * <p>
+     * <p>Implementations are configured by class name in {@code account.metrics.reporters} and need a constructor that
+     * takes the {@link ActorSystem}. They are called from a dispatcher thread and should not block.</p>
+     */
+    interface Reporter {
+        void report(Snapshot snapshot);
+    }
+
+    /**
+     * Logs each snapshot at INFO level.
+     */
+    static class LogReporter implements Reporter {
+        private final LoggingAdapter log;
+
+        LogReporter(ActorSystem actorSystem) {
+            log = Logging.getLogger(actorSystem, this);
+        }
+
+        @Override
+        public void report(Snapshot snapshot) {
+            log.info("{}", snapshot);
+        }
+    }
+
+    /**
+     * The latency histograms of one report interval and the counters since the start of the actor system.
+     */
+    static class Snapshot {
+        private static final Histogram EMPTY = new Histogram(SIGNIFICANT_DIGITS);
+
+        private final long intervalNanos;
+        private final Histogram commandToPersist;
+        private final Histogram persistToReply;
+        private final Histogram recoveryWait;
+        private final Histogram recoveryDuration;
+        private final Histogram recoveryEvents;
+        private final Histogram snapshotSave;
+        private final long activations;
+        private final long passivations;
+        private final long snapshotFailures;
+        private final long entityHits;
+        private final long entityMisses;
+        private final long evictions;
+        private final long cacheHits;
+        private final long cacheMisses;
+        private final long shedExpired;
+        private final long shedDeadline;
+        private final long shedAccountQueue;
+        private final long shedNodeQueue;
+        private final long stashOverflows;
+        private final long recoveryQueue;
+
+        private Snapshot(Builder builder) {
+            intervalNanos = builder.intervalNanos;
+            commandToPersist = builder.commandToPersist;
+            persistToReply = builder.persistToReply;
+            recoveryWait = builder.recoveryWait;
+            recoveryDuration = builder.recoveryDuration;
+            recoveryEvents = builder.recoveryEvents;
+            snapshotSave = builder.snapshotSave;
+            activations = builder.activations;
+            passivations = builder.passivations;
+            snapshotFailures = builder.snapshotFailures;
+            entityHits = builder.entityHits;
+            entityMisses = builder.entityMisses;
+            evictions = builder.evictions;
+            cacheHits = builder.cacheHits;
+            cacheMisses = builder.cacheMisses;
+            shedExpired = builder.shedExpired;
+            shedDeadline = builder.shedDeadline;
+            shedAccountQueue = builder.shedAccountQueue;
+            shedNodeQueue = builder.shedNodeQueue;
+            stashOverflows = builder.stashOverflows;
+            recoveryQueue = builder.recoveryQueue;
+        }
+
+        long intervalNanos() {
+            return intervalNanos;
+        }
+
+        Histogram commandToPersist() {
+            return commandToPersist;
+        }
+
+        Histogram persistToReply() {
+            return persistToReply;
+        }
+
+        Histogram recoveryWait() {
+            return recoveryWait;
+        }
+
+        Histogram recoveryDuration() {
+            return recoveryDuration;
+        }
+
+        Histogram recoveryEvents() {
+            return recoveryEvents;
+        }
+
+        Histogram snapshotSave() {
+            return snapshotSave;
+        }
+
+        long activations() {
+            return activations;
+        }
+
+        long passivations() {
+            return passivations;
+        }
+
+        long snapshotFailures() {
+            return snapshotFailures;
+        }
+
+        long entityHits() {
+            return entityHits;
+        }
+
+        long entityMisses() {
+            return entityMisses;
+        }
+
+        long evictions() {
+            return evictions;
+        }
+
+        long cacheHits() {
+            return cacheHits;
+        }
+
+        long cacheMisses() {
+            return cacheMisses;
+        }
+
+        long shedExpired() {
+            return shedExpired;
+        }
+
+        long shedDeadline() {
+            return shedDeadline;
+        }
+
+        long shedAccountQueue() {
+            return shedAccountQueue;
+        }
+
+        long shedNodeQueue() {
+            return shedNodeQueue;
+        }
+
+        long stashOverflows() {
+            return stashOverflows;
+        }
+
+        long recoveryQueue() {
+            return recoveryQueue;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%ds, command to persist %s, persist to reply %s, recovery wait %s, recovery %s, " +
+                            "recovery events %s, snapshot save %s, activations %d, passivations %d, snapshot failures %d, " +
+                            "hits %d, misses %d, evictions %d, cache hits %d, cache misses %d, shed expired %d, " +
+                            "shed deadline %d, shed account queue %d, shed node queue %d, stash overflows %d, recovery queue %d]",
+                    getClass().getSimpleName(), TimeUnit.NANOSECONDS.toSeconds(intervalNanos),
+                    latency(commandToPersist), latency(persistToReply), latency(recoveryWait), latency(recoveryDuration),
+                    count(recoveryEvents), latency(snapshotSave), activations, passivations, snapshotFailures, entityHits,
+                    entityMisses, evictions, cacheHits, cacheMisses, shedExpired, shedDeadline, shedAccountQueue,
+                    shedNodeQueue, stashOverflows, recoveryQueue);
+        }
+
+        /**
+         * Collects the values of a snapshot by name, the histograms default to empty and the counters to 0.
+         */
+        static class Builder {
+            private final long intervalNanos;
+            private Histogram commandToPersist = EMPTY;
+            private Histogram persistToReply = EMPTY;
+            private Histogram recoveryWait = EMPTY;
+            private Histogram recoveryDuration = EMPTY;
+            private Histogram recoveryEvents = EMPTY;
+            private Histogram snapshotSave = EMPTY;
+            private long activations;
+            private long passivations;
+            private long snapshotFailures;
+            private long entityHits;
+            private long entityMisses;
+            private long evictions;
+            private long cacheHits;
+            private long cacheMisses;
+            private long shedExpired;
+            private long shedDeadline;
+            private long shedAccountQueue;
+            private long shedNodeQueue;
+            private long stashOverflows;
+            private long recoveryQueue;
+
+            Builder(long intervalNanos) {
+                this.intervalNanos = intervalNanos;
+            }
+
+            Builder commandToPersist(Histogram commandToPersist) {
+                this.commandToPersist = commandToPersist;
+                return this;
+            }
+
+            Builder persistToReply(Histogram persistToReply) {
+                this.persistToReply = persistToReply;
+                return this;
+            }
+
+            Builder recoveryWait(Histogram recoveryWait) {
+                this.recoveryWait = recoveryWait;
+                return this;
+            }
+
+            Builder recoveryDuration(Histogram recoveryDuration) {
+                this.recoveryDuration = recoveryDuration;
+                return this;
+            }
+
+            Builder recoveryEvents(Histogram recoveryEvents) {
+                this.recoveryEvents = recoveryEvents;
+                return this;
+            }
+
+            Builder snapshotSave(Histogram snapshotSave) {
+                this.snapshotSave = snapshotSave;
+                return this;
+            }
+
+            Builder activations(long activations) {
+                this.activations = activations;
+                return this;
+            }
+
+            Builder passivations(long passivations) {
+                this.passivations = passivations;
+                return this;
+            }
+
+            Builder snapshotFailures(long snapshotFailures) {
+                this.snapshotFailures = snapshotFailures;
+                return this;
+            }
+
+            Builder entityHits(long entityHits) {
+                this.entityHits = entityHits;
+                return this;
+            }
+
+            Builder entityMisses(long entityMisses) {
+                this.entityMisses = entityMisses;
+                return this;
+            }
+
+            Builder evictions(long evictions) {
+                this.evictions = evictions;
+                return this;
+            }
+
+            Builder cacheHits(long cacheHits) {
+                this.cacheHits = cacheHits;
+                return this;
+            }
+
+            Builder cacheMisses(long cacheMisses) {
+                this.cacheMisses = cacheMisses;
+                return this;
+            }
+
+            Builder shedExpired(long shedExpired) {
+                this.shedExpired = shedExpired;
+                return this;
+            }
+
+            Builder shedDeadline(long shedDeadline) {
+                this.shedDeadline = shedDeadline;
+                return this;
+            }
+
+            Builder shedAccountQueue(long shedAccountQueue) {
+                this.shedAccountQueue = shedAccountQueue;
+                return this;
+            }
+
+            Builder shedNodeQueue(long shedNodeQueue) {
+                this.shedNodeQueue = shedNodeQueue;
+                return this;
+            }
+
+            Builder stashOverflows(long stashOverflows) {
+                this.stashOverflows = stashOverflows;
+                return this;
+            }
+
+            Builder recoveryQueue(long recoveryQueue) {
+                this.recoveryQueue = recoveryQueue;
+                return this;
+            }
+
+            Snapshot build() {
+                return new Snapshot(this);
+            }
+        }
+
+        private static String latency(Histogram histogram) {
+            return String.format("(n %d, p50 %dus, p99 %dus, max %dus)", histogram.getTotalCount(),
+                    micros(histogram.getValueAtPercentile(50)), micros(histogram.getValueAtPercentile(99)),
+                    micros(histogram.getMaxValue()));
+        }
+
+        private static String count(Histogram histogram) {
+            return String.format("(n %d, p50 %d, p99 %d, max %d)", histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99), histogram.getMaxValue());
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+
+    private static class MXBean implements AccountMetricsMXBean {
+        private final AccountMetrics metrics;
+
+        private MXBean(AccountMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Distribution getCommandToPersistMicros() {
+            return Distribution.micros(metrics.lastSnapshot().commandToPersist());
+        }
+
+        @Override
+        public Distribution getPersistToReplyMicros() {
+            return Distribution.micros(metrics.lastSnapshot().persistToReply());
+        }
+
+        @Override
+        public Distribution getRecoveryWaitMicros() {
+            return Distribution.micros(metrics.lastSnapshot().recoveryWait());
+        }
+
+        @Override
+        public Distribution getRecoveryMicros() {
+            return Distribution.micros(metrics.lastSnapshot().recoveryDuration());
+        }
+
+        @Override
+        public Distribution getRecoveryEvents() {
+            return Distribution.count(metrics.lastSnapshot().recoveryEvents());
+        }
+
+        @Override
+        public Distribution getSnapshotSaveMicros() {
+            return Distribution.micros(metrics.lastSnapshot().snapshotSave());
+        }
+
+        @Override
+        public long getActivations() {
+            return metrics.activations.sum();
+        }
+
+        @Override
+        public long getPassivations() {
+            return metrics.passivations.sum();
+        }
+
+        @Override
+        public long getSnapshotFailures() {
+            return metrics.snapshotFailures.sum();
+        }
+
+        @Override
+        public long getEntityHits() {
+            return metrics.entityHits.sum();
+        }
+
+        @Override
+        public long getEntityMisses() {
+            return metrics.entityMisses.sum();
+        }
+
+        @Override
+        public long getEvictions() {
+            return metrics.evictions.sum();
+        }
+
+        @Override
+        public long getCacheHits() {
+            return metrics.cacheHits.sum();
+        }
+
+        @Override
+        public long getCacheMisses() {
+            return metrics.cacheMisses.sum();
+        }
+
+        @Override
+        public long getShedExpired() {
+            return metrics.shedExpired.sum();
+        }
+
+        @Override
+        public long getShedDeadline() {
+            return metrics.shedDeadline.sum();
+        }
+
+        @Override
+        public long getShedAccountQueue() {
+            return metrics.shedAccountQueue.sum();
+        }
+
+        @Override
+        public long getShedNodeQueue() {
+            return metrics.shedNodeQueue.sum();
+        }
+
+        @Override
+        public long getStashOverflows() {
+            return metrics.stashOverflows.sum();
+        }
+
+        @Override
+        public long getRecoveryQueue() {
+            return metrics.recoveryQueue();
+        }
+    }
+
+    static class Id extends AbstractExtensionId<AccountMetrics> implements ExtensionIdProvider {
+        static final Id ID = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return ID;
+        }
+
+        @Override
+        public AccountMetrics createExtension(ExtendedActorSystem actorSystem) {
+            return new AccountMetrics(actorSystem);
+        }
+    }
+}
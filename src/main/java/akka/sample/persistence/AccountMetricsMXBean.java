@@ -0,0 +1,115 @@
+package akka.sample.persistence;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JMX view of the {@link AccountMetrics}.
+ * <p>
+ * <p>The distributions are of the last report interval, the counters are totals since the start of the actor
+ * system.</p>
+ */
+public interface AccountMetricsMXBean {
+    Distribution getCommandToPersistMicros();
+
+    Distribution getPersistToReplyMicros();
+
+    Distribution getRecoveryWaitMicros();
+
+    Distribution getRecoveryMicros();
+
+    Distribution getRecoveryEvents();
+
+    Distribution getSnapshotSaveMicros();
+
+    long getActivations();
+
+    long getPassivations();
+
+    long getSnapshotFailures();
+
+    long getEntityHits();
+
+    long getEntityMisses();
+
+    long getEvictions();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getShedExpired();
+
+    long getShedDeadline();
+
+    long getShedAccountQueue();
+
+    long getShedNodeQueue();
+
+    long getStashOverflows();
+
+    /**
+     * @return the number of accounts that currently wait for a recovery permit.
+     */
+    long getRecoveryQueue();
+
+    /**
+     * A summary of a histogram, which JMX shows as composite data.
+     */
+    class Distribution {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        private Distribution(long count, double mean, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        static Distribution micros(Histogram nanos) {
+            return new Distribution(nanos.getTotalCount(), nanos.getMean() / 1000, micros(nanos.getValueAtPercentile(50)),
+                    micros(nanos.getValueAtPercentile(99)), micros(nanos.getValueAtPercentile(99.9)), micros(nanos.getMaxValue()));
+        }
+
+        static Distribution count(Histogram histogram) {
+            return new Distribution(histogram.getTotalCount(), histogram.getMean(), histogram.getValueAtPercentile(50),
+                    histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
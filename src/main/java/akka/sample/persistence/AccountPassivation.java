@@ -0,0 +1,253 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.japi.pf.ReceiveBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Passivate the idle accounts of a node.
+ * <p>
+ * <p>Each account entity registers an {@link Entry} when it starts and touches it on every command, which is a
+ * single volatile write of the current time, so an account neither allocates nor schedules anything per command.</p>
+ * <p>
+ * <p>This actor keeps the entries in a hashed timing wheel with one slot per tick. An entry sits in the slot of the
+ * tick when it would become idle if it were not touched again. When the wheel reaches a slot, each of its entries is
+ * either asked to passivate or, when it was touched in the meantime, moved to the slot of its new idle time. The
+ * cost is one check per entry per idle timeout, instead of one scheduled timer per account and one cancel and
+ * reschedule per command.</p>
+ * <p>
+ * <p>The number of active accounts of the node is capped. When an account starts while the cap is reached, the
+ * least recently used account of a small random sample of the active accounts is passivated. Sampled LRU approximates
+ * LRU closely with a sample of a few accounts, without a list that has to be reordered on every command.</p>
+ */
+class AccountPassivation extends AbstractLoggingActor {
+    static final IdleTimeout IDLE_TIMEOUT = new IdleTimeout();
+
+    private final int maxActive;
+    private final int evictionSampleSize;
+    private final AccountMetrics metrics = AccountMetrics.get(context().system());
+    private final List<Entry> active = new ArrayList<>();
+    private int passivating = 0;
+    private final Wheel wheel;
+    private final Cancellable ticks;
+
+    AccountPassivation(WriteSideSettings settings) {
+        maxActive = settings.passivationMaxActive();
+        evictionSampleSize = settings.passivationEvictionSampleSize();
+        wheel = new Wheel(settings.passivationIdleTimeout().toNanos(), settings.passivationTick().toNanos());
+
+        ticks = context().system().scheduler().schedule(
+                settings.passivationTick(),
+                settings.passivationTick(),
+                self(),
+                new Tick(),
+                context().system().dispatcher(),
+                self());
+    }
+
+    static Props props(WriteSideSettings settings) {
+        return Props.create(AccountPassivation.class, settings);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return ReceiveBuilder.create()
+                .match(Entry.class, this::register)
+                .match(Stopped.class, this::stopped)
+                .match(Tick.class, this::tick)
+                .build();
+    }
+
+    private void register(Entry entry) {
+        entry.index = active.size();
+        active.add(entry);
+        wheel.schedule(entry, entry.lastActivity, System.nanoTime());
+
+        if (maxActive > 0 && active.size() - passivating > maxActive) {
+            evict(entry);
+        }
+    }
+
+    private void stopped(Stopped stopped) {
+        Entry entry = stopped.entry;
+        if (entry.index < 0) {
+            return;
+        }
+        Entry last = active.remove(active.size() - 1);
+        if (last != entry) {
+            active.set(entry.index, last);
+            last.index = entry.index;
+        }
+        entry.index = -1;
+        if (entry.passivating) {
+            passivating--;
+        }
+    }
+
+    private void evict(Entry registered) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Entry leastRecentlyUsed = null;
+
+        for (int sample = 0; sample < evictionSampleSize; sample++) {
+            Entry entry = active.get(random.nextInt(active.size()));
+            if (entry != registered && !entry.passivating
+                    && (leastRecentlyUsed == null || entry.lastActivity - leastRecentlyUsed.lastActivity < 0)) {
+                leastRecentlyUsed = entry;
+            }
+        }
+        if (leastRecentlyUsed != null) {
+            passivate(leastRecentlyUsed);
+            metrics.evicted();
+        }
+    }
+
+    private void passivate(Entry entry) {
+        entry.entity.tell(IDLE_TIMEOUT, self());
+        if (!entry.passivating) {
+            entry.passivating = true;
+            passivating++;
+        }
+    }
+
+    private void tick(Tick tick) {
+        wheel.tick(System.nanoTime(), this::passivate);
+    }
+
+    @Override
+    public void postStop() {
+        ticks.cancel();
+    }
+
+    /**
+     * A hashed timing wheel of entries, with one slot per tick. The times are passed in, so that it does not depend
+     * on the clock.
+     */
+    static class Wheel {
+        private final long idleTimeoutNanos;
+        private final long tickNanos;
+        private final List<List<Entry>> slots;
+        private List<Entry> spare = new ArrayList<>();
+        private int cursor = 0;
+
+        Wheel(long idleTimeoutNanos, long tickNanos) {
+            this.idleTimeoutNanos = idleTimeoutNanos;
+            this.tickNanos = tickNanos;
+
+            int size = (int) ((idleTimeoutNanos + tickNanos - 1) / tickNanos) + 1;
+            slots = new ArrayList<>(size);
+            for (int slot = 0; slot < size; slot++) {
+                slots.add(new ArrayList<>());
+            }
+        }
+
+        /**
+         * Adds the entry to the slot of the tick when it becomes idle, at least the next tick and at most a full turn
+         * of the wheel ahead.
+         */
+        void schedule(Entry entry, long lastActivity, long now) {
+            long remainingNanos = Math.max(0, lastActivity + idleTimeoutNanos - now);
+            long remainingTicks = Math.max(1, (remainingNanos + tickNanos - 1) / tickNanos);
+            int slot = (int) ((cursor + Math.min(remainingTicks, slots.size() - 1)) % slots.size());
+            slots.get(slot).add(entry);
+        }
+
+        /**
+         * Moves to the next slot. Each of its entries that has been idle for the idle timeout is passed to idle and
+         * checked again after another idle timeout, in case the entity stays alive, the others are moved to the slot
+         * of their new idle time. The entries of stopped entities are dropped.
+         */
+        void tick(long now, Consumer<Entry> idle) {
+            cursor = (cursor + 1) % slots.size();
+
+            List<Entry> due = slots.get(cursor);
+            slots.set(cursor, spare);
+            spare = due;
+
+            for (Entry entry : due) {
+                if (entry.stopped) {
+                    continue;
+                }
+                if (now - entry.lastActivity >= idleTimeoutNanos) {
+                    idle.accept(entry);
+                    schedule(entry, now, now);
+                }
+                else {
+                    schedule(entry, entry.lastActivity, now);
+                }
+            }
+            due.clear();
+        }
+
+        int size() {
+            return slots.size();
+        }
+    }
+
+    /**
+     * The last activity of an account entity. Written by the entity, read by the passivation actor on the same node.
+     */
+    static class Entry {
+        private final ActorRef entity;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean stopped = false;
+        // Only used by the passivation actor.
+        private int index = -1;
+        private boolean passivating = false;
+
+        Entry(ActorRef entity) {
+            this.entity = entity;
+        }
+
+        void touch() {
+            touch(System.nanoTime());
+        }
+
+        void touch(long now) {
+            lastActivity = now;
+        }
+
+        /**
+         * @return the message that tells the passivation actor that the entity has stopped.
+         */
+        Stopped stopped() {
+            stopped = true;
+            return new Stopped(this);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), entity.path().name());
+        }
+    }
+
+    /**
+     * Sent to an account entity that has been idle for the idle timeout.
+     */
+    static class IdleTimeout {
+        private IdleTimeout() {
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName();
+        }
+    }
+
+    static class Stopped {
+        private final Entry entry;
+
+        private Stopped(Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    private static class Tick {
+    }
+}
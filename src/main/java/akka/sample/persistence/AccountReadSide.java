@@ -2,83 +2,143 @@ package akka.sample.persistence;
 
 import akka.actor.AbstractLoggingActor;
 import akka.actor.Props;
-import akka.actor.ReceiveTimeout;
 import akka.japi.pf.ReceiveBuilder;
 import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
 import akka.sample.persistence.AccountWriteSide.EventDeposit;
 import akka.sample.persistence.AccountWriteSide.EventWithdrawal;
-import scala.concurrent.duration.Duration;
+import akka.sample.persistence.AccountsView.Balance;
+import akka.sample.persistence.AccountsView.BalanceNotFound;
+import akka.sample.persistence.AccountsView.Balances;
+import akka.sample.persistence.AccountsView.GetBalance;
+import akka.sample.persistence.AccountsView.GetBalances;
 
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * Process account events on the read side.
+ * Maintain the account balances view of the events of one tag, or of one lane of the accounts of a tag.
+ * <p>
+ * <p>The balances are kept in memory in an {@link AccountBalances} table, so the balance queries are answered without
+ * reading the journal or starting the write side entities.</p>
+ * <p>
+ * <p>Events are delivered at least once, so events with a sequence number that has already been applied to the
+ * account are acknowledged without being applied again. Each event is acknowledged with the same preallocated
+ * {@link Applied} message of the lane.</p>
  */
 class AccountReadSide extends AbstractLoggingActor {
-    private final AccountIdentifier accountIdentifier;
-
-    {
-        context().setReceiveTimeout(Duration.create(10, TimeUnit.SECONDS));
-    }
+    private final String tag;
+    private final AccountBalances balances;
+    private final Applied applied;
 
     @Override
     public Receive createReceive() {
         return ReceiveBuilder.create()
                 .match(EventEnvelope.class, this::processEvent)
-                .match(ReceiveTimeout.class, this::receiveTimeout)
+                .match(GetBalance.class, this::getBalance)
+                .match(GetBalances.class, this::getBalances)
+                .match(TakeCheckpoint.class, this::takeCheckpoint)
                 .build();
     }
 
-    public AccountReadSide(AccountIdentifier accountIdentifier) {
-        this.accountIdentifier = accountIdentifier;
+    public AccountReadSide(String tag, int lane, AccountBalances balances) {
+        this.tag = tag;
+        this.balances = balances;
+        this.applied = new Applied(lane);
     }
 
     private void processEvent(EventEnvelope eventEnvelope) {
         if (isDeposit(eventEnvelope)) {
-            deposit((EventDeposit) eventEnvelope.event(), eventEnvelope.sequenceNr());
+            deposit((EventDeposit) eventEnvelope.event(), eventEnvelope);
         }
         else if (isWithdrawal(eventEnvelope)) {
-            withdrawal((EventWithdrawal) eventEnvelope.event(), eventEnvelope.sequenceNr());
+            withdrawal((EventWithdrawal) eventEnvelope.event(), eventEnvelope);
         }
         else {
             notProcessed(eventEnvelope);
         }
     }
 
-    private void deposit(EventDeposit eventDeposit, long offset) {
-        log().info("Update {}, offset {}", eventDeposit, offset);
-        // TODO update the query side
-        // Assume that the query side persists the event log offset.
-        // Assume that an update is conditionally performed by validating the offset.
-        // Assume that the query side has primary key == entity identifier.
-        // For example, update where offset < :envelope.offset
-        sender().tell(String.format("Processed deposit %s %d", eventDeposit, offset), self());
+    private void deposit(EventDeposit eventDeposit, EventEnvelope eventEnvelope) {
+        CurrencyValue amount = eventDeposit.amount();
+        String identifier = eventDeposit.accountIdentifier().identifier();
+
+        applied(balances.deposit(identifier, eventEnvelope.sequenceNr(), amount.units(), amount.currency()), eventDeposit, eventEnvelope);
     }
 
-    private void withdrawal(EventWithdrawal eventWithdrawal, long offset) {
-        log().info("Update {}, offset {}", eventWithdrawal, offset);
-        // TODO update the query side
-        // Assume that the query side persists the event log offset.
-        // Assume that an update is conditionally performed by validating the offset.
-        // Assume that the query side has primary key == entity identifier.
-        // For example, update where offset < :envelope.offset
-        sender().tell(String.format("Processed %s %d", eventWithdrawal, offset), self());
+    private void withdrawal(EventWithdrawal eventWithdrawal, EventEnvelope eventEnvelope) {
+        CurrencyValue amount = eventWithdrawal.amount();
+        String identifier = eventWithdrawal.accountIdentifier().identifier();
+
+        applied(balances.withdrawal(identifier, eventEnvelope.sequenceNr(), amount.units(), amount.currency()), eventWithdrawal, eventEnvelope);
+    }
+
+    private void applied(AccountBalances.Outcome outcome, Object event, EventEnvelope eventEnvelope) {
+        if (outcome == AccountBalances.Outcome.APPLIED) {
+            log().debug("Update {}, offset {}", event, eventEnvelope.sequenceNr());
+            sender().tell(applied, self());
+        }
+        else if (outcome == AccountBalances.Outcome.SKIPPED) {
+            log().warning("Skip {} that cannot be applied, {}", event, eventEnvelope);
+            sender().tell(applied, self());
+        }
+        else {
+            duplicate(eventEnvelope);
+        }
+    }
+
+    private void duplicate(EventEnvelope eventEnvelope) {
+        log().debug("Duplicate {}", eventEnvelope);
+        sender().tell(applied, self());
     }
 
     private void notProcessed(EventEnvelope eventEnvelope) {
         log().info("Rejected {}", eventEnvelope);
-        sender().tell(String.format("Not processed %s", eventEnvelope), self());
+        sender().tell(applied, self());
+    }
+
+    private void getBalance(GetBalance getBalance) {
+        AccountIdentifier accountIdentifier = getBalance.accountIdentifier();
+        CurrencyValue balance = balances.balance(accountIdentifier.identifier());
+
+        if (balance == null) {
+            sender().tell(new BalanceNotFound(accountIdentifier), self());
+        }
+        else {
+            sender().tell(new Balance(accountIdentifier, balance, balances.sequenceNr(accountIdentifier.identifier())), self());
+        }
+    }
+
+    private void getBalances(GetBalances getBalances) {
+        List<Balance> found = new ArrayList<>(getBalances.accountIdentifiers().size());
+        List<AccountIdentifier> notFound = new ArrayList<>();
+
+        for (AccountIdentifier accountIdentifier : getBalances.accountIdentifiers()) {
+            CurrencyValue balance = balances.balance(accountIdentifier.identifier());
+            if (balance == null) {
+                notFound.add(accountIdentifier);
+            }
+            else {
+                found.add(new Balance(accountIdentifier, balance, balances.sequenceNr(accountIdentifier.identifier())));
+            }
+        }
+        sender().tell(new Balances(found, notFound), self());
+    }
+
+    private void takeCheckpoint(TakeCheckpoint takeCheckpoint) {
+        byte[] view = takeCheckpoint.changesOnly ? balances.changesToBytes() : balances.toBytes();
+        sender().tell(new ReadSideStore.Checkpoint(takeCheckpoint.offset, Collections.singletonList(view)), self());
     }
 
     @Override
     public void preStart() throws Exception {
-        log().info("Start {}", accountIdentifier);
+        log().info("Start {}, {}", tag, balances);
     }
 
     @Override
     public void postStop() throws Exception {
-        context().setReceiveTimeout(Duration.Undefined());
-        log().info("Stop {}", accountIdentifier);
+        log().info("Stop {}, {}", tag, balances);
     }
 
     private boolean isDeposit(EventEnvelope eventEnvelope) {
@@ -89,12 +149,37 @@ class AccountReadSide extends AbstractLoggingActor {
         return eventEnvelope.event() instanceof EventWithdrawal;
     }
 
-    private void receiveTimeout(ReceiveTimeout receiveTimeout) {
-        log().info("Idle timeout {}, {} timeout", accountIdentifier, receiveTimeout);
-        context().stop(self());
+    static Props props(String tag, int lane, AccountBalances balances) {
+        return Props.create(AccountReadSide.class, tag, lane, balances).withDispatcher(AccountsReadSide.DISPATCHER);
     }
 
-    static Props props(AccountIdentifier accountIdentifier) {
-        return Props.create(AccountReadSide.class, accountIdentifier);
+    /**
+     * Acknowledges that an event has been taken care of by a lane, whether it was applied, a duplicate or not an account
+     * event.
+     */
+    static class Applied {
+        private final int lane;
+
+        private Applied(int lane) {
+            this.lane = lane;
+        }
+
+        int lane() {
+            return lane;
+        }
+    }
+
+    /**
+     * Asks for a checkpoint of the view, which includes at least all of the events up to the offset. With changes
+     * only, the checkpoint holds the accounts that changed since the previous checkpoint.
+     */
+    static class TakeCheckpoint {
+        private final Offset offset;
+        private final boolean changesOnly;
+
+        TakeCheckpoint(Offset offset, boolean changesOnly) {
+            this.offset = offset;
+            this.changesOnly = changesOnly;
+        }
     }
 }
@@ -0,0 +1,375 @@
+package akka.sample.persistence;
+
+import akka.sample.persistence.AccountWriteSide.Command;
+import akka.sample.persistence.AccountWriteSide.CommandAccountBatch;
+import akka.sample.persistence.AccountWriteSide.CommandBatch;
+import akka.sample.persistence.AccountWriteSide.CommandBatchResult;
+import akka.sample.persistence.AccountWriteSide.CommandDeposit;
+import akka.sample.persistence.AccountWriteSide.CommandGetAccount;
+import akka.sample.persistence.AccountWriteSide.CommandOutcomeUnknown;
+import akka.sample.persistence.AccountWriteSide.CommandRejected;
+import akka.sample.persistence.AccountWriteSide.CommandWithdrawal;
+import akka.sample.persistence.AccountWriteSide.EventDeposit;
+import akka.sample.persistence.AccountWriteSide.EventWithdrawal;
+import akka.sample.persistence.AccountWriteSide.GetAccountNotFound;
+import akka.sample.persistence.AccountWriteSide.GetAccountResponse;
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+
+/**
+ * A compact binary serializer for the account commands, events, responses and snapshots.
+ * <p>
+ * <p>The manifest identifies the message type and the first byte of every payload is the format version. New
+ * versions of a message layout must keep reading the older versions, because events and snapshots written with
+ * them stay in the journal.</p>
+ * <p>
+ * <p>Numbers are written as variable length integers, so small amounts and timestamps take only a few bytes.</p>
+ * <p>
+ * <p>Version 1 wrote currency values as the scale and unscaled value of a {@link BigDecimal}. Version 2 writes the
+ * minor units and the currency code. Version 3 writes event times as microseconds since the epoch. The older versions
+ * wrote the wall time of the system time zone, as the epoch second and nanosecond that it would be in UTC, so these
+ * times are read back as a wall time of the system time zone, see {@link EpochMicros#of}. Version 4
+ * adds the deadline of commands, the commands of the older versions have none.</p>
+ * <p>
+ * <p>A batch holds its commands, and a batch result its outcomes, each with its manifest and without a version of
+ * its own, written with the version of the batch.</p>
+ * <p>
+ * <p>Messages are also read from byte buffers, so a journal that keeps the events in memory mapped files can
+ * deserialize them without copying them first.</p>
+ */
+public class AccountSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+    static final int IDENTIFIER = 9_100_001;
+
+    private static final byte VERSION_1 = 1;
+    private static final byte VERSION_2 = 2;
+    private static final byte VERSION_3 = 3;
+    private static final byte VERSION_4 = 4;
+    private static final byte CURRENT_VERSION = VERSION_4;
+
+    private static final String ACCOUNT_IDENTIFIER = "AI";
+    private static final String CURRENCY_VALUE = "CV";
+    private static final String ACCOUNT = "A";
+    private static final String COMMAND_DEPOSIT = "CD";
+    private static final String COMMAND_WITHDRAWAL = "CW";
+    private static final String COMMAND_GET_ACCOUNT = "CG";
+    private static final String EVENT_DEPOSIT = "ED";
+    private static final String EVENT_WITHDRAWAL = "EW";
+    private static final String GET_ACCOUNT_RESPONSE = "GR";
+    private static final String GET_ACCOUNT_NOT_FOUND = "GN";
+    private static final String COMMAND_REJECTED = "CR";
+    private static final String COMMAND_OUTCOME_UNKNOWN = "CU";
+    private static final String COMMAND_BATCH = "CB";
+    private static final String COMMAND_ACCOUNT_BATCH = "CA";
+    private static final String COMMAND_BATCH_RESULT = "BR";
+
+    @Override
+    public int identifier() {
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof EventDeposit) return EVENT_DEPOSIT;
+        if (o instanceof EventWithdrawal) return EVENT_WITHDRAWAL;
+        if (o instanceof CommandDeposit) return COMMAND_DEPOSIT;
+        if (o instanceof CommandWithdrawal) return COMMAND_WITHDRAWAL;
+        if (o instanceof CommandGetAccount) return COMMAND_GET_ACCOUNT;
+        if (o instanceof GetAccountResponse) return GET_ACCOUNT_RESPONSE;
+        if (o instanceof GetAccountNotFound) return GET_ACCOUNT_NOT_FOUND;
+        if (o instanceof Account) return ACCOUNT;
+        if (o instanceof CurrencyValue) return CURRENCY_VALUE;
+        if (o instanceof AccountIdentifier) return ACCOUNT_IDENTIFIER;
+        if (o instanceof CommandRejected) return COMMAND_REJECTED;
+        if (o instanceof CommandOutcomeUnknown) return COMMAND_OUTCOME_UNKNOWN;
+        if (o instanceof CommandBatch) return COMMAND_BATCH;
+        if (o instanceof CommandAccountBatch) return COMMAND_ACCOUNT_BATCH;
+        if (o instanceof CommandBatchResult) return COMMAND_BATCH_RESULT;
+        throw new IllegalArgumentException(String.format("Cannot serialize %s", o.getClass().getName()));
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeByte(CURRENT_VERSION);
+            write(o, out);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void toBinary(Object o, ByteBuffer buffer) {
+        buffer.put(toBinary(o));
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) {
+        return fromBinary(new DataInputStream(new ByteArrayInputStream(bytes)), manifest);
+    }
+
+    @Override
+    public Object fromBinary(ByteBuffer buffer, String manifest) {
+        return fromBinary(new DataInputStream(new ByteBufferInputStream(buffer)), manifest);
+    }
+
+    private Object fromBinary(DataInputStream in, String manifest) {
+        try {
+            byte version = in.readByte();
+            if (version < VERSION_1 || version > VERSION_4) {
+                throw new IllegalArgumentException(String.format("Unsupported version %d of manifest %s", version, manifest));
+            }
+            return read(manifest, version, in);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(Object o, DataOutput out) throws IOException {
+        if (o instanceof EventDeposit) {
+            EventDeposit eventDeposit = (EventDeposit) o;
+            writeAccountIdentifier(eventDeposit.accountIdentifier(), out);
+            writeCurrencyValue(eventDeposit.amount(), out);
+            writeTime(eventDeposit.time(), out);
+        } else if (o instanceof EventWithdrawal) {
+            EventWithdrawal eventWithdrawal = (EventWithdrawal) o;
+            writeAccountIdentifier(eventWithdrawal.accountIdentifier(), out);
+            writeCurrencyValue(eventWithdrawal.amount(), out);
+            writeTime(eventWithdrawal.time(), out);
+        } else if (o instanceof CommandDeposit) {
+            CommandDeposit commandDeposit = (CommandDeposit) o;
+            writeAccountIdentifier(commandDeposit.accountIdentifier(), out);
+            writeCurrencyValue(commandDeposit.amount(), out);
+            writeVarLong(commandDeposit.deadline(), out);
+        } else if (o instanceof CommandWithdrawal) {
+            CommandWithdrawal commandWithdrawal = (CommandWithdrawal) o;
+            writeAccountIdentifier(commandWithdrawal.accountIdentifier(), out);
+            writeCurrencyValue(commandWithdrawal.amount(), out);
+            writeVarLong(commandWithdrawal.deadline(), out);
+        } else if (o instanceof CommandGetAccount) {
+            CommandGetAccount commandGetAccount = (CommandGetAccount) o;
+            writeAccountIdentifier(commandGetAccount.accountIdentifier(), out);
+            writeVarLong(commandGetAccount.deadline(), out);
+        } else if (o instanceof GetAccountResponse) {
+            writeAccount(((GetAccountResponse) o).account(), out);
+        } else if (o instanceof GetAccountNotFound) {
+            writeAccountIdentifier(((GetAccountNotFound) o).accountIdentifier(), out);
+        } else if (o instanceof Account) {
+            writeAccount((Account) o, out);
+        } else if (o instanceof CurrencyValue) {
+            writeCurrencyValue((CurrencyValue) o, out);
+        } else if (o instanceof AccountIdentifier) {
+            writeAccountIdentifier((AccountIdentifier) o, out);
+        } else if (o instanceof CommandRejected) {
+            out.writeUTF(((CommandRejected) o).reason());
+        } else if (o instanceof CommandOutcomeUnknown) {
+            out.writeUTF(((CommandOutcomeUnknown) o).reason());
+        } else if (o instanceof CommandBatch) {
+            CommandBatch commandBatch = (CommandBatch) o;
+            writeVarLong(commandBatch.deadline(), out);
+            writeNested(commandBatch.commands(), out);
+        } else if (o instanceof CommandAccountBatch) {
+            CommandAccountBatch commandAccountBatch = (CommandAccountBatch) o;
+            writeAccountIdentifier(commandAccountBatch.accountIdentifier(), out);
+            writeVarLong(commandAccountBatch.deadline(), out);
+            writeNested(commandAccountBatch.commands(), out);
+        } else if (o instanceof CommandBatchResult) {
+            writeNested(((CommandBatchResult) o).outcomes(), out);
+        } else {
+            throw new IllegalArgumentException(String.format("Cannot serialize %s", o.getClass().getName()));
+        }
+    }
+
+    private Object read(String manifest, byte version, DataInput in) throws IOException {
+        switch (manifest) {
+            case EVENT_DEPOSIT:
+                return new EventDeposit(readAccountIdentifier(in), readCurrencyValue(version, in), readTime(version, in));
+            case EVENT_WITHDRAWAL:
+                return new EventWithdrawal(readAccountIdentifier(in), readCurrencyValue(version, in), readTime(version, in));
+            case COMMAND_DEPOSIT:
+                return new CommandDeposit(readAccountIdentifier(in), readCurrencyValue(version, in), readDeadline(version, in));
+            case COMMAND_WITHDRAWAL:
+                return new CommandWithdrawal(readAccountIdentifier(in), readCurrencyValue(version, in), readDeadline(version, in));
+            case COMMAND_GET_ACCOUNT:
+                return new CommandGetAccount(readAccountIdentifier(in), readDeadline(version, in));
+            case GET_ACCOUNT_RESPONSE:
+                return new GetAccountResponse(readAccount(version, in));
+            case GET_ACCOUNT_NOT_FOUND:
+                return new GetAccountNotFound(readAccountIdentifier(in));
+            case ACCOUNT:
+                return readAccount(version, in);
+            case CURRENCY_VALUE:
+                return readCurrencyValue(version, in);
+            case ACCOUNT_IDENTIFIER:
+                return readAccountIdentifier(in);
+            case COMMAND_REJECTED:
+                return new CommandRejected(in.readUTF());
+            case COMMAND_OUTCOME_UNKNOWN:
+                return new CommandOutcomeUnknown(in.readUTF());
+            case COMMAND_BATCH: {
+                long deadline = readVarLong(in);
+                return new CommandBatch(readNested(Command.class, version, in), deadline);
+            }
+            case COMMAND_ACCOUNT_BATCH: {
+                AccountIdentifier accountIdentifier = readAccountIdentifier(in);
+                long deadline = readVarLong(in);
+                return new CommandAccountBatch(accountIdentifier, readNested(Command.class, version, in), deadline);
+            }
+            case COMMAND_BATCH_RESULT:
+                return new CommandBatchResult(readNested(Object.class, version, in).toArray());
+            default:
+                throw new IllegalArgumentException(String.format("Unknown manifest %s", manifest));
+        }
+    }
+
+    private void writeNested(List<?> messages, DataOutput out) throws IOException {
+        writeVarLong(messages.size(), out);
+        for (Object message : messages) {
+            out.writeUTF(manifest(message));
+            write(message, out);
+        }
+    }
+
+    private <T> List<T> readNested(Class<T> type, byte version, DataInput in) throws IOException {
+        int size = (int) readVarLong(in);
+        List<T> messages = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+            messages.add(type.cast(read(in.readUTF(), version, in)));
+        }
+        return messages;
+    }
+
+    private static void writeAccount(Account account, DataOutput out) throws IOException {
+        writeAccountIdentifier(account.accountIdentifier(), out);
+        writeCurrencyValue(account.balance(), out);
+    }
+
+    private static Account readAccount(byte version, DataInput in) throws IOException {
+        return new Account(readAccountIdentifier(in), readCurrencyValue(version, in));
+    }
+
+    private static void writeAccountIdentifier(AccountIdentifier accountIdentifier, DataOutput out) throws IOException {
+        out.writeUTF(accountIdentifier.identifier());
+    }
+
+    private static AccountIdentifier readAccountIdentifier(DataInput in) throws IOException {
+        return AccountIdentifier.create(in.readUTF());
+    }
+
+    private static void writeCurrencyValue(CurrencyValue currencyValue, DataOutput out) throws IOException {
+        writeVarLong(currencyValue.units(), out);
+        out.writeUTF(currencyValue.currency().getCurrencyCode());
+    }
+
+    private static CurrencyValue readCurrencyValue(byte version, DataInput in) throws IOException {
+        if (version == VERSION_1) {
+            BigDecimal amount = readBigDecimal(in);
+            return CurrencyValue.create(amount.setScale(CurrencyValue.scale(CurrencyValue.DEFAULT_CURRENCY), RoundingMode.HALF_EVEN));
+        } else {
+            long units = readVarLong(in);
+            return CurrencyValue.ofUnits(units, Currency.getInstance(in.readUTF()));
+        }
+    }
+
+    private static BigDecimal readBigDecimal(DataInput in) throws IOException {
+        int scale = (int) readVarLong(in);
+        int length = (int) readVarLong(in);
+
+        if (length == 0) {
+            return BigDecimal.valueOf(readVarLong(in), scale);
+        } else {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new BigDecimal(new BigInteger(bytes), scale);
+        }
+    }
+
+    private static void writeTime(long epochMicros, DataOutput out) throws IOException {
+        writeVarLong(epochMicros, out);
+    }
+
+    private static long readTime(byte version, DataInput in) throws IOException {
+        if (version < VERSION_3) {
+            long epochSecond = readVarLong(in);
+            long nano = readVarLong(in);
+            return EpochMicros.of(LocalDateTime.ofEpochSecond(epochSecond, (int) nano, ZoneOffset.UTC));
+        } else {
+            return readVarLong(in);
+        }
+    }
+
+    private static long readDeadline(byte version, DataInput in) throws IOException {
+        return version < VERSION_4 ? AccountAdmission.NO_DEADLINE : readVarLong(in);
+    }
+
+    /**
+     * Write a zig-zag encoded variable length long, 7 bits per byte.
+     */
+    private static void writeVarLong(long value, DataOutput out) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.writeByte((int) zigZag);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long zigZag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length long");
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+    }
+}
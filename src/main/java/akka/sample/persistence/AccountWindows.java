@@ -0,0 +1,319 @@
+package akka.sample.persistence;
+
+import akka.sample.persistence.AccountWriteSide.EventDeposit;
+import akka.sample.persistence.AccountWriteSide.EventWithdrawal;
+import akka.sample.persistence.AccountsView.AccountVolume;
+import akka.sample.persistence.AccountsView.GetWindows;
+import akka.sample.persistence.AccountsView.Totals;
+import akka.sample.persistence.AccountsView.Window;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event time window aggregates of the deposits and withdrawals of one read side, kept in memory.
+ * <p>
+ * <p>The events are added to tumbling panes of the configured pane size, by the time of the event, not the time
+ * that it is processed. A pane holds the count, sum, minimum and maximum of the deposits and of the withdrawals, and
+ * the accounts with the largest volumes, so each event updates a single pane. A window of a multiple of the pane
+ * size, tumbling or sliding by a multiple of the pane size, is the merge of the panes that it covers, which is done
+ * when it is queried.</p>
+ * <p>
+ * <p>The watermark is the latest event time seen less the allowed lateness. A window is closed when its end is at or
+ * before the watermark, and an event of a pane that is closed is late, it is counted and not added. The panes are
+ * held in a ring that covers the retention and the panes that are still open, a pane is evicted when the latest
+ * event time moves past the ring, so the state is bounded whatever the number of events and accounts.</p>
+ * <p>
+ * <p>The largest volumes of a pane are tracked with the space saving algorithm, in a bounded number of counters per
+ * pane. When a pane has more accounts than counters, an account that is not tracked takes the counter with the
+ * smallest volume and its count, so a volume may be overestimated, by at most the smallest volume of the pane, and
+ * the accounts with large volumes are kept.</p>
+ * <p>
+ * <p>The windows are not checkpointed. After a restart they are built again from the events after the offset of the
+ * checkpoint, so the windows that start before the first of these events are marked as partial, unless the read
+ * side started from the first offset. The amounts are in the minor units of the default currency, the events in
+ * other currencies are counted and not added.</p>
+ * <p>
+ * <p>This class is not thread safe, it is owned by a single actor.</p>
+ */
+class AccountWindows {
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final long paneMicros;
+    private final long allowedLatenessMicros;
+    private final int retainedPanes;
+    private final int topN;
+    private final int topCapacity;
+    private final boolean fromBeginning;
+    private final Pane[] panes;
+    private long latestPane = NONE;
+    private long firstPane = NONE;
+    private long latestTime = NONE;
+    private long late = 0;
+    private long otherCurrency = 0;
+
+    /**
+     * @param fromBeginning true when the read side processes the events of its tag from the first offset.
+     */
+    AccountWindows(ReadSideSettings settings, boolean fromBeginning) {
+        paneMicros = settings.windowPane().toMicros();
+        allowedLatenessMicros = settings.windowAllowedLateness().toMicros();
+        retainedPanes = (int) (settings.windowRetention().toMicros() / paneMicros);
+        topN = settings.windowTopN();
+        topCapacity = settings.windowTopCapacity();
+        this.fromBeginning = fromBeginning;
+        // The retained panes, the panes that are still open and the pane of the latest event.
+        panes = new Pane[retainedPanes + (int) (allowedLatenessMicros / paneMicros) + 2];
+        for (int i = 0; i < panes.length; i++) {
+            panes[i] = new Pane(topCapacity);
+        }
+    }
+
+    /**
+     * Adds a deposit or withdrawal event, other events are ignored.
+     *
+     * @return false when the event is late, or in another currency, and was not added.
+     */
+    boolean add(Object event) {
+        if (event instanceof EventDeposit) {
+            EventDeposit eventDeposit = (EventDeposit) event;
+            return add(eventDeposit.time(), eventDeposit.accountIdentifier(), eventDeposit.amount(), true);
+        }
+        else if (event instanceof EventWithdrawal) {
+            EventWithdrawal eventWithdrawal = (EventWithdrawal) event;
+            return add(eventWithdrawal.time(), eventWithdrawal.accountIdentifier(), eventWithdrawal.amount(), false);
+        }
+        return false;
+    }
+
+    private boolean add(long time, AccountIdentifier accountIdentifier, CurrencyValue amount, boolean deposit) {
+        if (!amount.currency().equals(CurrencyValue.DEFAULT_CURRENCY)) {
+            otherCurrency++;
+            return false;
+        }
+        long pane = Math.floorDiv(time, paneMicros);
+
+        if (latestPane != NONE && (pane + 1) * paneMicros <= watermark()) {
+            late++;
+            return false;
+        }
+        if (firstPane == NONE || pane < firstPane) {
+            firstPane = pane;
+        }
+        if (latestTime == NONE || time > latestTime) {
+            latestTime = time;
+            advance(pane);
+        }
+
+        Pane slot = panes[slot(pane)];
+        if (slot.number != pane) {
+            // An event before the first pane, within the allowed lateness.
+            slot.reset(pane);
+        }
+        (deposit ? slot.deposits : slot.withdrawals).add(amount.units());
+        slot.top.add(accountIdentifier.identifier(), amount.units());
+        return true;
+    }
+
+    /**
+     * Moves the latest pane forward, the panes that the ring no longer covers are evicted and their slots reused.
+     */
+    private void advance(long pane) {
+        if (latestPane != NONE && pane <= latestPane) {
+            return;
+        }
+        long from = latestPane == NONE ? pane : Math.max(latestPane + 1, pane - panes.length + 1);
+        for (long reused = from; reused <= pane; reused++) {
+            panes[slot(reused)].reset(reused);
+        }
+        latestPane = pane;
+    }
+
+    /**
+     * @return the event time before which the panes are closed, in microseconds since the epoch.
+     */
+    long watermark() {
+        return latestTime == NONE ? NONE : latestTime - allowedLatenessMicros;
+    }
+
+    long late() {
+        return late;
+    }
+
+    long otherCurrency() {
+        return otherCurrency;
+    }
+
+    /**
+     * @return the latest windows of the query, oldest first, up to the window of the latest event. The windows that
+     * start before the retained panes are left out.
+     */
+    List<Window> windows(GetWindows getWindows) {
+        if (latestPane == NONE) {
+            return Collections.emptyList();
+        }
+        long size = getWindows.size().toMicros() / paneMicros;
+        long slide = getWindows.slide().toMicros() / paneMicros;
+        long oldestPane = latestPane - retainedPanes;
+        long lastEnd = Math.floorDiv(latestPane, slide) * slide + slide;
+        List<Window> windows = new ArrayList<>(Math.min(getWindows.count(), retainedPanes + 1));
+
+        for (long end = lastEnd, n = 0; n < getWindows.count() && end - size >= oldestPane; end -= slide, n++) {
+            windows.add(window(end - size, end));
+        }
+        Collections.reverse(windows);
+        return windows;
+    }
+
+    private Window window(long start, long end) {
+        Totals deposits = Totals.EMPTY;
+        Totals withdrawals = Totals.EMPTY;
+        Map<String, Long> volumes = new HashMap<>();
+
+        for (long pane = start; pane < end; pane++) {
+            Pane slot = panes[slot(pane)];
+            if (slot.number == pane) {
+                deposits = deposits.merge(slot.deposits.totals());
+                withdrawals = withdrawals.merge(slot.withdrawals.totals());
+                slot.top.addTo(volumes);
+            }
+        }
+        return new Window(start * paneMicros, end * paneMicros, end * paneMicros <= watermark(),
+                !fromBeginning && start <= firstPane, deposits, withdrawals, top(volumes, topN));
+    }
+
+    /**
+     * @return the accounts with the largest volumes, largest first.
+     */
+    static List<AccountVolume> top(Map<String, Long> volumes, int n) {
+        List<AccountVolume> top = new ArrayList<>(volumes.size());
+        volumes.forEach((identifier, units) -> top.add(new AccountVolume(AccountIdentifier.create(identifier),
+                CurrencyValue.ofUnits(units, CurrencyValue.DEFAULT_CURRENCY))));
+        top.sort((a, b) -> Long.compare(b.volume().units(), a.volume().units()));
+        return top.size() > n ? new ArrayList<>(top.subList(0, n)) : top;
+    }
+
+    /**
+     * @return null when the windows of the query can be built from the panes, or why not.
+     */
+    static String invalid(GetWindows getWindows, ReadSideSettings settings) {
+        long pane = settings.windowPane().toMicros();
+        long size = getWindows.size().toMicros();
+        long slide = getWindows.slide().toMicros();
+
+        if (size <= 0 || slide <= 0 || size % pane != 0 || slide % pane != 0) {
+            return String.format("Window size %s and slide %s must be multiples of the pane %s", getWindows.size(),
+                    getWindows.slide(), settings.windowPane());
+        }
+        if (size > settings.windowRetention().toMicros()) {
+            return String.format("Window size %s exceeds the retention %s", getWindows.size(), settings.windowRetention());
+        }
+        if (getWindows.count() <= 0) {
+            return String.format("Window count %d must be positive", getWindows.count());
+        }
+        return null;
+    }
+
+    private int slot(long pane) {
+        return (int) Math.floorMod(pane, (long) panes.length);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[pane %ds, %d panes, watermark %s, late %d, other currency %d]",
+                getClass().getSimpleName(), TimeUnit.MICROSECONDS.toSeconds(paneMicros), panes.length,
+                latestTime == NONE ? "none" : EpochMicros.toString(watermark()), late, otherCurrency);
+    }
+
+    /**
+     * The aggregates of the events of one pane.
+     */
+    private static class Pane {
+        private long number = NONE;
+        private final Aggregate deposits = new Aggregate();
+        private final Aggregate withdrawals = new Aggregate();
+        private final TopAccounts top;
+
+        private Pane(int capacity) {
+            top = new TopAccounts(capacity);
+        }
+
+        private void reset(long number) {
+            this.number = number;
+            deposits.reset();
+            withdrawals.reset();
+            top.reset();
+        }
+    }
+
+    private static class Aggregate {
+        private long count;
+        private long sum;
+        private long min;
+        private long max;
+
+        private void add(long units) {
+            min = count == 0 ? units : Math.min(min, units);
+            max = count == 0 ? units : Math.max(max, units);
+            sum += units;
+            count++;
+        }
+
+        private void reset() {
+            count = sum = min = max = 0;
+        }
+
+        private Totals totals() {
+            return count == 0 ? Totals.EMPTY : new Totals(count, sum, min, max);
+        }
+    }
+
+    /**
+     * The accounts with the largest volumes of a pane, in a bounded number of space saving counters.
+     */
+    private static class TopAccounts {
+        private final int capacity;
+        private final Map<String, long[]> volumes;
+
+        private TopAccounts(int capacity) {
+            this.capacity = capacity;
+            volumes = new HashMap<>(capacity * 2);
+        }
+
+        private void add(String identifier, long units) {
+            long[] volume = volumes.get(identifier);
+            if (volume != null) {
+                volume[0] += units;
+            }
+            else if (volumes.size() < capacity) {
+                volumes.put(identifier, new long[]{units});
+            }
+            else {
+                volumes.put(identifier, new long[]{evictSmallest() + units});
+            }
+        }
+
+        private long evictSmallest() {
+            Map.Entry<String, long[]> smallest = null;
+            for (Map.Entry<String, long[]> entry : volumes.entrySet()) {
+                if (smallest == null || entry.getValue()[0] < smallest.getValue()[0]) {
+                    smallest = entry;
+                }
+            }
+            volumes.remove(smallest.getKey());
+            return smallest.getValue()[0];
+        }
+
+        private void addTo(Map<String, Long> merged) {
+            volumes.forEach((identifier, volume) -> merged.merge(identifier, volume[0], Long::sum));
+        }
+
+        private void reset() {
+            volumes.clear();
+        }
+    }
+}
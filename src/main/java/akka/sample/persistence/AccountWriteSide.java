@@ -1,46 +1,127 @@
 package akka.sample.persistence;
 
-import akka.actor.ActorSystem;
+import akka.actor.ActorRef;
 import akka.actor.Cancellable;
 import akka.actor.Props;
-import akka.cluster.Cluster;
-import akka.cluster.Member;
+import akka.cluster.sharding.ShardRegion;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import akka.japi.pf.ReceiveBuilder;
 import akka.persistence.AbstractPersistentActor;
+import akka.persistence.DeleteMessagesFailure;
+import akka.persistence.DeleteMessagesSuccess;
+import akka.persistence.DeleteSnapshotsFailure;
+import akka.persistence.DeleteSnapshotsSuccess;
 import akka.persistence.RecoveryCompleted;
+import akka.persistence.ReplyToStrategy;
+import akka.persistence.SaveSnapshotFailure;
 import akka.persistence.SaveSnapshotSuccess;
 import akka.persistence.SnapshotOffer;
+import akka.persistence.SnapshotSelectionCriteria;
+import akka.persistence.StashOverflowStrategy;
 import akka.persistence.journal.Tagged;
 import scala.Option;
-import scala.concurrent.duration.Duration;
-import scala.concurrent.duration.FiniteDuration;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.concurrent.TimeUnit;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * An account persistence actor with a banking account state.
+ * <p>
+ * <p>Accounts are cluster sharded entities, see {@link AccountsWriteSide}. The entity identifier is the account
+ * identifier, which is also the persistence identifier. An idle account asks its shard to passivate it.</p>
+ * <p>
+ * <p>Snapshots are saved after a configured number of events, once the events of the journal writes in flight have
+ * been applied, and when the account is passivated, so the number of events that are replayed on recovery is
+ * bounded. Only the configured number of the most recent snapshots is kept.</p>
+ * <p>
+ * <p>When group commit is enabled, commands that arrive while a journal write is in flight are buffered and then
+ * written together with a single {@code persistAllAsync}. Events are applied and replies are sent in the order that
+ * the commands were received. The commands of a write that the journal rejects are rejected, and the buffered
+ * commands are written next.</p>
+ * <p>
+ * <p>The commands of a {@link CommandAccountBatch} are written together with a single {@code persistAll}, or as part
+ * of a group commit, and answered with one {@link CommandBatchResult}. A command of the batch that is not in the
+ * currency of the account, or is not a deposit or a withdrawal, is rejected without rejecting the others.</p>
+ * <p>
+ * <p>A deposit or withdrawal is checked against the balance with the events that were accepted and not yet applied
+ * before its event is written, and rejected when it is not in the currency of the account or would overflow the
+ * balance. So every event that is written can be applied, and an event that cannot, which was written before these
+ * checks, is skipped and logged instead of failing the recovery of the account.</p>
+ * <p>
+ * <p>A command is admitted before it is processed. It is rejected when its deadline has passed, when the journal
+ * writes that are queued in the account and its own write are not expected to complete before its deadline, or when
+ * the account or the node has too many commands queued, see {@link AccountAdmission}.</p>
+ * <p>
+ * <p>The accounts run on their own dispatcher, {@code account.write-side.dispatcher}, so commands do not wait for
+ * threads that are busy with the read side.</p>
  */
 class AccountWriteSide extends AbstractPersistentActor {
+    static final String MAILBOX = "account.write-side.mailbox";
+    static final String DISPATCHER = "account.write-side.dispatcher";
+    private static final StashOverflowStrategy STASH_OVERFLOW = new ReplyToStrategy(new CommandRejected("Stash overflow"));
+
     private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final WriteSideSettings settings;
+    private final AccountMetrics metrics = AccountMetrics.get(context().system());
+    private final AccountBalanceCache balanceCache = AccountBalanceCache.get(context().system());
+    private final AccountAdmission admission = AccountAdmission.get(context().system());
+    // The commands that were admitted and not yet replied to, and when the last journal write started.
+    private int admitted = 0;
+    private long writeStarted;
+    private AccountBalanceCache.Entry balanceEntry;
+    private boolean passivating = false;
+    private final List<PendingCommand> pendingCommands = new ArrayList<>();
+    private final ArrayDeque<PendingCommand> inFlightCommands = new ArrayDeque<>();
+    // The command of each event, or deferred command, of the group commit writes in flight, by identity.
+    private final Map<Object, PendingCommand> inFlightEvents = new IdentityHashMap<>();
     private Account account;
-    private Cancellable snapshotScheduler;
-    private Cancellable idleTimeout;
+    // The balance in minor units with the events that were accepted and not yet applied.
+    private long acceptedBalance;
+    private final scala.collection.immutable.Set<String> eventTags;
+    private final ActorRef passivation;
+    private final AccountPassivation.Entry activity = new AccountPassivation.Entry(self());
+    private Cancellable lingerTimeout;
     private boolean persisted = false;
-    private boolean pendingChanges = false;
-
-    {
-        resetIdleTimeout();
-        scheduleSnapshot();
+    private boolean stopping = false;
+    private boolean commandsReceived = false;
+    private long eventsSinceSnapshot = 0;
+    // The events that were passed to the journal and not yet applied or rejected.
+    private int eventsInFlight = 0;
+    private boolean snapshotInProgress = false;
+    private final ArrayDeque<Long> snapshotSequenceNrs = new ArrayDeque<>();
+    private final long recoveryStarted = System.nanoTime();
+    private boolean recoveryRunning = true;
+    private boolean recoveryStepped = false;
+    private long eventsReplayed = 0;
+    private long snapshotStarted;
+
+    AccountWriteSide(AccountIdentifier accountIdentifier, WriteSideSettings settings) {
+        this.account = new Account(accountIdentifier, CurrencyValue.zero());
+        this.settings = settings;
+        this.eventTags = settings.eventTags().tagSetFor(accountIdentifier);
+        this.passivation = ActorRef.noSender();
     }
 
-    AccountWriteSide(AccountIdentifier accountIdentifier) {
-        this.account = new Account(accountIdentifier, CurrencyValue.zero());
+    AccountWriteSide(WriteSideSettings settings, ActorRef passivation) {
+        this.account = new Account(AccountIdentifier.create(entityId()), CurrencyValue.zero());
+        this.settings = settings;
+        this.eventTags = settings.eventTags().tagSetFor(account.accountIdentifier());
+        this.passivation = passivation;
     }
 
     @Override
@@ -48,8 +129,19 @@ class AccountWriteSide extends AbstractPersistentActor {
         return account.accountIdentifier().identifier();
     }
 
-    static Props props(AccountIdentifier accountIdentifier) {
-        return Props.create(AccountWriteSide.class, accountIdentifier);
+    /**
+     * Props of an account that is not sharded and is not passivated when idle.
+     */
+    static Props props(AccountIdentifier accountIdentifier, WriteSideSettings settings) {
+        return Props.create(AccountWriteSide.class, accountIdentifier, settings).withMailbox(MAILBOX).withDispatcher(DISPATCHER);
+    }
+
+    /**
+     * Props of the sharded entity, which takes its account identifier from its actor name and is passivated by the
+     * {@link AccountPassivation} of its node when idle.
+     */
+    static Props props(WriteSideSettings settings, ActorRef passivation) {
+        return Props.create(AccountWriteSide.class, settings, passivation).withMailbox(MAILBOX).withDispatcher(DISPATCHER);
     }
 
     @Override
@@ -68,12 +160,30 @@ class AccountWriteSide extends AbstractPersistentActor {
                 .match(CommandDeposit.class, this::receiveCommandDeposit)
                 .match(CommandWithdrawal.class, this::receiveCommendWithdrawal)
                 .match(CommandGetAccount.class, this::getAccount)
-                .match(IdleTimeout.class, this::receiveTimeout)
-                .match(SnapshotTick.class, this::snapshotPendingChanges)
+                .match(CommandAccountBatch.class, this::receiveCommandBatch)
+                .match(AccountPassivation.IdleTimeout.class, this::receiveTimeout)
                 .match(SaveSnapshotSuccess.class, this::snapshotSuccess)
+                .match(SaveSnapshotFailure.class, this::snapshotFailure)
+                .match(DeleteSnapshotsSuccess.class, this::deleteSnapshotsSuccess)
+                .match(DeleteSnapshotsFailure.class, this::deleteSnapshotsFailure)
+                .match(DeleteMessagesSuccess.class, this::deleteMessagesSuccess)
+                .match(DeleteMessagesFailure.class, this::deleteMessagesFailure)
+                .match(FlushPendingCommands.class, this::flushPendingCommands)
+                .match(Stop.class, this::stop)
                 .build();
     }
 
+    /**
+     * Commands that arrive while the account waits for a recovery permit, recovers or persists an event are stashed.
+     * The stash is bounded by the stash capacity of the mailbox, commands that do not fit are rejected. The strategy
+     * is only asked for when a command does not fit, so that is where the overflow is counted.
+     */
+    @Override
+    public StashOverflowStrategy internalStashOverflowStrategy() {
+        metrics.stashOverflow();
+        return STASH_OVERFLOW;
+    }
+
     @Override
     public void onPersistFailure(Throwable cause, Object event, long seqNr) {
         super.onPersistFailure(cause, event, seqNr);
@@ -81,7 +191,20 @@ class AccountWriteSide extends AbstractPersistentActor {
 
     @Override
     public void onPersistRejected(Throwable cause, Object event, long seqNr) {
+        // The event is not applied, so it no longer counts in the accepted balance.
+        eventsInFlight--;
+        Object payload = event instanceof Tagged ? ((Tagged) event).payload() : event;
+        if (payload instanceof EventDeposit) {
+            acceptedBalance -= ((EventDeposit) payload).amount().units();
+        } else if (payload instanceof EventWithdrawal) {
+            acceptedBalance += ((EventWithdrawal) payload).amount().units();
+        }
         super.onPersistRejected(cause, event, seqNr);
+
+        PendingCommand pendingCommand = inFlightEvents.remove(event);
+        if (pendingCommand != null) {
+            groupCommitRejected(pendingCommand, payload, cause);
+        }
     }
 
     @Override
@@ -90,216 +213,780 @@ class AccountWriteSide extends AbstractPersistentActor {
     }
 
     private void recoverEventDeposit(EventDeposit eventDeposit) {
-        log.info("Recover {}", eventDeposit);
-        account.deposit(eventDeposit.amount());
+        log.debug("Recover {}", eventDeposit);
+        recoveryStep();
+        if (!account.deposit(eventDeposit.amount())) {
+            log.error("Skip {} that cannot be applied to {}", eventDeposit, account);
+        }
         persisted = true;
+        eventsReplayed++;
+        eventsSinceSnapshot++;
     }
 
     private void recoverEventWithdrawal(EventWithdrawal eventWithdrawal) {
-        log.info("Recover {}", eventWithdrawal);
-        account.withdrawal(eventWithdrawal.amount());
+        log.debug("Recover {}", eventWithdrawal);
+        recoveryStep();
+        if (!account.withdrawal(eventWithdrawal.amount())) {
+            log.error("Skip {} that cannot be applied to {}", eventWithdrawal, account);
+        }
         persisted = true;
+        eventsReplayed++;
+        eventsSinceSnapshot++;
     }
 
     private void recoverSnapshot(SnapshotOffer snapshotOffer) {
-        log.info("Recover {} {}", snapshotOffer, snapshotOffer.snapshot());
+        log.debug("Recover {} {}", snapshotOffer, snapshotOffer.snapshot());
+        recoveryStep();
         account = (Account) snapshotOffer.snapshot();
         persisted = true;
+        snapshotSequenceNrs.add(snapshotOffer.metadata().sequenceNr());
+    }
+
+    /**
+     * The first command of an account is the one that started it, so it counts as a miss of the active accounts.
+     */
+    private void commandReceived() {
+        activity.touch();
+        if (commandsReceived) {
+            metrics.entityHit();
+        } else {
+            commandsReceived = true;
+            metrics.entityMiss();
+        }
     }
 
     private void receiveCommandDeposit(CommandDeposit commandDeposit) {
-        log.info("Command {}", commandDeposit);
+        log.debug("Command {}", commandDeposit);
+        commandReceived();
+        if (!admit(commandDeposit, 1)) {
+            return;
+        }
+        String rejected = account.rejectDeposit(commandDeposit.amount(), acceptedBalance);
+        if (rejected != null) {
+            reject(commandDeposit, rejected);
+            return;
+        }
+        acceptedBalance += commandDeposit.amount().units();
         EventDeposit eventDeposit = new EventDeposit(account.accountIdentifier(), commandDeposit.amount());
+        long received = System.nanoTime();
 
-        persist(asTagged(eventDeposit, "account"), this::depositPersisted);
+        if (settings.groupCommitEnabled()) {
+            bufferCommand(eventDeposit, received);
+        } else {
+            writeStarted = received;
+            eventsInFlight++;
+            persist(asTagged(eventDeposit), tagged -> deposited((EventDeposit) tagged.payload(), getSender(), received));
+        }
     }
 
-    private void depositPersisted(Tagged tagged) {
-        EventDeposit eventDeposit = (EventDeposit) tagged.payload();
-        account.deposit(eventDeposit.amount());
-        getSender().tell(eventDeposit, self());
-        resetIdleTimeout();
-        persisted = pendingChanges = true;
-        log.info("State change {} deposit {}", account, eventDeposit.amount());
+    private void deposited(EventDeposit eventDeposit, ActorRef replyTo, long received) {
+        long persistedAt = System.nanoTime();
+        if (!account.deposit(eventDeposit.amount())) {
+            log.error("Skip {} that cannot be applied to {}", eventDeposit, account);
+        }
+        persisted = true;
+        publishBalance();
+        replyTo.tell(eventDeposit, self());
+        replied();
+        metrics.commandToPersist(persistedAt - received);
+        metrics.persistToReply(System.nanoTime() - persistedAt);
+        eventPersisted();
+        log.debug("State change {} deposit {}", account, eventDeposit.amount());
     }
 
     private void receiveCommendWithdrawal(CommandWithdrawal commandWithdrawal) {
-        log.info("Command {}", commandWithdrawal);
+        log.debug("Command {}", commandWithdrawal);
+        commandReceived();
+        if (!admit(commandWithdrawal, 1)) {
+            return;
+        }
+        String rejected = account.rejectWithdrawal(commandWithdrawal.amount(), acceptedBalance);
+        if (rejected != null) {
+            reject(commandWithdrawal, rejected);
+            return;
+        }
+        acceptedBalance -= commandWithdrawal.amount().units();
         EventWithdrawal eventWithdrawal = new EventWithdrawal(account.accountIdentifier(), commandWithdrawal.amount());
+        long received = System.nanoTime();
 
-        persist(asTagged(eventWithdrawal, "account"), this::withdrawalPersisted);
+        if (settings.groupCommitEnabled()) {
+            bufferCommand(eventWithdrawal, received);
+        } else {
+            writeStarted = received;
+            eventsInFlight++;
+            persist(asTagged(eventWithdrawal), tagged -> withdrawn((EventWithdrawal) tagged.payload(), getSender(), received));
+        }
     }
 
-    private void withdrawalPersisted(Tagged tagged) {
-        EventWithdrawal eventWithdrawal = (EventWithdrawal) tagged.payload();
-        account.withdrawal(eventWithdrawal.amount());
-        getSender().tell(eventWithdrawal, self());
-        resetIdleTimeout();
-        persisted = pendingChanges = true;
-        log.info("State change {} withdraw {}", account, eventWithdrawal.amount());
+    private void withdrawn(EventWithdrawal eventWithdrawal, ActorRef replyTo, long received) {
+        long persistedAt = System.nanoTime();
+        if (!account.withdrawal(eventWithdrawal.amount())) {
+            log.error("Skip {} that cannot be applied to {}", eventWithdrawal, account);
+        }
+        persisted = true;
+        publishBalance();
+        replyTo.tell(eventWithdrawal, self());
+        replied();
+        metrics.commandToPersist(persistedAt - received);
+        metrics.persistToReply(System.nanoTime() - persistedAt);
+        eventPersisted();
+        log.debug("State change {} withdraw {}", account, eventWithdrawal.amount());
     }
 
     private void getAccount(CommandGetAccount commandGetAccount) {
+        commandReceived();
+        if (!admit(commandGetAccount, 0)) {
+            return;
+        }
+        if (settings.groupCommitEnabled() && (!pendingCommands.isEmpty() || !inFlightCommands.isEmpty())) {
+            // Keep the reply behind the writes that were received before it.
+            bufferCommand(commandGetAccount, System.nanoTime());
+        } else {
+            replyGetAccount(commandGetAccount, getSender());
+        }
+    }
+
+    private void reject(Command command, String reason) {
+        getSender().tell(new CommandRejected(reason), self());
+        replied();
+        log.debug("Reject {}, {}", command, reason);
+    }
+
+    private void replyGetAccount(CommandGetAccount commandGetAccount, ActorRef replyTo) {
         if (persisted) {
-            getSender().tell(new GetAccountResponse(account), self());
-            log.info("Get account {}", account);
+            replyTo.tell(new GetAccountResponse(account.copy()), self());
+            log.debug("Get account {}", account);
+        } else {
+            replyTo.tell(new GetAccountNotFound(commandGetAccount.accountIdentifier()), self());
+            log.debug("Get account {} not found", commandGetAccount.accountIdentifier);
+        }
+        replied();
+    }
+
+    private void receiveCommandBatch(CommandAccountBatch commandBatch) {
+        log.debug("Command {}", commandBatch);
+        commandReceived();
+        if (!admit(commandBatch, 1)) {
+            return;
+        }
+        PendingBatch batch = new PendingBatch(commandBatch.commands().size());
+
+        for (int i = 0; i < commandBatch.commands().size(); i++) {
+            Command command = commandBatch.commands().get(i);
+            Object event;
+            String rejected;
+            if (command instanceof CommandDeposit) {
+                CurrencyValue amount = ((CommandDeposit) command).amount();
+                rejected = account.rejectDeposit(amount, acceptedBalance);
+                event = new EventDeposit(account.accountIdentifier(), amount);
+            } else if (command instanceof CommandWithdrawal) {
+                CurrencyValue amount = ((CommandWithdrawal) command).amount();
+                rejected = account.rejectWithdrawal(amount, acceptedBalance);
+                event = new EventWithdrawal(account.accountIdentifier(), amount);
+            } else {
+                batch.outcomes[i] = new CommandRejected(String.format("%s cannot be batched", command));
+                continue;
+            }
+            if (rejected != null) {
+                batch.outcomes[i] = new CommandRejected(rejected);
+            } else {
+                if (event instanceof EventDeposit) {
+                    acceptedBalance += ((EventDeposit) event).amount().units();
+                } else {
+                    acceptedBalance -= ((EventWithdrawal) event).amount().units();
+                }
+                batch.outcomes[i] = event;
+                batch.events.add(asTagged(event));
+            }
+        }
+        long received = System.nanoTime();
+
+        if (settings.groupCommitEnabled()) {
+            bufferCommand(batch, received);
+        } else if (batch.events.isEmpty()) {
+            getSender().tell(batch.result(), self());
+            replied();
+        } else {
+            ActorRef replyTo = getSender();
+            writeStarted = received;
+            eventsInFlight += batch.events.size();
+            persistAll(batch.events, tagged -> batchEventPersisted(batch, tagged.payload(), replyTo, received));
+        }
+    }
+
+    /**
+     * Applies a persisted event of a batch, and replies to the batch when it was the last one.
+     *
+     * @return true when the batch is done.
+     */
+    private boolean batchEventPersisted(PendingBatch batch, Object event, ActorRef replyTo, long received) {
+        if (event instanceof EventDeposit && !account.deposit(((EventDeposit) event).amount())
+                || event instanceof EventWithdrawal && !account.withdrawal(((EventWithdrawal) event).amount())) {
+            log.error("Skip {} that cannot be applied to {}", event, account);
+        }
+        if (event != batch) {
+            persisted = true;
+            publishBalance();
+            batch.completed++;
+            eventPersisted();
+        }
+        return batchCompleted(batch, replyTo, received);
+    }
+
+    /**
+     * Replies to a batch when all of its events were persisted or rejected.
+     *
+     * @return true when the batch is done.
+     */
+    private boolean batchCompleted(PendingBatch batch, ActorRef replyTo, long received) {
+        if (batch.completed < batch.events.size()) {
+            return false;
+        }
+
+        long persistedAt = System.nanoTime();
+        replyTo.tell(batch.result(), self());
+        replied();
+        metrics.commandToPersist(persistedAt - received);
+        metrics.persistToReply(System.nanoTime() - persistedAt);
+        if (log.isDebugEnabled()) {
+            log.debug("State change {} batch of {} events", account, batch.events.size());
+        }
+        return true;
+    }
+
+    private void bufferCommand(Object message, long received) {
+        pendingCommands.add(new PendingCommand(message, getSender(), received));
+
+        if (inFlightCommands.isEmpty()) {
+            if (pendingCommands.size() >= settings.groupCommitMaxBatchSize() || settings.groupCommitLinger().length() == 0) {
+                flushPendingCommands();
+            } else if (lingerTimeout == null) {
+                lingerTimeout = context().system().scheduler().scheduleOnce(
+                        settings.groupCommitLinger(),
+                        self(),
+                        new FlushPendingCommands(),
+                        context().system().dispatcher(),
+                        self());
+            }
+        }
+    }
+
+    private void flushPendingCommands(FlushPendingCommands flushPendingCommands) {
+        lingerTimeout = null;
+        if (inFlightCommands.isEmpty() && !pendingCommands.isEmpty()) {
+            flushPendingCommands();
+        }
+    }
+
+    private void flushPendingCommands() {
+        if (lingerTimeout != null) {
+            lingerTimeout.cancel();
+            lingerTimeout = null;
+        }
+
+        List<PendingCommand> batch = pendingCommands.subList(0, Math.min(pendingCommands.size(), settings.groupCommitMaxBatchSize()));
+        List<Tagged> events = new ArrayList<>(batch.size());
+        writeStarted = System.nanoTime();
+
+        for (PendingCommand pendingCommand : batch) {
+            inFlightCommands.add(pendingCommand);
+            if (pendingCommand.message instanceof CommandGetAccount
+                    || pendingCommand.message instanceof PendingBatch && ((PendingBatch) pendingCommand.message).events.isEmpty()) {
+                // Nothing to write, the reply waits for the writes before it.
+                persistBatch(events);
+                events = new ArrayList<>();
+                inFlightEvents.put(pendingCommand, pendingCommand);
+                deferAsync(pendingCommand, this::groupCommitted);
+            } else if (pendingCommand.message instanceof PendingBatch) {
+                for (Tagged event : ((PendingBatch) pendingCommand.message).events) {
+                    inFlightEvents.put(event, pendingCommand);
+                    events.add(event);
+                }
+            } else {
+                Tagged event = asTagged(pendingCommand.message);
+                inFlightEvents.put(event, pendingCommand);
+                events.add(event);
+            }
+        }
+        persistBatch(events);
+        if (log.isDebugEnabled()) {
+            log.debug("Group commit {} commands, {} pending", batch.size(), pendingCommands.size() - batch.size());
+        }
+        batch.clear();
+    }
+
+    private void persistBatch(List<Tagged> events) {
+        if (!events.isEmpty()) {
+            eventsInFlight += events.size();
+            persistAllAsync(events, this::groupCommitted);
+        }
+    }
+
+    /**
+     * Applies a persisted event, or replies to a deferred command, of a group commit. The command is found by the
+     * identity of the event, as the events of a write that the journal rejects are not handled here.
+     */
+    private void groupCommitted(Object event) {
+        PendingCommand pendingCommand = inFlightEvents.remove(event);
+
+        if (pendingCommand.message instanceof PendingBatch) {
+            PendingBatch batch = (PendingBatch) pendingCommand.message;
+            // A deferred batch has no events of its own.
+            Object payload = event instanceof Tagged ? ((Tagged) event).payload() : batch;
+            if (batchEventPersisted(batch, payload, pendingCommand.replyTo, pendingCommand.received)) {
+                inFlightCommands.remove(pendingCommand);
+            }
+        } else {
+            inFlightCommands.remove(pendingCommand);
+            if (pendingCommand.message instanceof EventDeposit) {
+                deposited((EventDeposit) pendingCommand.message, pendingCommand.replyTo, pendingCommand.received);
+            } else if (pendingCommand.message instanceof EventWithdrawal) {
+                withdrawn((EventWithdrawal) pendingCommand.message, pendingCommand.replyTo, pendingCommand.received);
+            } else {
+                replyGetAccount((CommandGetAccount) pendingCommand.message, pendingCommand.replyTo);
+            }
+        }
+
+        if (inFlightCommands.isEmpty() && !pendingCommands.isEmpty()) {
+            flushPendingCommands();
+        }
+        stopIfDone();
+    }
+
+    /**
+     * Rejects the command of an event of a group commit write that the journal rejected. The buffered commands are
+     * flushed by a message to the account, because the events that are persisted from here would not be sent to the
+     * journal until the next command.
+     */
+    private void groupCommitRejected(PendingCommand pendingCommand, Object event, Throwable cause) {
+        CommandRejected rejected = new CommandRejected(String.format("Journal rejected the write, %s", cause.getMessage()));
+
+        if (pendingCommand.message instanceof PendingBatch) {
+            PendingBatch batch = (PendingBatch) pendingCommand.message;
+            batch.rejected(event, rejected);
+            if (batchCompleted(batch, pendingCommand.replyTo, pendingCommand.received)) {
+                inFlightCommands.remove(pendingCommand);
+            }
         } else {
-            getSender().tell(new GetAccountNotFound(commandGetAccount.accountIdentifier()), self());
-            log.info("Get account {} not found", commandGetAccount.accountIdentifier);
+            inFlightCommands.remove(pendingCommand);
+            pendingCommand.replyTo.tell(rejected, self());
+            replied();
+        }
+        log.debug("Reject {}, {}", event, rejected);
+
+        if (inFlightCommands.isEmpty() && !pendingCommands.isEmpty()) {
+            self().tell(new FlushPendingCommands(), self());
+        }
+        stopIfDone();
+    }
+
+    /**
+     * Admits a command that needs the given number of journal writes of its own, after the writes that are queued in
+     * the account, or rejects it. See {@link AccountAdmission}.
+     *
+     * @return true when the command is admitted and must be replied to with {@link #replied()}.
+     */
+    private boolean admit(Command command, int writes) {
+        CommandRejected rejected = admission.shed(command.deadline(), writesAhead() + writes);
+        if (rejected == null && admission.enabled() && pendingCommands.size() >= settings.admissionMaxQueuedPerAccount()) {
+            metrics.shedAccountQueue();
+            rejected = AccountAdmission.ACCOUNT_QUEUE_FULL;
+        }
+        if (rejected == null) {
+            rejected = admission.acquire();
+        }
+        if (rejected != null) {
+            getSender().tell(rejected, self());
+            log.debug("Shed {} {}", command, rejected);
+            return false;
+        }
+        admitted++;
+        return true;
+    }
+
+    /**
+     * @return the number of journal writes that a command waits for. Without group commit a command is only
+     * processed when no write is in flight.
+     */
+    private int writesAhead() {
+        if (!settings.groupCommitEnabled()) {
+            return 0;
+        }
+        int writes = (pendingCommands.size() + settings.groupCommitMaxBatchSize() - 1) / settings.groupCommitMaxBatchSize();
+        return inFlightCommands.isEmpty() ? writes : writes + 1;
+    }
+
+    private void replied() {
+        admitted--;
+        admission.release(1);
+    }
+
+    /**
+     * Counts an applied event, and saves a snapshot when one is due and the events of all of the journal writes in
+     * flight have been applied. The sequence numbers of the events of a write are taken when the write starts, so a
+     * snapshot taken before its last event is applied would be recorded at a sequence number that it does not
+     * include, and recovery would skip the remaining events of the write.
+     */
+    private void eventPersisted() {
+        admission.written(System.nanoTime() - writeStarted);
+        eventsSinceSnapshot++;
+        eventsInFlight--;
+        if (settings.snapshotEveryEvents() > 0 && eventsSinceSnapshot >= settings.snapshotEveryEvents() && !snapshotInProgress
+                && eventsInFlight == 0) {
+            takeSnapshot();
         }
     }
 
-    private void snapshotPendingChanges(SnapshotTick snapshotTick) {
-        if (pendingChanges) {
-            saveSnapshot(account);
-            pendingChanges = false;
-            log.info("Snapshot {} {}", account, snapshotTick);
+    /**
+     * Makes the balance of an account with events known to the balance cache of the node, before the reply to the
+     * command that changed it.
+     */
+    private void publishBalance() {
+        if (balanceEntry != null) {
+            balanceEntry.update(account);
+        } else if (persisted) {
+            balanceEntry = balanceCache.register(account);
         }
     }
 
+    private void takeSnapshot() {
+        saveSnapshot(account.copy());
+        snapshotStarted = System.nanoTime();
+        snapshotInProgress = true;
+        eventsSinceSnapshot = 0;
+        log.debug("Snapshot {}", account);
+    }
+
     private void snapshotSuccess(SaveSnapshotSuccess saveSnapshotSuccess) {
-        log.info("Snapshot success {}", saveSnapshotSuccess.metadata());
+        metrics.snapshotSaved(System.nanoTime() - snapshotStarted);
+        snapshotInProgress = false;
+        snapshotSequenceNrs.add(saveSnapshotSuccess.metadata().sequenceNr());
+        log.debug("Snapshot success {}", saveSnapshotSuccess.metadata());
+        deleteOldSnapshots();
+        stopIfDone();
+    }
+
+    private void snapshotFailure(SaveSnapshotFailure saveSnapshotFailure) {
+        metrics.snapshotFailed();
+        snapshotInProgress = false;
+        log.warning("Snapshot failure {} {}", saveSnapshotFailure.metadata(), saveSnapshotFailure.cause());
+        stopIfDone();
+    }
+
+    /**
+     * Keeps the configured number of the most recent snapshots. The snapshots that this incarnation did not see, which
+     * are older than the snapshot that it recovered from, are deleted along with them.
+     */
+    private void deleteOldSnapshots() {
+        if (settings.snapshotKeep() > 0 && snapshotSequenceNrs.size() > settings.snapshotKeep()) {
+            while (snapshotSequenceNrs.size() > settings.snapshotKeep()) {
+                snapshotSequenceNrs.poll();
+            }
+            long oldestKept = snapshotSequenceNrs.peek();
+
+            deleteSnapshots(SnapshotSelectionCriteria.create(oldestKept - 1, Long.MAX_VALUE));
+            if (settings.snapshotDeleteEvents()) {
+                deleteMessages(oldestKept);
+            }
+        }
+    }
+
+    private void deleteSnapshotsSuccess(DeleteSnapshotsSuccess deleteSnapshotsSuccess) {
+        log.debug("Delete snapshots success {}", deleteSnapshotsSuccess.criteria());
+    }
+
+    private void deleteSnapshotsFailure(DeleteSnapshotsFailure deleteSnapshotsFailure) {
+        log.warning("Delete snapshots failure {} {}", deleteSnapshotsFailure.criteria(), deleteSnapshotsFailure.cause());
+    }
+
+    private void deleteMessagesSuccess(DeleteMessagesSuccess deleteMessagesSuccess) {
+        log.debug("Delete events success {}", deleteMessagesSuccess.toSequenceNr());
+    }
+
+    private void deleteMessagesFailure(DeleteMessagesFailure deleteMessagesFailure) {
+        log.warning("Delete events failure {} {}", deleteMessagesFailure.toSequenceNr(), deleteMessagesFailure.cause());
+    }
+
+    /**
+     * The first snapshot or event of the recovery, or its completion when there are none, shows that the account got
+     * a recovery permit. Until then the account is queued behind the accounts that recover.
+     */
+    private void recoveryStep() {
+        if (!recoveryStepped) {
+            recoveryStepped = true;
+            metrics.recoveryWaited(System.nanoTime() - recoveryStarted);
+        }
     }
 
     private void recoveryCompleted(RecoveryCompleted recoveryCompleted) {
-        log.info("RecoveryCompleted {}", recoveryCompleted);
+        recoveryStep();
+        recoveryRunning = false;
+        acceptedBalance = account.balanceUnits();
+        publishBalance();
+        metrics.recovered(System.nanoTime() - recoveryStarted, eventsReplayed);
+        log.debug("RecoveryCompleted {}, {} events", recoveryCompleted, eventsReplayed);
     }
 
     @Override
     public void preStart() throws Exception {
-        log.info("Start {}", account);
+        metrics.activated();
+        metrics.recoveryRequested();
+        if (passivation != ActorRef.noSender()) {
+            passivation.tell(activity, self());
+        }
+        log.debug("Start {}", account);
     }
 
     @Override
     public void postStop() {
-        log.info("Stop {}", account);
+        metrics.passivated();
+        if (recoveryRunning) {
+            metrics.recoveryAbandoned();
+        }
+        log.debug("Stop {}", account);
 
-        if (idleTimeout != null) {
-            idleTimeout.cancel();
+        if (passivation != ActorRef.noSender()) {
+            passivation.tell(activity.stopped(), self());
         }
-        if (snapshotScheduler != null) {
-            snapshotScheduler.cancel();
+        if (balanceEntry != null && passivating) {
+            balanceCache.passivated(balanceEntry);
+        } else if (balanceEntry != null) {
+            balanceCache.removed(balanceEntry);
         }
+        if (lingerTimeout != null) {
+            lingerTimeout.cancel();
+        }
+        // The commands that were never replied to, when a write failed or was rejected.
+        admission.release(admitted);
     }
 
-    private void receiveTimeout(IdleTimeout idleTimeout) {
-        log.info("Idle timeout {}, {} timeout", account, idleTimeout);
-        context().stop(self());
+    private void receiveTimeout(AccountPassivation.IdleTimeout idleTimeout) {
+        log.debug("Idle timeout {}, {}", account, idleTimeout);
+        passivating = true;
+        context().parent().tell(new ShardRegion.Passivate(new Stop()), self());
     }
 
-    private void resetIdleTimeout() {
-        // This is not working - see https://github.com/akka/akka/issues/20738
-        // context().setReceiveTimeout(Duration.create(10, TimeUnit.SECONDS)); // TODO make this configurable
-        FiniteDuration timeout = Duration.create(10, TimeUnit.SECONDS); // TODO make this configurable
+    private void stop(Stop stop) {
+        if (inFlightCommands.isEmpty() && !pendingCommands.isEmpty()) {
+            flushPendingCommands();
+        }
+        stopping = true;
+        stopIfDone();
+    }
 
-        if (idleTimeout != null) {
-            idleTimeout.cancel();
+    /**
+     * Stops a stopping account when the buffered commands have been written and replied to, and after a final
+     * snapshot when snapshots on passivation are enabled.
+     */
+    private void stopIfDone() {
+        if (!stopping || !inFlightCommands.isEmpty() || snapshotInProgress) {
+            return;
+        }
+        if (settings.snapshotOnPassivation() && eventsSinceSnapshot > 0) {
+            takeSnapshot();
+        } else {
+            context().stop(self());
         }
-        idleTimeout = context().system().scheduler().scheduleOnce(
-                timeout,
-                self(),
-                new IdleTimeout(timeout),
-                context().system().dispatcher(),
-                self());
     }
 
-    private void scheduleSnapshot() {
-        FiniteDuration interval = Duration.create(5, TimeUnit.SECONDS); // TODO make this configurable
+    private String entityId() {
+        try {
+            return URLDecoder.decode(self().path().name(), "utf-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-        snapshotScheduler = context().system().scheduler().schedule(
-                interval,
-                interval,
-                self(),
-                new SnapshotTick(),
-                context().system().dispatcher(),
-                self());
+    private Tagged asTagged(Object event) {
+        return new Tagged(event, eventTags);
     }
 
-    private Tagged asTagged(Object event, String... tags) {
-        return new Tagged(event, new HashSet<>(Arrays.asList(tags)));
+    /**
+     * Sent by the shard to stop a passivated entity, and to stop entities when their shard is handed off.
+     */
+    static class Stop {
     }
 
-    private static class IdleTimeout {
-        private final Duration timeout;
+    private static class FlushPendingCommands {
+    }
 
-        private IdleTimeout(Duration timeout) {
-            this.timeout = timeout;
+    private static class PendingCommand {
+        private final Object message;
+        private final ActorRef replyTo;
+        private final long received;
+
+        private PendingCommand(Object message, ActorRef replyTo, long received) {
+            this.message = message;
+            this.replyTo = replyTo;
+            this.received = received;
         }
+    }
 
-        @Override
-        public String toString() {
-            return timeout.toString();
+    /**
+     * A batch of commands that is written by the account. The outcomes are in the order of the commands.
+     */
+    private static class PendingBatch {
+        private final Object[] outcomes;
+        private final List<Tagged> events;
+        // The events that were persisted or rejected by the journal.
+        private int completed = 0;
+
+        private PendingBatch(int size) {
+            outcomes = new Object[size];
+            events = new ArrayList<>(size);
+        }
+
+        /**
+         * Replaces the outcome of the command of an event that the journal rejected.
+         */
+        private void rejected(Object event, CommandRejected rejected) {
+            for (int i = 0; i < outcomes.length; i++) {
+                if (outcomes[i] == event) {
+                    outcomes[i] = rejected;
+                    break;
+                }
+            }
+            completed++;
+        }
+
+        private CommandBatchResult result() {
+            return new CommandBatchResult(outcomes);
         }
     }
 
-    private static class SnapshotTick {
+    /**
+     * A command that is routed to the account with the given identifier.
+     */
+    interface Command extends Serializable {
+        AccountIdentifier accountIdentifier();
+
+        /**
+         * @return the time after which the reply is of no use, in microseconds since the epoch, or
+         * {@link AccountAdmission#NO_DEADLINE}. See {@link AccountAdmission}.
+         */
+        long deadline();
     }
 
-    static class CommandDeposit implements Serializable {
+    static class CommandDeposit implements Command {
         private final AccountIdentifier accountIdentifier;
         private final CurrencyValue amount;
+        private final long deadline;
 
         CommandDeposit(AccountIdentifier accountIdentifier, CurrencyValue amount) {
+            this(accountIdentifier, amount, AccountAdmission.NO_DEADLINE);
+        }
+
+        CommandDeposit(AccountIdentifier accountIdentifier, CurrencyValue amount, long deadline) {
             this.accountIdentifier = accountIdentifier;
             this.amount = amount;
+            this.deadline = deadline;
         }
 
-        AccountIdentifier accountIdentifier() {
+        public AccountIdentifier accountIdentifier() {
             return accountIdentifier;
         }
 
+        public long deadline() {
+            return deadline;
+        }
+
         CurrencyValue amount() {
             return amount;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            CommandDeposit that = (CommandDeposit) o;
+
+            return accountIdentifier.equals(that.accountIdentifier) && amount.equals(that.amount);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = accountIdentifier.hashCode();
+            result = 31 * result + amount.hashCode();
+            return result;
+        }
+
         @Override
         public String toString() {
-            return String.format("%s[%s, %s]", getClass().getSimpleName(), accountIdentifier, amount);
+            return getClass().getSimpleName() + "[" + accountIdentifier + ", " + amount + "]";
         }
     }
 
-    static class CommandWithdrawal implements Serializable {
+    static class CommandWithdrawal implements Command {
         private final AccountIdentifier accountIdentifier;
         private final CurrencyValue amount;
+        private final long deadline;
 
         CommandWithdrawal(AccountIdentifier accountIdentifier, CurrencyValue amount) {
+            this(accountIdentifier, amount, AccountAdmission.NO_DEADLINE);
+        }
+
+        CommandWithdrawal(AccountIdentifier accountIdentifier, CurrencyValue amount, long deadline) {
             this.accountIdentifier = accountIdentifier;
             this.amount = amount;
+            this.deadline = deadline;
         }
 
-        AccountIdentifier accountIdentifier() {
+        public AccountIdentifier accountIdentifier() {
             return accountIdentifier;
         }
 
+        public long deadline() {
+            return deadline;
+        }
+
         CurrencyValue amount() {
             return amount;
         }
 
         @Override
-        public String toString() {
-            return String.format("%s[%s, %s]", getClass().getSimpleName(), accountIdentifier, amount);
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            CommandWithdrawal that = (CommandWithdrawal) o;
+
+            return accountIdentifier.equals(that.accountIdentifier) && amount.equals(that.amount);
         }
-    }
 
-    static abstract class EventTag {
-        static void a(ActorSystem actorSystem) {
-            Cluster cluster = Cluster.get(actorSystem);
-            for (Member member : cluster.state().getMembers()) {
-                member.upNumber();
-            }
+        @Override
+        public int hashCode() {
+            int result = accountIdentifier.hashCode();
+            result = 31 * result + amount.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + accountIdentifier + ", " + amount + "]";
         }
     }
 
     static class EventDeposit implements Serializable {
+        private static final long serialVersionUID = 4291170548895407526L;
+        // Java serialization keeps the fields of the original class, with the time as a LocalDateTime, so that events
+        // that were written with Java serialization can still be read.
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("accountIdentifier", AccountIdentifier.class),
+                new ObjectStreamField("amount", CurrencyValue.class),
+                new ObjectStreamField("time", LocalDateTime.class)};
+
         private final AccountIdentifier accountIdentifier;
         private final CurrencyValue amount;
-        private final LocalDateTime time;
+        private final long time;
+        private transient EventDeposit deserialized;
 
         EventDeposit(AccountIdentifier accountIdentifier, CurrencyValue amount) {
-            this(accountIdentifier, amount, LocalDateTime.now());
+            this(accountIdentifier, amount, EpochMicros.now());
         }
 
-        EventDeposit(AccountIdentifier accountIdentifier, CurrencyValue amount, LocalDateTime time) {
+        EventDeposit(AccountIdentifier accountIdentifier, CurrencyValue amount, long time) {
             this.accountIdentifier = accountIdentifier;
             this.amount = amount;
             this.time = time;
@@ -313,26 +1000,76 @@ class AccountWriteSide extends AbstractPersistentActor {
             return amount;
         }
 
-        LocalDateTime time() {
+        /**
+         * @return the time of the event in microseconds since the epoch, see {@link EpochMicros}.
+         */
+        long time() {
             return time;
         }
 
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("accountIdentifier", accountIdentifier);
+            fields.put("amount", amount);
+            fields.put("time", EpochMicros.toLocalDateTime(time));
+            out.writeFields();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            deserialized = new EventDeposit(
+                    (AccountIdentifier) fields.get("accountIdentifier", null),
+                    (CurrencyValue) fields.get("amount", null),
+                    EpochMicros.of((LocalDateTime) fields.get("time", null)));
+        }
+
+        private Object readResolve() {
+            return deserialized;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            EventDeposit that = (EventDeposit) o;
+
+            return accountIdentifier.equals(that.accountIdentifier) && amount.equals(that.amount) && time == that.time;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = accountIdentifier.hashCode();
+            result = 31 * result + amount.hashCode();
+            result = 31 * result + Long.hashCode(time);
+            return result;
+        }
+
         @Override
         public String toString() {
-            return String.format("%s[%s, %s, %s]", getClass().getSimpleName(), time, accountIdentifier, amount);
+            return getClass().getSimpleName() + "[" + EpochMicros.toString(time) + ", " + accountIdentifier + ", " + amount + "]";
         }
     }
 
     static class EventWithdrawal implements Serializable {
+        private static final long serialVersionUID = -5889924986596445249L;
+        // Java serialization keeps the fields of the original class, with the time as a LocalDateTime, so that events
+        // that were written with Java serialization can still be read.
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("accountIdentifier", AccountIdentifier.class),
+                new ObjectStreamField("amount", CurrencyValue.class),
+                new ObjectStreamField("time", LocalDateTime.class)};
+
         private final AccountIdentifier accountIdentifier;
         private final CurrencyValue amount;
-        private final LocalDateTime time;
+        private final long time;
+        private transient EventWithdrawal deserialized;
 
         EventWithdrawal(AccountIdentifier accountIdentifier, CurrencyValue amount) {
-            this(accountIdentifier, amount, LocalDateTime.now());
+            this(accountIdentifier, amount, EpochMicros.now());
         }
 
-        EventWithdrawal(AccountIdentifier accountIdentifier, CurrencyValue amount, LocalDateTime time) {
+        EventWithdrawal(AccountIdentifier accountIdentifier, CurrencyValue amount, long time) {
             this.accountIdentifier = accountIdentifier;
             this.amount = amount;
             this.time = time;
@@ -346,30 +1083,96 @@ class AccountWriteSide extends AbstractPersistentActor {
             return amount;
         }
 
-        LocalDateTime time() {
+        /**
+         * @return the time of the event in microseconds since the epoch, see {@link EpochMicros}.
+         */
+        long time() {
             return time;
         }
 
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("accountIdentifier", accountIdentifier);
+            fields.put("amount", amount);
+            fields.put("time", EpochMicros.toLocalDateTime(time));
+            out.writeFields();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            deserialized = new EventWithdrawal(
+                    (AccountIdentifier) fields.get("accountIdentifier", null),
+                    (CurrencyValue) fields.get("amount", null),
+                    EpochMicros.of((LocalDateTime) fields.get("time", null)));
+        }
+
+        private Object readResolve() {
+            return deserialized;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            EventWithdrawal that = (EventWithdrawal) o;
+
+            return accountIdentifier.equals(that.accountIdentifier) && amount.equals(that.amount) && time == that.time;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = accountIdentifier.hashCode();
+            result = 31 * result + amount.hashCode();
+            result = 31 * result + Long.hashCode(time);
+            return result;
+        }
+
         @Override
         public String toString() {
-            return String.format("%s[%s, %s, %s]", getClass().getSimpleName(), time, accountIdentifier, amount);
+            return getClass().getSimpleName() + "[" + EpochMicros.toString(time) + ", " + accountIdentifier + ", " + amount + "]";
         }
     }
 
-    static class CommandGetAccount implements Serializable {
+    static class CommandGetAccount implements Command {
         private final AccountIdentifier accountIdentifier;
+        private final long deadline;
 
         CommandGetAccount(AccountIdentifier accountIdentifier) {
+            this(accountIdentifier, AccountAdmission.NO_DEADLINE);
+        }
+
+        CommandGetAccount(AccountIdentifier accountIdentifier, long deadline) {
             this.accountIdentifier = accountIdentifier;
+            this.deadline = deadline;
         }
 
-        AccountIdentifier accountIdentifier() {
+        public AccountIdentifier accountIdentifier() {
             return accountIdentifier;
         }
 
+        public long deadline() {
+            return deadline;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            CommandGetAccount that = (CommandGetAccount) o;
+
+            return accountIdentifier.equals(that.accountIdentifier);
+        }
+
+        @Override
+        public int hashCode() {
+            return accountIdentifier.hashCode();
+        }
+
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), accountIdentifier);
+            return getClass().getSimpleName() + "[" + accountIdentifier + "]";
         }
     }
 
@@ -384,9 +1187,24 @@ class AccountWriteSide extends AbstractPersistentActor {
             return account;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            GetAccountResponse that = (GetAccountResponse) o;
+
+            return account.equals(that.account);
+        }
+
+        @Override
+        public int hashCode() {
+            return account.hashCode();
+        }
+
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), account);
+            return getClass().getSimpleName() + "[" + account + "]";
         }
     }
 
@@ -397,9 +1215,181 @@ class AccountWriteSide extends AbstractPersistentActor {
             this.accountIdentifier = accountIdentifier;
         }
 
+        AccountIdentifier accountIdentifier() {
+            return accountIdentifier;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            GetAccountNotFound that = (GetAccountNotFound) o;
+
+            return accountIdentifier.equals(that.accountIdentifier);
+        }
+
+        @Override
+        public int hashCode() {
+            return accountIdentifier.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + accountIdentifier + "]";
+        }
+    }
+
+    /**
+     * The reply to a command that was not processed.
+     */
+    static class CommandRejected implements Serializable {
+        private final String reason;
+
+        CommandRejected(String reason) {
+            this.reason = reason;
+        }
+
+        String reason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + reason + "]";
+        }
+    }
+
+    /**
+     * The reply to a command that may or may not have been processed, because its account did not reply in time. A
+     * command that is sent again after this reply may be applied twice.
+     */
+    static class CommandOutcomeUnknown implements Serializable {
+        private final String reason;
+
+        CommandOutcomeUnknown(String reason) {
+            this.reason = reason;
+        }
+
+        String reason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + reason + "]";
+        }
+    }
+
+    /**
+     * Deposits and withdrawals of any number of accounts, sent to {@link AccountsWriteSide} and answered with one
+     * {@link CommandBatchResult}.
+     */
+    static class CommandBatch implements Serializable {
+        private final List<Command> commands;
+        private final long deadline;
+
+        CommandBatch(List<? extends Command> commands) {
+            this(commands, AccountAdmission.NO_DEADLINE);
+        }
+
+        /**
+         * @param deadline the deadline of the whole batch, the deadlines of its commands are not used.
+         */
+        CommandBatch(List<? extends Command> commands, long deadline) {
+            this.commands = Collections.unmodifiableList(new ArrayList<>(commands));
+            this.deadline = deadline;
+        }
+
+        List<Command> commands() {
+            return commands;
+        }
+
+        long deadline() {
+            return deadline;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + commands.size() + " commands]";
+        }
+    }
+
+    /**
+     * The commands of a batch for one account.
+     */
+    static class CommandAccountBatch implements Command {
+        private final AccountIdentifier accountIdentifier;
+        private final List<Command> commands;
+        private final long deadline;
+
+        CommandAccountBatch(AccountIdentifier accountIdentifier, List<Command> commands, long deadline) {
+            this.accountIdentifier = accountIdentifier;
+            this.commands = Collections.unmodifiableList(commands);
+            this.deadline = deadline;
+        }
+
+        public AccountIdentifier accountIdentifier() {
+            return accountIdentifier;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+
+        List<Command> commands() {
+            return commands;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + accountIdentifier + ", " + commands.size() + " commands]";
+        }
+    }
+
+    /**
+     * The outcome of each command of a batch, in the order of the commands. An outcome is the persisted event,
+     * {@link CommandRejected} when the command was not processed or {@link CommandOutcomeUnknown} when its account
+     * did not reply in time.
+     */
+    static class CommandBatchResult implements Serializable {
+        private final List<Object> outcomes;
+
+        CommandBatchResult(Object[] outcomes) {
+            this.outcomes = Collections.unmodifiableList(Arrays.asList(outcomes));
+        }
+
+        /**
+         * Expands the reply to a batch of the given number of commands into the outcome of each command. When the
+         * whole batch was rejected, or got no reply in time, each command gets that reply, and any other reply
+         * rejects each command.
+         */
+        static List<Object> outcomes(Object reply, int size) {
+            if (reply instanceof CommandBatchResult && ((CommandBatchResult) reply).outcomes.size() == size) {
+                return ((CommandBatchResult) reply).outcomes;
+            }
+            Object outcome = reply instanceof CommandRejected || reply instanceof CommandOutcomeUnknown
+                    ? reply
+                    : new CommandRejected(String.format("Unexpected reply %s", reply));
+            return Collections.nCopies(size, outcome);
+        }
+
+        List<Object> outcomes() {
+            return outcomes;
+        }
+
+        long rejected() {
+            return outcomes.stream().filter(outcome -> outcome instanceof CommandRejected).count();
+        }
+
+        long unknown() {
+            return outcomes.stream().filter(outcome -> outcome instanceof CommandOutcomeUnknown).count();
+        }
+
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), accountIdentifier);
+            return getClass().getSimpleName() + "[" + outcomes.size() + " outcomes, " + rejected() + " rejected, "
+                    + unknown() + " unknown]";
         }
     }
 }
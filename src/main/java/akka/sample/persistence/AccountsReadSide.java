@@ -1,55 +1,278 @@
 package akka.sample.persistence;
 
 import akka.actor.*;
+import akka.japi.pf.DeciderBuilder;
 import akka.japi.pf.ReceiveBuilder;
-import akka.persistence.cassandra.query.javadsl.CassandraReadJournal;
 import akka.persistence.query.EventEnvelope;
-import akka.persistence.query.PersistenceQuery;
-import akka.sample.persistence.AccountWriteSide.EventDeposit;
-import akka.sample.persistence.AccountWriteSide.EventWithdrawal;
+import akka.persistence.query.Offset;
+import akka.sample.persistence.AccountsView.GetBalance;
+import akka.sample.persistence.AccountsView.GetBalances;
+import akka.sample.persistence.AccountsView.GetWindows;
+import akka.sample.persistence.ReadSideStore.Checkpoint;
 import akka.stream.ActorMaterializer;
+import akka.stream.ActorMaterializerSettings;
 import akka.stream.javadsl.Sink;
-import scala.Option;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 import static akka.pattern.PatternsCS.ask;
+import static akka.pattern.PatternsCS.pipe;
 
 /**
  * Process account events on the read side.
+ * <p>
+ * <p>Each instance of this actor processes the events of one partition tag, see {@link AccountEventTags}. The
+ * instances are cluster sharded entities with the tag as the entity identifier, so the partitions are spread over the
+ * nodes of the cluster, see {@link AccountsReadSideDistribution}. The events are read with the events by tag query of
+ * the configured read journal, see {@link ReadSideJournal}.</p>
+ * <p>
+ * <p>The events of the tag are applied to the balances view of the tag, which is split into a configured number of
+ * lanes, each held by an {@link AccountReadSide} child actor. The accounts are spread over the lanes by a hash of the
+ * account identifier. The lanes apply the events of different accounts in parallel, while the events of an account
+ * reach its lane, and are applied, in order.</p>
+ * <p>
+ * <p>The events are delivered to this actor by a sink that waits for an acknowledgement of each event, and this actor
+ * acknowledges an event as soon as it has been passed on to its lane, unless the configured number of events are in
+ * flight in the lanes. Then the next acknowledgement waits until a lane reports that it has applied an event, so a
+ * read side that falls behind slows down the events by tag query instead of failing. The acknowledgements are
+ * preallocated messages, there is no ask, future or reply per event.</p>
+ * <p>
+ * <p>The view is checkpointed together with the offset in the {@link ReadSideStore}, in batches, after a
+ * configured number of events or a configured time. The offset of a checkpoint is the offset of the last event that
+ * was applied by its lane after all of the events before it. After a restart the view is loaded from the last
+ * checkpoint, and spread over the lanes again, and the events that followed its offset are delivered again, the view
+ * skips the events that it has already applied.</p>
+ * <p>
+ * <p>This actor and its lanes run on the read side dispatcher, and the events by tag query stream runs on a
+ * dispatcher of its own, so a read side that falls behind does not take the threads of the write side entities, and
+ * a busy write side does not stall the stream.</p>
+ * <p>
+ * <p>As the events of the tag pass through, before they are passed on to the lanes, this actor adds them to event
+ * time window aggregates of the tag, see {@link AccountWindows}, which answer {@link GetWindows} queries. The window
+ * state is bounded and is evicted as the latest event time advances, it is not checkpointed.</p>
  */
 class AccountsReadSide extends AbstractLoggingActor {
+    static final String DISPATCHER = "account.read-side.dispatcher";
+    static final String STREAM_DISPATCHER = "account.read-side.stream-dispatcher";
+    private final String tag = entityId();
+    private final ReadSideSettings settings = ReadSideSettings.create(context().system().settings().config());
+    private final ReadSideStore offsetStore = ReadSideStore.create(context().system(), settings);
+    private final Executor blockingDispatcher = context().system().dispatchers().lookup("akka.stream.default-blocking-io-dispatcher");
+    private final ActorRef[] lanes = new ActorRef[settings.parallelism()];
+    private final LaneQueue[] laneQueues = new LaneQueue[lanes.length];
+    // The events in flight, by position modulo the window.
+    private final int window = settings.eventsInFlight();
+    private final Offset[] offsets = new Offset[window];
+    private final boolean[] applied = new boolean[window];
+    // Positions of the events in the order of the stream. All events before the applied position have been applied.
+    private long receivedPosition = 0;
+    private long appliedPosition = 0;
+    private long committedPosition = 0;
+    private boolean commitInProgress = false;
+    private ActorRef stream;
+    private boolean ackPending = false;
+    private final Cancellable commitTicks;
+    private final AccountWindows windows;
+
     {
-        final ActorMaterializer materializer = ActorMaterializer.create(context().system());
-        final CassandraReadJournal readJournal = cassandraReadJournal(context().system());
+        final ActorMaterializer materializer = ActorMaterializer.create(
+                ActorMaterializerSettings.create(context().system()).withDispatcher(STREAM_DISPATCHER), context());
+        final ReadSideJournal readJournal = ReadSideJournal.create(context().system(), settings);
+        final Optional<Checkpoint> checkpoint = offsetStore.load(tag);
+        final Offset offset = checkpoint.map(Checkpoint::offset).orElse(readJournal.firstOffset());
+        final AccountBalances[] balances = new AccountBalances[lanes.length];
+        windows = new AccountWindows(settings, !checkpoint.isPresent());
 
+        for (int lane = 0; lane < lanes.length; lane++) {
+            balances[lane] = new AccountBalances();
+        }
+        checkpoint.ifPresent(c -> c.views().forEach(view -> AccountBalances.fromBytes(view).distribute(balances, this::lane)));
+        for (int lane = 0; lane < lanes.length; lane++) {
+            lanes[lane] = context().actorOf(AccountReadSide.props(tag, lane, balances[lane]), "lane-" + lane);
+            laneQueues[lane] = new LaneQueue(window);
+        }
+
+        log().info("Start {} from offset {}, {} lanes, {}", tag, offset, lanes.length, settings);
         readJournal
-                .eventsByTag("account", 0L) // TODO need to start from a know offset
-                .mapAsync(5, eventEnvelope -> processEvent(eventEnvelope, self()))
-                .runWith(Sink.ignore(), materializer);
+                .eventsByTag(tag, offset)
+                .runWith(Sink.actorRefWithAck(self(), StreamInit.INSTANCE, Ack.INSTANCE, new StreamCompleted(null), StreamCompleted::new), materializer);
+
+        commitTicks = context().system().scheduler().schedule(
+                settings.offsetCommitInterval(),
+                settings.offsetCommitInterval(),
+                self(),
+                CommitTick.INSTANCE,
+                context().dispatcher(),
+                self());
     }
 
     @Override
     public Receive createReceive() {
         return ReceiveBuilder.create()
-                .match(EventEnvelope.class, this::taggedEvent)
+                .match(EventEnvelope.class, this::processEvent)
+                .match(AccountReadSide.Applied.class, this::applied)
+                .match(StreamInit.class, this::streamInit)
+                .match(CommitTick.class, commitTick -> commitOffset())
+                .match(Committed.class, this::committed)
+                .match(Status.Failure.class, this::commitFailed)
+                .match(StreamCompleted.class, this::streamCompleted)
+                .match(AccountsReadSideDistribution.EnsureActive.class, this::ensureActive)
+                .match(AccountsReadSideDistribution.Query.class, this::query)
                 .matchAny(this::unhandled)
                 .build();
     }
 
-    private void taggedEvent(EventEnvelope eventEnvelope) {
-        sendCommandToAccount(accountIdentifier(eventEnvelope), eventEnvelope);
+    /**
+     * A lane that fails cannot apply the events that were sent to it, restart the whole read side from its last
+     * checkpoint instead.
+     */
+    @Override
+    public SupervisorStrategy supervisorStrategy() {
+        return new OneForOneStrategy(DeciderBuilder.matchAny(e -> SupervisorStrategy.escalate()).build());
+    }
+
+    private void streamInit(StreamInit streamInit) {
+        stream = sender();
+        stream.tell(Ack.INSTANCE, self());
+    }
+
+    private void processEvent(EventEnvelope eventEnvelope) {
+        long position = receivedPosition++;
+        int lane = lane(eventEnvelope.persistenceId());
+
+        offsets[slot(position)] = eventEnvelope.offset();
+        applied[slot(position)] = false;
+        laneQueues[lane].add(position);
+        windows.add(eventEnvelope.event());
+        lanes[lane].tell(eventEnvelope, self());
+
+        if (receivedPosition - appliedPosition < window) {
+            stream.tell(Ack.INSTANCE, self());
+        }
+        else {
+            ackPending = true;
+        }
+    }
+
+    private void applied(AccountReadSide.Applied applied) {
+        this.applied[slot(laneQueues[applied.lane()].remove())] = true;
+        while (appliedPosition < receivedPosition && this.applied[slot(appliedPosition)]) {
+            appliedPosition++;
+        }
+
+        if (ackPending && receivedPosition - appliedPosition < window) {
+            ackPending = false;
+            stream.tell(Ack.INSTANCE, self());
+        }
+        if (appliedPosition - committedPosition >= settings.offsetCommitEvery()) {
+            commitOffset();
+        }
+    }
+
+    private void commitOffset() {
+        if (commitInProgress || appliedPosition == committedPosition) {
+            return;
+        }
+        commitInProgress = true;
+
+        long position = appliedPosition;
+        Offset offset = offsets[slot(position - 1)];
+        AccountReadSide.TakeCheckpoint takeCheckpoint = new AccountReadSide.TakeCheckpoint(offset, offsetStore.incremental());
+
+        List<CompletableFuture<Object>> checkpoints = new ArrayList<>(lanes.length);
+        for (ActorRef lane : lanes) {
+            checkpoints.add(ask(lane, takeCheckpoint, settings.checkpointTimeout().toMillis()).toCompletableFuture());
+        }
+
+        CompletionStage<Committed> committed = CompletableFuture
+                .allOf(checkpoints.toArray(new CompletableFuture[checkpoints.size()]))
+                .thenApplyAsync(done -> {
+                    List<byte[]> views = new ArrayList<>(lanes.length);
+                    for (CompletableFuture<Object> checkpoint : checkpoints) {
+                        views.addAll(((Checkpoint) checkpoint.join()).views());
+                    }
+                    offsetStore.save(tag, new Checkpoint(offset, views));
+                    return new Committed(position);
+                }, blockingDispatcher);
+        pipe(committed, context().dispatcher()).to(self());
+    }
+
+    private void committed(Committed committed) {
+        committedPosition = committed.position;
+        commitInProgress = false;
+    }
+
+    private void commitFailed(Status.Failure failure) {
+        // Restart this actor, which resumes the stream from the last stored offset.
+        throw new IllegalStateException(String.format("Checkpoint of %s failed", tag), failure.cause());
+    }
+
+    private void streamCompleted(StreamCompleted streamCompleted) {
+        if (streamCompleted.failure != null) {
+            // Restart this actor, which resumes the stream from the last stored offset.
+            throw new IllegalStateException(String.format("Events by tag %s failed", tag), streamCompleted.failure);
+        }
+        log().info("Events by tag {} completed", tag);
+    }
+
+    private void ensureActive(AccountsReadSideDistribution.EnsureActive ensureActive) {
+        log().debug("{} {}", ensureActive, tag);
+    }
+
+    private void query(AccountsReadSideDistribution.Query query) {
+        if (query.query() instanceof GetBalance) {
+            getBalance((GetBalance) query.query());
+        }
+        else if (query.query() instanceof GetBalances) {
+            getBalances((GetBalances) query.query());
+        }
+        else if (query.query() instanceof GetWindows) {
+            getWindows((GetWindows) query.query());
+        }
+        else {
+            unhandled(query);
+        }
     }
 
-    private AccountIdentifier accountIdentifier(EventEnvelope eventEnvelope) {
-        if (eventEnvelope.event() instanceof EventDeposit) {
-            return ((EventDeposit) eventEnvelope.event()).accountIdentifier();
+    private void getBalance(GetBalance getBalance) {
+        lanes[lane(getBalance.accountIdentifier().identifier())].forward(getBalance, context());
+    }
+
+    private void getBalances(GetBalances getBalances) {
+        Map<Integer, List<AccountIdentifier>> accountIdentifiersByLane = new LinkedHashMap<>();
+        for (AccountIdentifier accountIdentifier : getBalances.accountIdentifiers()) {
+            accountIdentifiersByLane
+                    .computeIfAbsent(lane(accountIdentifier.identifier()), lane -> new ArrayList<>())
+                    .add(accountIdentifier);
         }
-        else if (eventEnvelope.event() instanceof EventWithdrawal) {
-            return ((EventWithdrawal) eventEnvelope.event()).accountIdentifier();
+
+        List<CompletableFuture<Object>> replies = new ArrayList<>(accountIdentifiersByLane.size());
+        accountIdentifiersByLane.forEach((lane, accountIdentifiers) -> replies.add(
+                ask(lanes[lane], new GetBalances(accountIdentifiers), settings.queryTimeout().toMillis())
+                        .toCompletableFuture()));
+
+        CompletionStage<AccountsView.Balances> balances = CompletableFuture
+                .allOf(replies.toArray(new CompletableFuture[replies.size()]))
+                .thenApply(done -> AccountsView.combine(replies));
+        pipe(balances, context().dispatcher()).to(sender());
+    }
+
+    private void getWindows(GetWindows getWindows) {
+        String invalid = AccountWindows.invalid(getWindows, settings);
+        if (invalid == null) {
+            sender().tell(new AccountsView.Windows(windows.windows(getWindows), windows.late()), self());
         }
         else {
-            return null;
+            sender().tell(new Status.Failure(new IllegalArgumentException(invalid)), self());
         }
     }
 
@@ -59,28 +282,88 @@ class AccountsReadSide extends AbstractLoggingActor {
         super.unhandled(message);
     }
 
-    private void sendCommandToAccount(AccountIdentifier accountIdentifier, Object message) {
-        Option<ActorRef> accountRefOption = context().child(accountIdentifier.identifier());
-        if (accountRefOption.isDefined()) {
-            accountRefOption.get().forward(message, context());
+    private int slot(long position) {
+        return (int) (position % window);
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop {}, {}", tag, windows);
+        commitTicks.cancel();
+    }
+
+    /**
+     * The lane of an account. This uses the high bits of a mixed hash of the identifier, the tags use the low bits of
+     * the identifier hash and the {@link AccountBalances} of a lane the low bits of the mixed hash.
+     */
+    private int lane(String identifier) {
+        int h = identifier.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (int) ((Integer.toUnsignedLong(h) * lanes.length) >>> 32);
+    }
+
+    private String entityId() {
+        try {
+            return URLDecoder.decode(self().path().name(), "utf-8");
         }
-        else {
-            ActorRef accountRef = context().actorOf(AccountReadSide.props(accountIdentifier), accountIdentifier.identifier());
-            accountRef.forward(message, context());
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
     }
 
-    private CompletionStage<EventEnvelope> processEvent(EventEnvelope eventEnvelope, ActorRef a) {
-        CompletionStage<Object> f = ask(a, eventEnvelope, 10L);
-        return f.thenApplyAsync(e -> eventEnvelope);
+    static Props props() {
+        return Props.create(AccountsReadSide.class).withDispatcher(DISPATCHER);
     }
 
-    private CassandraReadJournal cassandraReadJournal(ActorSystem actorSystem) {
-        return PersistenceQuery.get(actorSystem)
-                .getReadJournalFor(CassandraReadJournal.class, CassandraReadJournal.Identifier());
+    private static class StreamInit {
+        private static final StreamInit INSTANCE = new StreamInit();
     }
 
-    static Props props() {
-        return Props.create(AccountsReadSide.class);
+    private static class Ack {
+        private static final Ack INSTANCE = new Ack();
+    }
+
+    private static class CommitTick {
+        private static final CommitTick INSTANCE = new CommitTick();
+    }
+
+    private static class Committed {
+        private final long position;
+
+        private Committed(long position) {
+            this.position = position;
+        }
+    }
+
+    private static class StreamCompleted {
+        private final Throwable failure;
+
+        private StreamCompleted(Throwable failure) {
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * The positions of the events in flight in a lane, in the order that the lane applies them.
+     */
+    private static class LaneQueue {
+        private final long[] positions;
+        private int head = 0;
+        private int size = 0;
+
+        private LaneQueue(int capacity) {
+            positions = new long[capacity];
+        }
+
+        private void add(long position) {
+            positions[(head + size++) % positions.length] = position;
+        }
+
+        private long remove() {
+            long position = positions[head];
+            head = (head + 1) % positions.length;
+            size--;
+            return position;
+        }
     }
 }
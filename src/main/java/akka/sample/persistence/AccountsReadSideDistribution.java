@@ -0,0 +1,153 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardRegion;
+import akka.japi.pf.ReceiveBuilder;
+
+import scala.concurrent.duration.Duration;
+
+import java.io.Serializable;
+
+/**
+ * Keeps one {@link AccountsReadSide} running for each event partition tag somewhere in the cluster.
+ * <p>
+ * <p>The read sides are cluster sharded entities with one shard per tag, so the shard allocation strategy spreads
+ * the tags over the nodes and moves them when nodes join or leave. This actor runs on each read side node, starts the
+ * shard region and periodically sends an {@link EnsureActive} message for every tag, which starts the read side of a
+ * tag if it is not running.</p>
+ */
+class AccountsReadSideDistribution extends AbstractLoggingActor {
+    static final String SHARD_TYPE_NAME = "account-read-side";
+
+    private final ReadSideSettings settings = ReadSideSettings.create(context().system().settings().config());
+    private final ActorRef shardRegion = startShardRegion();
+    private final Cancellable keepAlive = scheduleKeepAlive();
+
+    static Props props() {
+        return Props.create(AccountsReadSideDistribution.class);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return ReceiveBuilder.create()
+                .match(KeepAliveTick.class, this::keepAlive)
+                .build();
+    }
+
+    private void keepAlive(KeepAliveTick keepAliveTick) {
+        for (String tag : settings.eventTags().tags()) {
+            shardRegion.tell(new EnsureActive(tag), self());
+        }
+    }
+
+    @Override
+    public void postStop() {
+        keepAlive.cancel();
+    }
+
+    private ActorRef startShardRegion() {
+        log().info("Start shard region {}", settings);
+
+        return ClusterSharding.get(context().system()).start(
+                SHARD_TYPE_NAME,
+                AccountsReadSide.props(),
+                ClusterShardingSettings.create(context().system()),
+                new MessageExtractor());
+    }
+
+    private Cancellable scheduleKeepAlive() {
+        return context().system().scheduler().schedule(
+                Duration.Zero(),
+                settings.keepAliveInterval(),
+                self(),
+                new KeepAliveTick(),
+                context().system().dispatcher(),
+                self());
+    }
+
+    private static class KeepAliveTick {
+    }
+
+    /**
+     * A message for the read side of an event tag.
+     */
+    interface ReadSideMessage extends Serializable {
+        String tag();
+    }
+
+    /**
+     * Starts the read side of the tag if it is not already running.
+     */
+    static class EnsureActive implements ReadSideMessage {
+        private final String tag;
+
+        EnsureActive(String tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public String tag() {
+            return tag;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), tag);
+        }
+    }
+
+    /**
+     * A query for the view of the read side of the tag, see {@link AccountsView}.
+     */
+    static class Query implements ReadSideMessage {
+        private final String tag;
+        private final Object query;
+
+        Query(String tag, Object query) {
+            this.tag = tag;
+            this.query = query;
+        }
+
+        @Override
+        public String tag() {
+            return tag;
+        }
+
+        Object query() {
+            return query;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), tag, query);
+        }
+    }
+
+    /**
+     * Routes read side messages by tag, each tag is an entity in a shard of its own.
+     */
+    static class MessageExtractor implements ShardRegion.MessageExtractor {
+        @Override
+        public String entityId(Object message) {
+            if (message instanceof ReadSideMessage) {
+                return ((ReadSideMessage) message).tag();
+            }
+            return null;
+        }
+
+        @Override
+        public Object entityMessage(Object message) {
+            return message;
+        }
+
+        @Override
+        public String shardId(Object message) {
+            return entityId(message);
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.cluster.sharding.ClusterSharding;
+import akka.japi.pf.ReceiveBuilder;
+import akka.sample.persistence.AccountsReadSideDistribution.Query;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static akka.pattern.PatternsCS.ask;
+import static akka.pattern.PatternsCS.pipe;
+
+/**
+ * Answer account balance queries from the read side views.
+ * <p>
+ * <p>The balances of the accounts of a tag are held by the read side of the tag, see {@link AccountReadSide}. A
+ * {@link GetBalance} query is forwarded to the read side of the tag of the account, which replies directly to the
+ * sender. A {@link GetBalances} query is split by tag, sent to the read sides of the tags in parallel, and the
+ * replies are combined into a single {@link Balances} reply.</p>
+ * <p>
+ * <p>The read side views are eventually consistent, a balance includes the events that the read side of the tag has
+ * processed so far. The sequence number in the reply tells which events of the account are included.</p>
+ * <p>
+ * <p>A {@link GetWindows} query is sent to the read sides of all of the tags, which keep event time window aggregates
+ * of their events, see {@link AccountWindows}. The windows of the tags with the same start are merged into a single
+ * {@link Windows} reply, a merged window is closed when it is closed in every tag that has events in it.</p>
+ */
+class AccountsView extends AbstractLoggingActor {
+    private final ReadSideSettings settings = ReadSideSettings.create(context().system().settings().config());
+    private final ActorRef readSides = ClusterSharding.get(context().system()).shardRegion(AccountsReadSideDistribution.SHARD_TYPE_NAME);
+
+    static Props props() {
+        return Props.create(AccountsView.class);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return ReceiveBuilder.create()
+                .match(GetBalance.class, this::getBalance)
+                .match(GetBalances.class, this::getBalances)
+                .match(GetWindows.class, this::getWindows)
+                .build();
+    }
+
+    private void getBalance(GetBalance getBalance) {
+        readSides.tell(new Query(settings.eventTags().tagFor(getBalance.accountIdentifier()), getBalance), sender());
+    }
+
+    private void getBalances(GetBalances getBalances) {
+        Map<String, List<AccountIdentifier>> accountIdentifiersByTag = new LinkedHashMap<>();
+        for (AccountIdentifier accountIdentifier : getBalances.accountIdentifiers()) {
+            accountIdentifiersByTag
+                    .computeIfAbsent(settings.eventTags().tagFor(accountIdentifier), tag -> new ArrayList<>())
+                    .add(accountIdentifier);
+        }
+
+        List<CompletableFuture<Object>> replies = new ArrayList<>(accountIdentifiersByTag.size());
+        accountIdentifiersByTag.forEach((tag, accountIdentifiers) -> replies.add(
+                ask(readSides, new Query(tag, new GetBalances(accountIdentifiers)), settings.queryTimeout().toMillis())
+                        .toCompletableFuture()));
+
+        CompletionStage<Balances> balances = CompletableFuture
+                .allOf(replies.toArray(new CompletableFuture[replies.size()]))
+                .thenApply(done -> combine(replies));
+        pipe(balances, context().dispatcher()).to(sender());
+    }
+
+    private void getWindows(GetWindows getWindows) {
+        String invalid = AccountWindows.invalid(getWindows, settings);
+        if (invalid != null) {
+            sender().tell(new Status.Failure(new IllegalArgumentException(invalid)), self());
+            return;
+        }
+
+        List<CompletableFuture<Object>> replies = new ArrayList<>(settings.eventTags().tags().size());
+        for (String tag : settings.eventTags().tags()) {
+            replies.add(ask(readSides, new Query(tag, getWindows), settings.queryTimeout().toMillis()).toCompletableFuture());
+        }
+
+        CompletionStage<Windows> windows = CompletableFuture
+                .allOf(replies.toArray(new CompletableFuture[replies.size()]))
+                .thenApply(done -> combineWindows(replies, getWindows.count(), settings.windowTopN()));
+        pipe(windows, context().dispatcher()).to(sender());
+    }
+
+    static Balances combine(List<CompletableFuture<Object>> replies) {
+        List<Balance> found = new ArrayList<>();
+        List<AccountIdentifier> notFound = new ArrayList<>();
+
+        for (CompletableFuture<Object> reply : replies) {
+            Balances balances = (Balances) reply.join();
+            found.addAll(balances.balances());
+            notFound.addAll(balances.notFound());
+        }
+        return new Balances(found, notFound);
+    }
+
+    /**
+     * Merges the windows of the tags by their start and keeps the latest count of them.
+     */
+    static Windows combineWindows(List<CompletableFuture<Object>> replies, int count, int topN) {
+        TreeMap<Long, Window> merged = new TreeMap<>();
+        long late = 0;
+
+        for (CompletableFuture<Object> reply : replies) {
+            Windows windows = (Windows) reply.join();
+            for (Window window : windows.windows()) {
+                merged.merge(window.start(), window, (a, b) -> a.merge(b, topN));
+            }
+            late += windows.late();
+        }
+        while (merged.size() > count) {
+            merged.pollFirstEntry();
+        }
+        return new Windows(new ArrayList<>(merged.values()), late);
+    }
+
+    static class GetBalance implements Serializable {
+        private final AccountIdentifier accountIdentifier;
+
+        GetBalance(AccountIdentifier accountIdentifier) {
+            this.accountIdentifier = accountIdentifier;
+        }
+
+        AccountIdentifier accountIdentifier() {
+            return accountIdentifier;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), accountIdentifier);
+        }
+    }
+
+    static class GetBalances implements Serializable {
+        private final List<AccountIdentifier> accountIdentifiers;
+
+        GetBalances(List<AccountIdentifier> accountIdentifiers) {
+            this.accountIdentifiers = Collections.unmodifiableList(new ArrayList<>(accountIdentifiers));
+        }
+
+        List<AccountIdentifier> accountIdentifiers() {
+            return accountIdentifiers;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d accounts]", getClass().getSimpleName(), accountIdentifiers.size());
+        }
+    }
+
+    static class Balance implements Serializable {
+        private final AccountIdentifier accountIdentifier;
+        private final CurrencyValue balance;
+        private final long sequenceNr;
+
+        Balance(AccountIdentifier accountIdentifier, CurrencyValue balance, long sequenceNr) {
+            this.accountIdentifier = accountIdentifier;
+            this.balance = balance;
+            this.sequenceNr = sequenceNr;
+        }
+
+        AccountIdentifier accountIdentifier() {
+            return accountIdentifier;
+        }
+
+        CurrencyValue balance() {
+            return balance;
+        }
+
+        long sequenceNr() {
+            return sequenceNr;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s, %d]", getClass().getSimpleName(), accountIdentifier, balance, sequenceNr);
+        }
+    }
+
+    static class BalanceNotFound implements Serializable {
+        private final AccountIdentifier accountIdentifier;
+
+        BalanceNotFound(AccountIdentifier accountIdentifier) {
+            this.accountIdentifier = accountIdentifier;
+        }
+
+        AccountIdentifier accountIdentifier() {
+            return accountIdentifier;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), accountIdentifier);
+        }
+    }
+
+    static class Balances implements Serializable {
+        private final List<Balance> balances;
+        private final List<AccountIdentifier> notFound;
+
+        Balances(List<Balance> balances, List<AccountIdentifier> notFound) {
+            this.balances = Collections.unmodifiableList(balances);
+            this.notFound = Collections.unmodifiableList(notFound);
+        }
+
+        List<Balance> balances() {
+            return balances;
+        }
+
+        List<AccountIdentifier> notFound() {
+            return notFound;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d found, %d not found]", getClass().getSimpleName(), balances.size(), notFound.size());
+        }
+    }
+
+    /**
+     * The latest count windows of a size, in steps of the slide, oldest first. A tumbling window has a slide equal to
+     * its size. The size and the slide are multiples of {@code account.read-side.windows.pane}.
+     */
+    static class GetWindows implements Serializable {
+        private final FiniteDuration size;
+        private final FiniteDuration slide;
+        private final int count;
+
+        GetWindows(FiniteDuration size, FiniteDuration slide, int count) {
+            this.size = size;
+            this.slide = slide;
+            this.count = count;
+        }
+
+        FiniteDuration size() {
+            return size;
+        }
+
+        FiniteDuration slide() {
+            return slide;
+        }
+
+        int count() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, slide %s, %d]", getClass().getSimpleName(), size, slide, count);
+        }
+    }
+
+    /**
+     * The count, sum, minimum and maximum of the deposits or of the withdrawals of a window, in the minor units of the
+     * default currency.
+     */
+    static class Totals implements Serializable {
+        static final Totals EMPTY = new Totals(0, 0, 0, 0);
+
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        Totals(long count, long sum, long min, long max) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        long count() {
+            return count;
+        }
+
+        CurrencyValue sum() {
+            return CurrencyValue.ofUnits(sum, CurrencyValue.DEFAULT_CURRENCY);
+        }
+
+        CurrencyValue min() {
+            return CurrencyValue.ofUnits(min, CurrencyValue.DEFAULT_CURRENCY);
+        }
+
+        CurrencyValue max() {
+            return CurrencyValue.ofUnits(max, CurrencyValue.DEFAULT_CURRENCY);
+        }
+
+        Totals merge(Totals other) {
+            if (other.count == 0) {
+                return this;
+            }
+            if (count == 0) {
+                return other;
+            }
+            return new Totals(count + other.count, sum + other.sum, Math.min(min, other.min), Math.max(max, other.max));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, sum %s, min %s, max %s]", getClass().getSimpleName(), count, sum(), min(), max());
+        }
+    }
+
+    /**
+     * The deposits and withdrawals of an account in a window.
+     */
+    static class AccountVolume implements Serializable {
+        private final AccountIdentifier accountIdentifier;
+        private final CurrencyValue volume;
+
+        AccountVolume(AccountIdentifier accountIdentifier, CurrencyValue volume) {
+            this.accountIdentifier = accountIdentifier;
+            this.volume = volume;
+        }
+
+        AccountIdentifier accountIdentifier() {
+            return accountIdentifier;
+        }
+
+        CurrencyValue volume() {
+            return volume;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s]", getClass().getSimpleName(), accountIdentifier, volume);
+        }
+    }
+
+    /**
+     * The aggregates of the events with an event time from the start, inclusive, to the end, exclusive, in
+     * microseconds since the epoch.
+     * <p>
+     * <p>A window is closed when no more events are added to it, and partial when the read side of a tag restarted
+     * after it started, so it misses the events of the tag before the restart.</p>
+     */
+    static class Window implements Serializable {
+        private final long start;
+        private final long end;
+        private final boolean closed;
+        private final boolean partial;
+        private final Totals deposits;
+        private final Totals withdrawals;
+        private final List<AccountVolume> topAccounts;
+
+        Window(long start, long end, boolean closed, boolean partial, Totals deposits, Totals withdrawals,
+               List<AccountVolume> topAccounts) {
+            this.start = start;
+            this.end = end;
+            this.closed = closed;
+            this.partial = partial;
+            this.deposits = deposits;
+            this.withdrawals = withdrawals;
+            this.topAccounts = Collections.unmodifiableList(topAccounts);
+        }
+
+        long start() {
+            return start;
+        }
+
+        long end() {
+            return end;
+        }
+
+        boolean closed() {
+            return closed;
+        }
+
+        boolean partial() {
+            return partial;
+        }
+
+        Totals deposits() {
+            return deposits;
+        }
+
+        Totals withdrawals() {
+            return withdrawals;
+        }
+
+        /**
+         * @return the deposits less the withdrawals.
+         */
+        CurrencyValue netFlow() {
+            return CurrencyValue.ofUnits(deposits.sum - withdrawals.sum, CurrencyValue.DEFAULT_CURRENCY);
+        }
+
+        /**
+         * @return the accounts with the largest volumes, largest first.
+         */
+        List<AccountVolume> topAccounts() {
+            return topAccounts;
+        }
+
+        /**
+         * Merges the window of another tag, with other accounts, over the same time.
+         */
+        Window merge(Window other, int topN) {
+            Map<String, Long> volumes = new HashMap<>();
+            for (List<AccountVolume> accountVolumes : Arrays.asList(topAccounts, other.topAccounts)) {
+                for (AccountVolume accountVolume : accountVolumes) {
+                    volumes.merge(accountVolume.accountIdentifier().identifier(), accountVolume.volume().units(), Long::sum);
+                }
+            }
+            boolean mergedClosed = deposits.count + withdrawals.count == 0 ? other.closed
+                    : other.deposits.count + other.withdrawals.count == 0 ? closed : closed && other.closed;
+            return new Window(start, end, mergedClosed, partial || other.partial, deposits.merge(other.deposits),
+                    withdrawals.merge(other.withdrawals), AccountWindows.top(volumes, topN));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %s%s%s, deposits %s, withdrawals %s, net %s, top %s]", getClass().getSimpleName(),
+                    EpochMicros.toString(start), EpochMicros.toString(end), closed ? ", closed" : "",
+                    partial ? ", partial" : "", deposits, withdrawals, netFlow(), topAccounts);
+        }
+    }
+
+    static class Windows implements Serializable {
+        private final List<Window> windows;
+        private final long late;
+
+        Windows(List<Window> windows, long late) {
+            this.windows = Collections.unmodifiableList(windows);
+            this.late = late;
+        }
+
+        List<Window> windows() {
+            return windows;
+        }
+
+        /**
+         * @return the events that arrived after their windows closed and were not added.
+         */
+        long late() {
+            return late;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d windows, %d late]", getClass().getSimpleName(), windows.size(), late);
+        }
+    }
+}
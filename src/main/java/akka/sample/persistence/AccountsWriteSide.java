@@ -3,17 +3,57 @@ package akka.sample.persistence;
 import akka.actor.AbstractLoggingActor;
 import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.cluster.sharding.ShardRegion;
 import akka.japi.pf.ReceiveBuilder;
-import scala.Option;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static akka.pattern.PatternsCS.ask;
+import static akka.pattern.PatternsCS.pipe;
 
 /**
  * The actor that provides access to accounts.
  * <p>
- * <p>This actor delegates messages to specific {@link AccountWriteSide} actors based on the account identifier.
- * If an instance of the {@link AccountWriteSide} does not exist then one is created as a child actor and the
- * message is forwarded to the child. If the instance already exists then the message is forwarded to the child.</p>
+ * <p>Accounts are cluster sharded. This actor starts the account shard region on its node and forwards messages
+ * to the region, which delivers them to the {@link AccountWriteSide} entity of the account identifier. The entity
+ * is started in one of the shards that the region hosts or the message is sent to the node that hosts the shard of
+ * the account. One instance of this actor runs on each node that hosts accounts, so accounts are spread over the
+ * cluster and rebalanced when nodes join.</p>
+ * <p>
+ * <p>The idle accounts of the node are passivated by an {@link AccountPassivation} child of this actor.</p>
+ * <p>
+ * <p>Account queries are answered from the {@link AccountBalanceCache} of the node when it knows the balance, and
+ * forwarded to the account otherwise.</p>
+ * <p>
+ * <p>A {@link AccountWriteSide.CommandBatch} is split by account identifier. The commands of each account are sent to
+ * the account as one {@link AccountWriteSide.CommandAccountBatch}, which the account writes with a single
+ * {@code persistAll}, and the replies of the accounts are combined into one
+ * {@link AccountWriteSide.CommandBatchResult} with the outcome of each command, in the order of the batch. When an
+ * account does not reply in time, its commands may still be written, so they get a
+ * {@link AccountWriteSide.CommandOutcomeUnknown} outcome rather than a rejection.</p>
+ * <p>
+ * <p>A command with a deadline that has passed, or that is not expected to be written before its deadline, is
+ * rejected here with a {@link AccountWriteSide.CommandRejected} reply instead of being sent to its account, see
+ * {@link AccountAdmission}.</p>
  */
 class AccountsWriteSide extends AbstractLoggingActor {
+    static final String SHARD_TYPE_NAME = "account";
+
+    private final WriteSideSettings settings = WriteSideSettings.create(context().system().settings().config());
+    private final ActorRef passivation = context().actorOf(AccountPassivation.props(settings), "passivation");
+    private final ActorRef shardRegion = startShardRegion();
+    private final AccountBalanceCache balanceCache = AccountBalanceCache.get(context().system());
+    private final AccountMetrics metrics = AccountMetrics.get(context().system());
+    private final AccountAdmission admission = AccountAdmission.get(context().system());
+
     static Props props() {
         return Props.create(AccountsWriteSide.class);
     }
@@ -24,29 +64,147 @@ class AccountsWriteSide extends AbstractLoggingActor {
                 .match(AccountWriteSide.CommandDeposit.class, this::deposit)
                 .match(AccountWriteSide.CommandWithdrawal.class, this::withdrawal)
                 .match(AccountWriteSide.CommandGetAccount.class, this::getAccount)
+                .match(AccountWriteSide.CommandBatch.class, this::batch)
                 .build();
     }
 
     private void deposit(AccountWriteSide.CommandDeposit deposit) {
-        sendCommandToAccount(deposit.accountIdentifier(), deposit);
+        forward(deposit, 1);
     }
 
     private void withdrawal(AccountWriteSide.CommandWithdrawal withdrawal) {
-        sendCommandToAccount(withdrawal.accountIdentifier(), withdrawal);
+        forward(withdrawal, 1);
     }
 
-    private void getAccount(AccountWriteSide.CommandGetAccount commandGetAccount) {
-        sendCommandToAccount(commandGetAccount.accountIdentifier(), commandGetAccount);
+    /**
+     * Sheds a command that cannot be written before its deadline here, without sending it to its account.
+     */
+    private void forward(AccountWriteSide.Command command, int writes) {
+        AccountWriteSide.CommandRejected rejected = admission.shed(command.deadline(), writes);
+        if (rejected == null) {
+            shardRegion.forward(command, context());
+        }
+        else {
+            sender().tell(rejected, self());
+            log().debug("Shed {} {}", command, rejected);
+        }
     }
 
-    private void sendCommandToAccount(AccountIdentifier accountIdentifier, Object message) {
-        Option<ActorRef> accountRefOption = context().child(accountIdentifier.identifier());
-        if (accountRefOption.isDefined()) {
-            accountRefOption.get().forward(message, context());
+    private void getAccount(AccountWriteSide.CommandGetAccount commandGetAccount) {
+        Account account = balanceCache.account(commandGetAccount.accountIdentifier());
+        if (account == null) {
+            metrics.cacheMiss();
+            forward(commandGetAccount, 0);
         }
         else {
-            ActorRef accountRef = context().actorOf(AccountWriteSide.props(accountIdentifier), accountIdentifier.identifier());
-            accountRef.forward(message, context());
+            metrics.cacheHit();
+            sender().tell(new AccountWriteSide.GetAccountResponse(account), self());
+        }
+    }
+
+    private void batch(AccountWriteSide.CommandBatch commandBatch) {
+        List<AccountWriteSide.Command> commands = commandBatch.commands();
+        if (commands.size() > settings.batchMaxSize()) {
+            sender().tell(new AccountWriteSide.CommandRejected(
+                    String.format("Batch of %d commands exceeds the limit of %d", commands.size(), settings.batchMaxSize())), self());
+            return;
+        }
+        AccountWriteSide.CommandRejected rejected = admission.shedBatch(commandBatch.deadline());
+        if (rejected != null) {
+            sender().tell(rejected, self());
+            return;
+        }
+
+        Map<AccountIdentifier, List<Integer>> indexesByAccount = new LinkedHashMap<>();
+        for (int index = 0; index < commands.size(); index++) {
+            indexesByAccount
+                    .computeIfAbsent(commands.get(index).accountIdentifier(), accountIdentifier -> new ArrayList<>())
+                    .add(index);
+        }
+
+        List<List<Integer>> indexes = new ArrayList<>(indexesByAccount.size());
+        List<CompletableFuture<Object>> replies = new ArrayList<>(indexesByAccount.size());
+        indexesByAccount.forEach((accountIdentifier, accountIndexes) -> {
+            List<AccountWriteSide.Command> accountCommands = new ArrayList<>(accountIndexes.size());
+            for (int index : accountIndexes) {
+                accountCommands.add(commands.get(index));
+            }
+            indexes.add(accountIndexes);
+            replies.add(ask(shardRegion, new AccountWriteSide.CommandAccountBatch(accountIdentifier, accountCommands, commandBatch.deadline()), settings.batchTimeout().toMillis())
+                    .toCompletableFuture()
+                    .exceptionally(e -> new AccountWriteSide.CommandOutcomeUnknown(String.format("No reply from %s, %s", accountIdentifier, e))));
+        });
+
+        CompletionStage<AccountWriteSide.CommandBatchResult> result = CompletableFuture
+                .allOf(replies.toArray(new CompletableFuture[replies.size()]))
+                .thenApply(done -> combine(commands.size(), indexes, replies));
+        pipe(result, context().dispatcher()).to(sender());
+        log().debug("Batch of {} commands for {} accounts", commands.size(), indexesByAccount.size());
+    }
+
+    /**
+     * Puts the outcomes of the commands of each account back in the order of the batch. When an account rejected its
+     * commands, or did not reply in time, each of its commands gets that reply.
+     */
+    static AccountWriteSide.CommandBatchResult combine(int size, List<List<Integer>> indexes, List<CompletableFuture<Object>> replies) {
+        Object[] outcomes = new Object[size];
+
+        for (int account = 0; account < replies.size(); account++) {
+            List<Integer> accountIndexes = indexes.get(account);
+            List<Object> accountOutcomes = AccountWriteSide.CommandBatchResult.outcomes(replies.get(account).join(), accountIndexes.size());
+
+            for (int i = 0; i < accountIndexes.size(); i++) {
+                outcomes[accountIndexes.get(i)] = accountOutcomes.get(i);
+            }
+        }
+        return new AccountWriteSide.CommandBatchResult(outcomes);
+    }
+
+    private ActorRef startShardRegion() {
+        log().info("Start shard region {}", settings);
+
+        return ClusterSharding.get(context().system()).start(
+                SHARD_TYPE_NAME,
+                AccountWriteSide.props(settings, passivation),
+                ClusterShardingSettings.create(context().system()),
+                new MessageExtractor(settings.numberOfShards()),
+                new ShardCoordinator.LeastShardAllocationStrategy(settings.rebalanceThreshold(), settings.maxSimultaneousRebalance()),
+                new AccountWriteSide.Stop());
+    }
+
+    /**
+     * Routes account commands by account identifier. The shard of an account is a stable hash of its identifier.
+     */
+    static class MessageExtractor implements ShardRegion.MessageExtractor {
+        private final int numberOfShards;
+
+        MessageExtractor(int numberOfShards) {
+            this.numberOfShards = numberOfShards;
+        }
+
+        @Override
+        public String entityId(Object message) {
+            if (message instanceof AccountWriteSide.Command) {
+                return ((AccountWriteSide.Command) message).accountIdentifier().identifier();
+            }
+            return null;
+        }
+
+        @Override
+        public Object entityMessage(Object message) {
+            return message;
+        }
+
+        @Override
+        public String shardId(Object message) {
+            if (message instanceof AccountWriteSide.Command) {
+                return shardId(((AccountWriteSide.Command) message).accountIdentifier());
+            }
+            return null;
+        }
+
+        String shardId(AccountIdentifier accountIdentifier) {
+            return String.valueOf(Math.floorMod(accountIdentifier.hashCode(), numberOfShards));
         }
     }
 }
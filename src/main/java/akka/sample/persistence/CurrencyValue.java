@@ -1,53 +1,126 @@
 package akka.sample.persistence;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.text.NumberFormat;
+import java.util.Currency;
 
 /**
  * A currency value.
+ * <p>
+ * <p>The value is held as a fixed-point count of the minor units of its currency, for example cents for US dollars.
+ * Arithmetic on the minor units is exact and fails with an {@link ArithmeticException} on overflow instead of
+ * wrapping around. {@link BigDecimal} is only used to convert to and from the API.</p>
  */
 class CurrencyValue implements Serializable {
-    private final BigDecimal amount;
+    private static final long serialVersionUID = -246128420642681993L;
+    // Java serialization keeps the BigDecimal amount of the original class, so that events and snapshots
+    // that were written with Java serialization can still be read.
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("amount", BigDecimal.class),
+            new ObjectStreamField("currency", String.class)};
+
+    static final Currency DEFAULT_CURRENCY = Currency.getInstance("USD");
+    private static final CurrencyValue ZERO = new CurrencyValue(0, DEFAULT_CURRENCY);
+
+    private final long units;
+    private final Currency currency;
+    private transient BigDecimal serializedAmount;
+    private transient String serializedCurrency;
+
+    private CurrencyValue(long units, Currency currency) {
+        this.units = units;
+        this.currency = currency;
+    }
 
-    private CurrencyValue(BigDecimal amount) {
-        this.amount = amount;
+    static CurrencyValue create(BigDecimal amount) {
+        return create(amount, DEFAULT_CURRENCY);
     }
 
-    private CurrencyValue(double amount) {
-        this.amount = new BigDecimal(amount);
+    /**
+     * Create a value from an exact amount, fails with an {@link ArithmeticException} when the amount has more
+     * fraction digits than the currency or when it does not fit in the minor units.
+     */
+    static CurrencyValue create(BigDecimal amount, Currency currency) {
+        return new CurrencyValue(amount.movePointRight(scale(currency)).longValueExact(), currency);
     }
 
-    private CurrencyValue(int amount) {
-        this.amount = new BigDecimal(amount);
+    /**
+     * Create a value from a double, which is rounded half even to the fraction digits of the currency, so 99.95
+     * is 9995 cents.
+     */
+    static CurrencyValue create(double amount) {
+        return create(BigDecimal.valueOf(amount).setScale(scale(DEFAULT_CURRENCY), RoundingMode.HALF_EVEN));
     }
 
-    private CurrencyValue(String amount) {
-        this.amount = new BigDecimal(amount);
+    static CurrencyValue create(int amount) {
+        return new CurrencyValue(Math.multiplyExact(amount, unitsPerWhole(DEFAULT_CURRENCY)), DEFAULT_CURRENCY);
     }
 
-    static CurrencyValue create(BigDecimal amount) {
-        return new CurrencyValue(amount);
+    static CurrencyValue create(String amount) {
+        return create(new BigDecimal(amount));
     }
 
-    static CurrencyValue create(double amount) {
-        return new CurrencyValue(amount);
+    static CurrencyValue ofUnits(long units, Currency currency) {
+        return units == 0 && currency == DEFAULT_CURRENCY ? ZERO : new CurrencyValue(units, currency);
     }
 
-    static CurrencyValue create(int amount) {
-        return new CurrencyValue(amount);
+    static CurrencyValue zero() {
+        return ZERO;
     }
 
-    static CurrencyValue create(String amount) {
-        return new CurrencyValue(amount);
+    /**
+     * The number of fraction digits of the minor units of a currency.
+     */
+    static int scale(Currency currency) {
+        return Math.max(0, currency.getDefaultFractionDigits());
     }
 
     BigDecimal amount() {
-        return amount;
+        return BigDecimal.valueOf(units, scale(currency));
     }
 
-    static CurrencyValue zero() {
-        return new CurrencyValue(0);
+    long units() {
+        return units;
+    }
+
+    Currency currency() {
+        return currency;
+    }
+
+    boolean isZero() {
+        return units == 0;
+    }
+
+    private static long unitsPerWhole(Currency currency) {
+        long unitsPerWhole = 1;
+        for (int i = scale(currency); i > 0; i--) {
+            unitsPerWhole *= 10;
+        }
+        return unitsPerWhole;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("amount", amount());
+        fields.put("currency", currency.getCurrencyCode());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        serializedAmount = (BigDecimal) fields.get("amount", null);
+        serializedCurrency = (String) fields.get("currency", null);
+    }
+
+    private Object readResolve() {
+        Currency currency = serializedCurrency == null ? DEFAULT_CURRENCY : Currency.getInstance(serializedCurrency);
+        return create(serializedAmount.setScale(scale(currency), RoundingMode.HALF_EVEN), currency);
     }
 
     @Override
@@ -57,16 +130,20 @@ class CurrencyValue implements Serializable {
 
         CurrencyValue that = (CurrencyValue) o;
 
-        return amount.equals(that.amount);
+        return units == that.units && currency.equals(that.currency);
     }
 
     @Override
     public int hashCode() {
-        return amount.hashCode();
+        int result = Long.hashCode(units);
+        result = 31 * result + currency.hashCode();
+        return result;
     }
 
     @Override
     public String toString() {
-        return NumberFormat.getCurrencyInstance().format(amount);
+        NumberFormat numberFormat = NumberFormat.getCurrencyInstance();
+        numberFormat.setCurrency(currency);
+        return numberFormat.format(amount());
     }
 }
@@ -0,0 +1,98 @@
+package akka.sample.persistence;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event timestamps, as microseconds since the epoch in a {@code long}.
+ * <p>
+ * <p>The clock reads the wall clock at an anchor and advances it with {@link System#nanoTime()}, so reading it
+ * neither allocates nor looks up a time zone. The anchor is taken again when it is a second old, so the clock follows
+ * the wall clock, and its NTP adjustments, within a second, and the times of different nodes, such as deadlines and
+ * event times, are as close as their wall clocks.</p>
+ * <p>
+ * <p>The times of a node never go backwards. A new anchor that is earlier than the last time read, a few
+ * microseconds after an NTP adjustment or more when the wall clock was set back, does not take effect until the
+ * wall clock has caught up, the clock returns the last time until then.</p>
+ * <p>
+ * <p>Events that were written before timestamps were epoch microseconds have a time without a time zone, the wall
+ * time of the system time zone of the node that wrote them, which is converted in the system time zone.</p>
+ */
+final class EpochMicros {
+    private static final long ANCHOR_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static volatile Anchor anchor = new Anchor();
+    private static final AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+
+    private EpochMicros() {
+    }
+
+    static long now() {
+        Anchor current = anchor;
+        long elapsedNanos = System.nanoTime() - current.nanos;
+        long micros;
+        if (elapsedNanos >= ANCHOR_INTERVAL_NANOS) {
+            current = new Anchor();
+            anchor = current;
+            micros = current.micros;
+        }
+        else {
+            micros = current.micros + elapsedNanos / 1000;
+        }
+
+        long previous;
+        do {
+            previous = last.get();
+            if (micros <= previous) {
+                return previous;
+            }
+        } while (!last.compareAndSet(previous, micros));
+        return micros;
+    }
+
+    /**
+     * The timestamps of events that were written before timestamps were epoch microseconds, with
+     * {@code LocalDateTime.now()}, in the system time zone. In the hour that is repeated when the clocks go back, the
+     * earlier of the two times is taken.
+     */
+    static long of(LocalDateTime time) {
+        return of(time, ZoneId.systemDefault());
+    }
+
+    static long of(LocalDateTime time, ZoneId zone) {
+        Instant instant = time.atZone(zone).toInstant();
+        return TimeUnit.SECONDS.toMicros(instant.getEpochSecond()) + TimeUnit.NANOSECONDS.toMicros(instant.getNano());
+    }
+
+    /**
+     * @return the time in the system time zone, as the events were written before timestamps were epoch microseconds.
+     */
+    static LocalDateTime toLocalDateTime(long epochMicros) {
+        return toLocalDateTime(epochMicros, ZoneId.systemDefault());
+    }
+
+    static LocalDateTime toLocalDateTime(long epochMicros, ZoneId zone) {
+        return LocalDateTime.ofInstant(instant(epochMicros), zone);
+    }
+
+    static String toString(long epochMicros) {
+        return instant(epochMicros).toString();
+    }
+
+    private static Instant instant(long epochMicros) {
+        return Instant.ofEpochSecond(Math.floorDiv(epochMicros, 1_000_000), Math.floorMod(epochMicros, 1_000_000) * 1000);
+    }
+
+    private static final class Anchor {
+        private final long micros;
+        private final long nanos;
+
+        private Anchor() {
+            Instant now = Instant.now();
+            nanos = System.nanoTime();
+            micros = TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + TimeUnit.NANOSECONDS.toMicros(now.getNano());
+        }
+    }
+}
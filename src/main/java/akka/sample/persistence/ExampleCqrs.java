@@ -1,6 +1,7 @@
 package akka.sample.persistence;
 
 import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
 
 /**
  * Playing with Akka persistence query.
@@ -8,7 +9,17 @@ import akka.actor.ActorSystem;
 public class ExampleCqrs {
     {
         ActorSystem actorSystem = ActorSystem.create("cqrs");
-        actorSystem.actorOf(AccountsReadSide.props(), "accounts-read-side");
+        joinCluster(actorSystem);
+        actorSystem.actorOf(AccountsReadSideDistribution.props(), "accounts-read-side");
+        actorSystem.actorOf(AccountsView.props(), "accounts-view");
+    }
+
+    /**
+     * The read sides of the event tags are cluster sharded, so this node forms a single node cluster.
+     */
+    private void joinCluster(ActorSystem actorSystem) {
+        Cluster cluster = Cluster.get(actorSystem);
+        cluster.join(cluster.selfAddress());
     }
 
     public static void main(String[] arguments) {
@@ -0,0 +1,193 @@
+package akka.sample.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.stream.javadsl.Sink;
+import akka.util.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk load postings from a CSV file into the accounts through the {@link AccountCommandFlow}.
+ * <p>
+ * <p>Each line of the file is a posting, {@code account,type,amount}, where the type is {@code deposit} or
+ * {@code withdrawal}, for example {@code 1042,deposit,250.00}. A header line, empty lines and lines that cannot be
+ * parsed are skipped, the lines that cannot be parsed are logged. The file is read as fast as the accounts write
+ * the postings, and the progress is logged every {@value #REPORT_EVERY} postings.</p>
+ * <p>
+ * <p>Run it with the file as the argument. With {@code --generate file postings accounts} it writes a file of random
+ * postings instead, with the postings of each account together, as in a settlement file.</p>
+ */
+public class ExampleIngest {
+    private static final Logger log = LoggerFactory.getLogger(ExampleIngest.class);
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final int REPORT_EVERY = 100_000;
+    private static final String DEPOSIT = "deposit";
+    private static final String WITHDRAWAL = "withdrawal";
+
+    private final ActorSystem actorSystem;
+
+    private ExampleIngest(Path file) {
+        actorSystem = startActorSystem();
+        try {
+            ingest(file);
+        }
+        finally {
+            shutdownActorSystem();
+        }
+    }
+
+    private ActorSystem startActorSystem() {
+        log.info("Start actor system");
+        ActorSystem actorSystem = ActorSystem.create("ingest");
+        Cluster cluster = Cluster.get(actorSystem);
+        cluster.join(cluster.selfAddress());
+        return actorSystem;
+    }
+
+    private void ingest(Path file) {
+        WriteSideSettings settings = WriteSideSettings.create(actorSystem.settings().config());
+        ActorRef accounts = actorSystem.actorOf(AccountsWriteSide.props(), "accounts");
+        ActorMaterializer materializer = ActorMaterializer.create(actorSystem);
+        Progress progress = new Progress();
+
+        log.info("Ingest {}, {}", file, settings);
+        try {
+            FileIO.fromPath(file)
+                    .via(Framing.delimiter(ByteString.fromString("\n"), MAX_LINE_LENGTH, FramingTruncation.ALLOW))
+                    .map(ByteString::utf8String)
+                    .statefulMapConcat(() -> {
+                        long[] lineNumber = {0};
+                        return line -> parse(++lineNumber[0], line, progress);
+                    })
+                    .via(AccountCommandFlow.create(accounts, settings))
+                    .runWith(Sink.foreach(progress::add), materializer)
+                    .toCompletableFuture()
+                    .join();
+            log.info("Completed {}", progress);
+        }
+        catch (RuntimeException e) {
+            log.warn("Ingest failed, {}", progress, e);
+        }
+    }
+
+    private static List<AccountWriteSide.Command> parse(long lineNumber, String line, Progress progress) {
+        String[] fields = line.trim().split(",");
+        if (fields.length == 1 && fields[0].isEmpty() || lineNumber == 1 && fields[0].equals("account")) {
+            return Collections.emptyList();
+        }
+
+        try {
+            if (fields.length != 3) {
+                throw new IllegalArgumentException(String.format("%d fields", fields.length));
+            }
+            AccountIdentifier accountIdentifier = AccountIdentifier.create(fields[0].trim());
+            CurrencyValue amount = CurrencyValue.create(fields[2].trim());
+
+            switch (fields[1].trim()) {
+                case DEPOSIT:
+                    return Collections.singletonList(new AccountWriteSide.CommandDeposit(accountIdentifier, amount));
+                case WITHDRAWAL:
+                    return Collections.singletonList(new AccountWriteSide.CommandWithdrawal(accountIdentifier, amount));
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown posting type %s", fields[1]));
+            }
+        }
+        catch (RuntimeException e) {
+            progress.skipped++;
+            log.warn("Skip line {} '{}', {}", lineNumber, line, e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private void shutdownActorSystem() {
+        log.info("Shutdown actor system");
+        actorSystem.terminate();
+    }
+
+    /**
+     * Writes the postings of random accounts, each account with a run of postings.
+     */
+    private static void generate(Path file, long postings, int accounts) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("account,type,amount");
+            writer.newLine();
+            for (long posting = 0; posting < postings; ) {
+                int account = 1 + random.nextInt(accounts);
+                for (int run = 1 + random.nextInt(20); run > 0 && posting < postings; run--, posting++) {
+                    writer.write(String.format("%d,%s,%d.%02d", account, random.nextInt(10) < 7 ? DEPOSIT : WITHDRAWAL,
+                            1 + random.nextInt(1000), random.nextInt(100)));
+                    writer.newLine();
+                }
+            }
+        }
+        log.info("Generated {} postings of {} accounts in {}", postings, accounts, file);
+    }
+
+    public static void main(String[] arguments) throws IOException {
+        if (arguments.length == 4 && arguments[0].equals("--generate")) {
+            generate(Paths.get(arguments[1]), Long.parseLong(arguments[2]), Integer.parseInt(arguments[3]));
+        }
+        else if (arguments.length == 1) {
+            new ExampleIngest(Paths.get(arguments[0]));
+        }
+        else {
+            System.err.printf("Usage: %s file | --generate file postings accounts%n", ExampleIngest.class.getSimpleName());
+        }
+    }
+
+    /**
+     * The postings that were written, rejected, of unknown outcome and skipped, updated by the stream.
+     */
+    private static class Progress {
+        private final long startedAt = System.nanoTime();
+        private long written = 0;
+        private long rejected = 0;
+        private long unknown = 0;
+        private long skipped = 0;
+
+        private void add(AccountCommandFlow.Result result) {
+            if (result.rejected()) {
+                rejected++;
+                log.debug("Rejected {}", result);
+            }
+            else if (result.unknown()) {
+                unknown++;
+                log.warn("Outcome unknown {}", result);
+            }
+            else {
+                written++;
+            }
+            if ((written + rejected + unknown) % REPORT_EVERY == 0) {
+                log.info("{}", this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            long nanos = System.nanoTime() - startedAt;
+            return String.format("%s[written %d, rejected %d, unknown %d, skipped %d, %ds, %.0f/s]", getClass().getSimpleName(),
+                    written, rejected, unknown, skipped, TimeUnit.NANOSECONDS.toSeconds(nanos),
+                    (written + rejected + unknown) * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package akka.sample.persistence;
+
+import akka.actor.ActorSystem;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+import com.typesafe.config.ConfigFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static akka.sample.persistence.AccountWriteSide.*;
+
+/**
+ * Compare the {@link AccountSerializer} with Java serialization.
+ * <p>
+ * <p>Each message is first checked to be bound to the {@link AccountSerializer} in the configuration and to survive
+ * a round trip through both serializers. Then the serialized sizes and the serialize plus deserialize throughput
+ * of both serializers are logged.</p>
+ */
+public class ExampleSerialization {
+    private static final Logger log = LoggerFactory.getLogger(ExampleSerialization.class);
+    private static final int WARMUP_ITERATIONS = 50_000;
+    private static final int MEASURED_ITERATIONS = 200_000;
+
+    {
+        ActorSystem actorSystem = ActorSystem.create("serialization",
+                ConfigFactory.parseString("akka.actor.provider = local").withFallback(ConfigFactory.load()));
+
+        try {
+            compare(SerializationExtension.get(actorSystem), messages());
+        }
+        finally {
+            actorSystem.terminate();
+        }
+    }
+
+    private List<Object> messages() {
+        AccountIdentifier accountIdentifier = AccountIdentifier.create("100");
+        CurrencyValue amount = CurrencyValue.create("99.95");
+        Account account = new Account(accountIdentifier, CurrencyValue.create("1234.56"));
+
+        return Arrays.asList(
+                accountIdentifier,
+                amount,
+                account,
+                new CommandDeposit(accountIdentifier, amount),
+                new CommandWithdrawal(accountIdentifier, amount),
+                new CommandGetAccount(accountIdentifier),
+                new EventDeposit(accountIdentifier, amount),
+                new EventWithdrawal(accountIdentifier, amount),
+                new GetAccountResponse(account),
+                new GetAccountNotFound(accountIdentifier));
+    }
+
+    private void compare(Serialization serialization, List<Object> messages) {
+        for (Object message : messages) {
+            Serializer serializer = serialization.findSerializerFor(message);
+            if (!(serializer instanceof AccountSerializer)) {
+                throw new IllegalStateException(String.format("%s is bound to %s", message, serializer));
+            }
+            compare((AccountSerializer) serializer, message);
+        }
+    }
+
+    private void compare(SerializerWithStringManifest serializer, Object message) {
+        byte[] binary = serializer.toBinary(message);
+        byte[] java = javaSerialize(message);
+
+        requireRoundTrip(message, serializer.fromBinary(binary, serializer.manifest(message)));
+        requireRoundTrip(message, javaDeserialize(java));
+
+        double binaryRate = throughput(() -> serializer.fromBinary(serializer.toBinary(message), serializer.manifest(message)));
+        double javaRate = throughput(() -> javaDeserialize(javaSerialize(message)));
+
+        log.info("{}: binary {} bytes {} ops/s, java {} bytes {} ops/s",
+                message.getClass().getSimpleName(), binary.length, (long) binaryRate, java.length, (long) javaRate);
+    }
+
+    private void requireRoundTrip(Object expected, Object actual) {
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException(String.format("Round trip of %s returned %s", expected, actual));
+        }
+    }
+
+    private double throughput(Runnable roundTrip) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            roundTrip.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            roundTrip.run();
+        }
+        return MEASURED_ITERATIONS / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static byte[] javaSerialize(Object message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object javaDeserialize(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+        catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] arguments) {
+        log.info("Start {}", ExampleSerialization.class.getSimpleName());
+        new ExampleSerialization();
+    }
+}
@@ -0,0 +1,192 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import com.typesafe.config.Config;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A read side store in an embedded LevelDB, one database per actor system that is shared by the read sides of all of
+ * the tags on the node. The database is in the directory of the node, see {@link ReadSideStore#nodeDirectory}.
+ * <p>
+ * <p>Each account balance has its own key, {@code balance/<tag>/<account identifier>}, and each tag has an offset key,
+ * {@code offset/<tag>}. A checkpoint holds the accounts that changed since the previous checkpoint of the tag, which
+ * are written together with the offset in one {@link WriteBatch}, so the balances and the offset are stored atomically
+ * and the read side needs one write per checkpoint, not one per event or per account.</p>
+ * <p>
+ * <p>With {@code fsync} on each checkpoint is synced to disk before it is considered stored. With {@code fsync} off a
+ * crash of the machine may lose the last checkpoints, which only means that more events are delivered again.</p>
+ */
+class LevelDbReadSideStore implements ReadSideStore, Extension {
+    private static final String OFFSET_PREFIX = "offset/";
+    private static final String BALANCE_PREFIX = "balance/";
+
+    private final DB db;
+    private final WriteOptions writeOptions;
+    private final File directory;
+
+    private LevelDbReadSideStore(ActorSystem actorSystem) {
+        Config config = actorSystem.settings().config().getConfig("account.read-side.offset-store.leveldb");
+        Options options = new Options().createIfMissing(true);
+
+        directory = ReadSideStore.nodeDirectory(actorSystem, Paths.get(config.getString("dir"))).toFile();
+        writeOptions = new WriteOptions().sync(config.getBoolean("fsync")).snapshot(false);
+
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException(String.format("Cannot create %s", directory));
+            }
+            db = config.getBoolean("native")
+                    ? JniDBFactory.factory.open(directory, options)
+                    : Iq80DBFactory.factory.open(directory, options);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        actorSystem.registerOnTermination(this::close);
+    }
+
+    static LevelDbReadSideStore get(ActorSystem actorSystem) {
+        return Id.ID.get(actorSystem);
+    }
+
+    @Override
+    public Optional<Checkpoint> load(String tag) {
+        byte[] offset = db.get(key(OFFSET_PREFIX + tag));
+        if (offset == null) {
+            return Optional.empty();
+        }
+
+        AccountBalances balances = new AccountBalances();
+        byte[] prefix = key(BALANCE_PREFIX + tag + "/");
+        try (DBIterator iterator = db.iterator()) {
+            for (iterator.seek(prefix); iterator.hasNext(); ) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                if (!startsWith(entry.getKey(), prefix)) {
+                    break;
+                }
+                String identifier = new String(entry.getKey(), prefix.length, entry.getKey().length - prefix.length, StandardCharsets.UTF_8);
+                putBalance(balances, identifier, entry.getValue());
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(offset);
+        return Optional.of(new Checkpoint(ReadSideStore.getOffset(buffer), Collections.singletonList(balances.toBytes())));
+    }
+
+    @Override
+    public void save(String tag, Checkpoint checkpoint) {
+        String prefix = BALANCE_PREFIX + tag + "/";
+
+        try (WriteBatch batch = db.createWriteBatch()) {
+            for (byte[] view : checkpoint.views()) {
+                AccountBalances.fromBytes(view).forEach((identifier, sequenceNr, balance, currency) ->
+                        batch.put(key(prefix + identifier), balance(sequenceNr, balance, currency)));
+            }
+            ByteBuffer offset = ByteBuffer.allocate(16);
+            ReadSideStore.putOffset(offset, checkpoint.offset());
+            batch.put(key(OFFSET_PREFIX + tag), offset.array());
+            db.write(batch, writeOptions);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return true, each checkpoint holds the accounts that changed since the previous checkpoint of the tag.
+     */
+    @Override
+    public boolean incremental() {
+        return true;
+    }
+
+    private void close() {
+        try {
+            db.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length >= prefix.length && Arrays.equals(Arrays.copyOf(bytes, prefix.length), prefix);
+    }
+
+    private static byte[] balance(long sequenceNr, long balance, Currency currency) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(24);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(sequenceNr);
+            out.writeLong(balance);
+            out.writeUTF(currency.getCurrencyCode());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void putBalance(AccountBalances balances, String identifier, byte[] value) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(value))) {
+            long sequenceNr = in.readLong();
+            long balance = in.readLong();
+            balances.put(identifier, sequenceNr, balance, Currency.getInstance(in.readUTF()));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", getClass().getSimpleName(), directory);
+    }
+
+    static class Id extends AbstractExtensionId<LevelDbReadSideStore> implements ExtensionIdProvider {
+        static final Id ID = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return ID;
+        }
+
+        @Override
+        public LevelDbReadSideStore createExtension(ExtendedActorSystem actorSystem) {
+            return new LevelDbReadSideStore(actorSystem);
+        }
+    }
+}
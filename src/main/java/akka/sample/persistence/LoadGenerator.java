@@ -0,0 +1,336 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.japi.pf.ReceiveBuilder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static akka.pattern.PatternsCS.ask;
+import static akka.pattern.PatternsCS.pipe;
+
+/**
+ * Generates load on the account write side and reports the latency and throughput of the commands.
+ * <p>
+ * <p>In the closed loop mode a fixed number of commands is outstanding and a new command is sent when a reply
+ * arrives. In the open loop mode commands are sent at a target rate whether or not the replies keep up, and the
+ * latency of a command is measured from the time when it was due, so a stall of the write side shows up as latency
+ * instead of as fewer commands.</p>
+ * <p>
+ * <p>The accounts of the commands are drawn from an {@link AccountKeyDistribution}, and the kind of each command
+ * from the configured mix of deposits, withdrawals and gets. The latencies of the commands that are sent after the
+ * warmup are recorded in HdrHistogram recorders per kind of command, and logged with the throughput every report
+ * interval. The report of the whole run is the reply to {@link Start}.</p>
+ * <p>
+ * <p>With a configured deadline the commands that the write side sheds, see {@link AccountAdmission}, are counted as
+ * errors.</p>
+ */
+class LoadGenerator extends AbstractLoggingActor {
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final FiniteDuration TICK = Duration.create(10, TimeUnit.MILLISECONDS);
+    private static final int DEPOSIT = 0;
+    private static final int WITHDRAWAL = 1;
+    private static final int GET = 2;
+    private static final String[] OPERATIONS = {"deposit", "withdrawal", "get"};
+
+    private final ActorRef accounts;
+    private final LoadGeneratorSettings settings;
+    private final AccountKeyDistribution distribution;
+    private final AccountIdentifier[] accountIdentifiers;
+    private final Recorder[] latencies = new Recorder[OPERATIONS.length];
+    private final Histogram[] totalLatencies = new Histogram[OPERATIONS.length];
+    private ActorRef replyTo;
+    private Cancellable ticks;
+    private Cancellable reports;
+    private long startedAt;
+    private long measureFrom;
+    private long endAt;
+    private long lastReportAt;
+    private long sent = 0;
+    private int outstanding = 0;
+    private long errors = 0;
+    private long totalErrors = 0;
+    private long skipped = 0;
+    private long totalSkipped = 0;
+    private boolean sending = false;
+
+    LoadGenerator(ActorRef accounts, LoadGeneratorSettings settings) {
+        this.accounts = accounts;
+        this.settings = settings;
+        this.distribution = AccountKeyDistribution.create(settings);
+
+        accountIdentifiers = new AccountIdentifier[settings.accounts()];
+        for (int account = 0; account < accountIdentifiers.length; account++) {
+            accountIdentifiers[account] = AccountIdentifier.create(String.valueOf(account + 1));
+        }
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            latencies[operation] = new Recorder(SIGNIFICANT_DIGITS);
+            totalLatencies[operation] = new Histogram(SIGNIFICANT_DIGITS);
+        }
+    }
+
+    static Props props(ActorRef accounts, LoadGeneratorSettings settings) {
+        return Props.create(LoadGenerator.class, accounts, settings);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return ReceiveBuilder.create()
+                .match(Start.class, this::start)
+                .match(Tick.class, this::tick)
+                .match(Completed.class, this::completed)
+                .match(ReportTick.class, this::reportInterval)
+                .build();
+    }
+
+    private void start(Start start) {
+        log().info("Start {}, {}", settings, distribution);
+        replyTo = sender();
+        startedAt = System.nanoTime();
+        measureFrom = startedAt + settings.warmup().toNanos();
+        endAt = measureFrom + settings.duration().toNanos();
+        lastReportAt = measureFrom;
+        sending = true;
+
+        if (settings.openLoop()) {
+            ticks = context().system().scheduler().schedule(TICK, TICK, self(), new Tick(), context().dispatcher(), self());
+        }
+        else {
+            for (int i = 0; i < settings.concurrency(); i++) {
+                send(startedAt);
+            }
+        }
+        reports = context().system().scheduler().schedule(
+                settings.warmup().plus(settings.reportInterval()),
+                settings.reportInterval(),
+                self(),
+                new ReportTick(),
+                context().dispatcher(),
+                self());
+    }
+
+    /**
+     * Sends the commands of the open loop that are due, each with the time when it was due.
+     */
+    private void tick(Tick tick) {
+        if (!sending) {
+            return;
+        }
+        long now = System.nanoTime();
+        long due = (long) ((Math.min(now, endAt) - startedAt) * settings.rate() / TimeUnit.SECONDS.toNanos(1));
+
+        while (sent < due) {
+            long dueAt = startedAt + (long) (sent * TimeUnit.SECONDS.toNanos(1) / settings.rate());
+            if (outstanding < settings.maxOutstanding()) {
+                send(dueAt);
+            }
+            else {
+                sent++;
+                if (dueAt - measureFrom >= 0) {
+                    skipped++;
+                }
+            }
+        }
+        if (now - endAt >= 0) {
+            stopSending();
+        }
+    }
+
+    private void send(long dueAt) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        AccountIdentifier accountIdentifier = accountIdentifiers[distribution.next(random)];
+        int operation = operation(random);
+        long deadline = AccountAdmission.deadlineIn(settings.deadline().toMicros(), TimeUnit.MICROSECONDS);
+        Object command;
+
+        if (operation == DEPOSIT) {
+            command = new AccountWriteSide.CommandDeposit(accountIdentifier, CurrencyValue.create(1 + random.nextInt(100)), deadline);
+        }
+        else if (operation == WITHDRAWAL) {
+            command = new AccountWriteSide.CommandWithdrawal(accountIdentifier, CurrencyValue.create(1 + random.nextInt(100)), deadline);
+        }
+        else {
+            command = new AccountWriteSide.CommandGetAccount(accountIdentifier, deadline);
+        }
+
+        sent++;
+        outstanding++;
+        pipe(ask(accounts, command, settings.timeout().toMillis())
+                .handle((reply, e) -> new Completed(operation, dueAt, e == null ? reply : e)), context().dispatcher())
+                .to(self());
+    }
+
+    private int operation(ThreadLocalRandom random) {
+        int pick = random.nextInt(settings.depositWeight() + settings.withdrawalWeight() + settings.getWeight());
+        if (pick < settings.depositWeight()) {
+            return DEPOSIT;
+        }
+        else if (pick < settings.depositWeight() + settings.withdrawalWeight()) {
+            return WITHDRAWAL;
+        }
+        else {
+            return GET;
+        }
+    }
+
+    private void completed(Completed completed) {
+        long now = System.nanoTime();
+        outstanding--;
+
+        if (completed.dueAt - measureFrom >= 0) {
+            if (completed.reply instanceof Throwable || completed.reply instanceof AccountWriteSide.CommandRejected) {
+                errors++;
+            }
+            else {
+                latencies[completed.operation].recordValue(now - completed.dueAt);
+            }
+        }
+        if (completed.reply instanceof Throwable) {
+            log().debug("Command failed {}", completed.reply);
+        }
+
+        if (sending && now - endAt >= 0) {
+            stopSending();
+        }
+        else if (sending && !settings.openLoop()) {
+            send(now);
+        }
+        else if (!sending && outstanding == 0) {
+            finish();
+        }
+    }
+
+    private void stopSending() {
+        sending = false;
+        if (ticks != null) {
+            ticks.cancel();
+        }
+        if (outstanding == 0) {
+            finish();
+        }
+    }
+
+    private void reportInterval(ReportTick reportTick) {
+        log().info("{}", intervalReport());
+    }
+
+    private Report intervalReport() {
+        long now = System.nanoTime();
+        Histogram[] histograms = new Histogram[OPERATIONS.length];
+
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            histograms[operation] = latencies[operation].getIntervalHistogram();
+            totalLatencies[operation].add(histograms[operation]);
+        }
+        Report report = new Report("interval", now - lastReportAt, histograms, errors, skipped);
+        totalErrors += errors;
+        totalSkipped += skipped;
+        errors = 0;
+        skipped = 0;
+        lastReportAt = now;
+        return report;
+    }
+
+    private void finish() {
+        reports.cancel();
+        log().info("{}", intervalReport());
+
+        Report total = new Report("total", settings.duration().toNanos(), totalLatencies, totalErrors, totalSkipped);
+        log().info("{}", total);
+        replyTo.tell(total, self());
+        context().stop(self());
+    }
+
+    @Override
+    public void postStop() {
+        if (ticks != null) {
+            ticks.cancel();
+        }
+        if (reports != null) {
+            reports.cancel();
+        }
+    }
+
+    /**
+     * Starts a run, the sender gets the {@link Report} of the whole run.
+     */
+    static class Start {
+    }
+
+    /**
+     * The latencies, throughput, errors and skipped commands of a report interval or of a whole run.
+     */
+    static class Report {
+        private final String name;
+        private final long intervalNanos;
+        private final Histogram[] latencies;
+        private final long errors;
+        private final long skipped;
+
+        private Report(String name, long intervalNanos, Histogram[] latencies, long errors, long skipped) {
+            this.name = name;
+            this.intervalNanos = intervalNanos;
+            this.latencies = latencies;
+            this.errors = errors;
+            this.skipped = skipped;
+        }
+
+        long count() {
+            long count = 0;
+            for (Histogram histogram : latencies) {
+                count += histogram.getTotalCount();
+            }
+            return count;
+        }
+
+        /**
+         * @return the completed commands per second.
+         */
+        double throughput() {
+            return intervalNanos == 0 ? 0 : count() * (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder operations = new StringBuilder();
+            for (int operation = 0; operation < OPERATIONS.length; operation++) {
+                Histogram histogram = latencies[operation];
+                operations.append(String.format(", %s (n %d, p50 %dus, p99 %dus, p99.9 %dus, max %dus)",
+                        OPERATIONS[operation], histogram.getTotalCount(), micros(histogram.getValueAtPercentile(50)),
+                        micros(histogram.getValueAtPercentile(99)), micros(histogram.getValueAtPercentile(99.9)),
+                        micros(histogram.getMaxValue())));
+            }
+            return String.format("%s[%s %ds, %.0f/s%s, errors %d, skipped %d]", getClass().getSimpleName(), name,
+                    TimeUnit.NANOSECONDS.toSeconds(intervalNanos), throughput(), operations, errors, skipped);
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+
+    private static class Completed {
+        private final int operation;
+        private final long dueAt;
+        private final Object reply;
+
+        private Completed(int operation, long dueAt, Object reply) {
+            this.operation = operation;
+            this.dueAt = dueAt;
+            this.reply = reply;
+        }
+    }
+
+    private static class Tick {
+    }
+
+    private static class ReportTick {
+    }
+}
@@ -0,0 +1,164 @@
+package akka.sample.persistence;
+
+import com.typesafe.config.Config;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator settings, read from the {@code account.load-generator} configuration section.
+ */
+class LoadGeneratorSettings {
+    private final boolean openLoop;
+    private final double rate;
+    private final int concurrency;
+    private final int maxOutstanding;
+    private final int accounts;
+    private final String distribution;
+    private final double zipfianExponent;
+    private final double hotspotAccounts;
+    private final double hotspotCommands;
+    private final int depositWeight;
+    private final int withdrawalWeight;
+    private final int getWeight;
+    private final FiniteDuration warmup;
+    private final FiniteDuration duration;
+    private final FiniteDuration reportInterval;
+    private final FiniteDuration timeout;
+    private final FiniteDuration deadline;
+
+    private LoadGeneratorSettings(Config config) {
+        String mode = config.getString("mode");
+        if (!mode.equals("open") && !mode.equals("closed")) {
+            throw new IllegalArgumentException(String.format("Unknown load generator mode %s", mode));
+        }
+        openLoop = mode.equals("open");
+        rate = config.getDouble("rate");
+        concurrency = config.getInt("concurrency");
+        maxOutstanding = config.getInt("max-outstanding");
+        accounts = config.getInt("accounts");
+        distribution = config.getString("distribution");
+        zipfianExponent = config.getDouble("zipfian.exponent");
+        hotspotAccounts = config.getDouble("hotspot.accounts");
+        hotspotCommands = config.getDouble("hotspot.commands");
+        depositWeight = config.getInt("mix.deposit");
+        withdrawalWeight = config.getInt("mix.withdrawal");
+        getWeight = config.getInt("mix.get");
+        warmup = duration(config, "warmup");
+        duration = duration(config, "duration");
+        reportInterval = duration(config, "report-interval");
+        timeout = duration(config, "timeout");
+        deadline = duration(config, "deadline");
+
+        if (depositWeight + withdrawalWeight + getWeight <= 0) {
+            throw new IllegalArgumentException("The load generator mix has no commands");
+        }
+    }
+
+    static LoadGeneratorSettings create(Config config) {
+        return new LoadGeneratorSettings(config.getConfig("account.load-generator"));
+    }
+
+    /**
+     * @return true when commands are sent at a target rate, false when a fixed number of commands is outstanding.
+     */
+    boolean openLoop() {
+        return openLoop;
+    }
+
+    /**
+     * @return the target rate of the open loop, in commands per second.
+     */
+    double rate() {
+        return rate;
+    }
+
+    /**
+     * @return the number of outstanding commands of the closed loop.
+     */
+    int concurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return the upper limit of outstanding commands of the open loop, the commands that are due beyond it are
+     * skipped.
+     */
+    int maxOutstanding() {
+        return maxOutstanding;
+    }
+
+    int accounts() {
+        return accounts;
+    }
+
+    String distribution() {
+        return distribution;
+    }
+
+    double zipfianExponent() {
+        return zipfianExponent;
+    }
+
+    double hotspotAccounts() {
+        return hotspotAccounts;
+    }
+
+    double hotspotCommands() {
+        return hotspotCommands;
+    }
+
+    int depositWeight() {
+        return depositWeight;
+    }
+
+    int withdrawalWeight() {
+        return withdrawalWeight;
+    }
+
+    int getWeight() {
+        return getWeight;
+    }
+
+    FiniteDuration warmup() {
+        return warmup;
+    }
+
+    FiniteDuration duration() {
+        return duration;
+    }
+
+    FiniteDuration reportInterval() {
+        return reportInterval;
+    }
+
+    FiniteDuration timeout() {
+        return timeout;
+    }
+
+    /**
+     * @return how long after it is sent a command is of no use, 0 when commands have no deadline.
+     */
+    FiniteDuration deadline() {
+        return deadline;
+    }
+
+    /**
+     * @return how long a run takes at most, including the warmup and the replies to the last commands.
+     */
+    FiniteDuration runTimeout() {
+        return warmup.plus(duration).plus(timeout).plus(reportInterval);
+    }
+
+    private static FiniteDuration duration(Config config, String path) {
+        return Duration.create(config.getDuration(path, TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, %s accounts %d, mix %d/%d/%d, warmup %s, duration %s]",
+                getClass().getSimpleName(), openLoop ? String.format("open loop %.0f/s", rate) : String.format("closed loop %d", concurrency),
+                distribution, accounts, depositWeight, withdrawalWeight, getWeight, warmup, duration);
+    }
+}
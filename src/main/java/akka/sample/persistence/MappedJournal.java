@@ -0,0 +1,59 @@
+package akka.sample.persistence;
+
+import akka.dispatch.Futures;
+import akka.persistence.AtomicWrite;
+import akka.persistence.PersistentRepr;
+import akka.persistence.journal.japi.AsyncWriteJournal;
+import scala.concurrent.Future;
+
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * A journal plugin that stores the events in memory mapped segment files on the local disk, for single node
+ * deployments, see {@link MappedJournalStore}.
+ * <p>
+ * <p>Select it with {@code akka.persistence.journal.plugin = "mapped-journal"}, together with a local snapshot store.
+ * The events are queried with the {@link MappedReadJournal}.</p>
+ */
+public class MappedJournal extends AsyncWriteJournal {
+    private final MappedJournalStore store = MappedJournalStore.get(context().system());
+
+    @Override
+    public Future<Iterable<Optional<Exception>>> doAsyncWriteMessages(Iterable<AtomicWrite> messages) {
+        try {
+            return store.write(messages);
+        }
+        catch (RuntimeException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    @Override
+    public Future<Void> doAsyncDeleteMessagesTo(String persistenceId, long toSequenceNr) {
+        try {
+            store.deleteTo(persistenceId, toSequenceNr);
+            return Futures.successful(null);
+        }
+        catch (RuntimeException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    @Override
+    public Future<Void> doAsyncReplayMessages(String persistenceId, long fromSequenceNr, long toSequenceNr, long max,
+                                              Consumer<PersistentRepr> replayCallback) {
+        try {
+            store.replay(persistenceId, fromSequenceNr, toSequenceNr, max, replayCallback);
+            return Futures.successful(null);
+        }
+        catch (RuntimeException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    @Override
+    public Future<Long> doAsyncReadHighestSequenceNr(String persistenceId, long fromSequenceNr) {
+        return Futures.successful(store.highestSequenceNr(persistenceId));
+    }
+}
@@ -0,0 +1,765 @@
+package akka.sample.persistence;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.dispatch.Futures;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.persistence.AtomicWrite;
+import akka.persistence.PersistentRepr;
+import akka.persistence.PersistentRepr$;
+import akka.persistence.journal.Tagged;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.concurrent.Future;
+import scala.concurrent.Promise;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * The storage of the {@link MappedJournal}, one instance per actor system, configured in the {@code mapped-journal}
+ * section.
+ * <p>
+ * <p>Events are appended to segment files of a fixed size, which are memory mapped, so an append is a copy into the
+ * page cache. Each record has a length and a CRC32 of its contents, and the events of an atomic write are in the same
+ * segment with the last one marked, so after a crash the store is recovered up to the last complete atomic write with
+ * valid records.</p>
+ * <p>
+ * <p>The positions of the events are held in memory, by persistence identifier and by tag, and are rebuilt from the
+ * segments when the store is opened. Replays and queries read the events straight from the mapped segments, the event
+ * payload is deserialized from a slice of the segment, without copying it when the serializer reads byte buffers.</p>
+ * <p>
+ * <p>The events are serialized and encoded into records before the store is locked, the lock is only held to copy
+ * the records into the segment and to update the positions. Strings are limited to 65535 bytes and events to 255 tags,
+ * an atomic write with a longer string or more tags is rejected.</p>
+ * <p>
+ * <p>With {@code fsync} on, a write completes when its segment has been forced to disk. A single flusher thread forces
+ * the segments written since its last force and completes all of the writes that were waiting for it, so the writes of
+ * many entities share one force. The positions of the events are only added after the force, so replays, queries and
+ * the highest sequence numbers never see an event that is not on disk. When the flusher stops, the writes that are
+ * waiting for it and any later writes fail. With {@code fsync} off a write completes, and its events are seen, as soon
+ * as it is in the page cache, it survives a crash of the process but not of the machine.</p>
+ * <p>
+ * <p>Deleted events are only hidden, the space of the segments is not reclaimed.</p>
+ */
+class MappedJournalStore implements Extension {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_LENGTH = 8;
+    private static final int TERMINATOR_LENGTH = 4;
+    private static final byte EVENT = 1;
+    private static final byte LAST_EVENT = 2;
+    private static final byte DELETED_TO = 3;
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+    private static final int MAX_TAGS = 0xFF;
+
+    private final LoggingAdapter log;
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean fsync;
+    private final Serialization serialization;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Map<String, PersistenceIdIndex> persistenceIds = new HashMap<>();
+    private final Map<String, Positions> tags = new HashMap<>();
+    private final ThreadLocal<Records> records = ThreadLocal.withInitial(Records::new);
+    // Guarded by the flusher lock.
+    private final Object flusherLock = new Object();
+    private Set<Segment> unflushedSegments = new LinkedHashSet<>();
+    private List<Flush> unflushedWrites = new ArrayList<>();
+    private volatile boolean flusherStopped = false;
+    private final Thread flusher;
+
+    private MappedJournalStore(ActorSystem actorSystem) {
+        this(actorSystem, actorSystem.settings().config().getConfig("mapped-journal"));
+    }
+
+    MappedJournalStore(ActorSystem actorSystem, Config config) {
+        log = Logging.getLogger(actorSystem, this);
+        directory = Paths.get(config.getString("dir"));
+        segmentSize = Math.toIntExact(config.getBytes("segment-size"));
+        fsync = config.getBoolean("fsync");
+        serialization = SerializationExtension.get(actorSystem);
+
+        open();
+
+        if (fsync) {
+            flusher = new Thread(this::flush, "mapped-journal-flusher-" + actorSystem.name());
+            flusher.setDaemon(true);
+            flusher.start();
+            actorSystem.registerOnTermination(flusher::interrupt);
+        }
+        else {
+            flusher = null;
+        }
+    }
+
+    static MappedJournalStore get(ActorSystem actorSystem) {
+        return Id.ID.get(actorSystem);
+    }
+
+    /**
+     * Appends the events of the atomic writes. An atomic write that cannot be serialized is rejected, the others are
+     * written.
+     *
+     * @return the rejections of the atomic writes, completed when the events are stored.
+     */
+    Future<Iterable<Optional<Exception>>> write(Iterable<AtomicWrite> atomicWrites) {
+        List<Optional<Exception>> results = new ArrayList<>();
+        Records encoded = records.get();
+
+        encoded.clear();
+        for (AtomicWrite atomicWrite : atomicWrites) {
+            results.add(encode(atomicWrite, encoded));
+        }
+
+        Set<Segment> written = new LinkedHashSet<>();
+        List<IndexEntry> stored = new ArrayList<>(encoded.indexEntries.size());
+        synchronized (this) {
+            if (flusherStopped) {
+                return Futures.failed(new IllegalStateException("The mapped journal flusher has stopped"));
+            }
+            ByteBuffer bytes = encoded.buffer.duplicate();
+            int entry = 0;
+            for (int i = 0; i < encoded.atomicWriteEnds.size(); i++) {
+                int from = i == 0 ? 0 : encoded.atomicWriteEnds.get(i - 1);
+                int to = encoded.atomicWriteEnds.get(i);
+                Segment segment = segmentFor(to - from);
+                int start = segment.writer.position();
+                bytes.limit(to).position(from);
+                segment.writer.put(bytes);
+                terminate(segment);
+                written.add(segment);
+
+                for (; entry < encoded.indexEntries.size() && encoded.indexEntries.get(entry).position < to; entry++) {
+                    IndexEntry encodedEntry = encoded.indexEntries.get(entry);
+                    stored.add(encodedEntry.at(position(segment.index, start + (int) encodedEntry.position - from)));
+                }
+            }
+
+            if (!fsync) {
+                stored.forEach(this::index);
+                return Futures.successful(results);
+            }
+            // Queued while the store is locked, so the flusher adds the positions in the order of the segments.
+            synchronized (flusherLock) {
+                if (flusherStopped) {
+                    return Futures.failed(new IllegalStateException("The mapped journal flusher has stopped"));
+                }
+                Promise<Iterable<Optional<Exception>>> promise = Futures.promise();
+                unflushedSegments.addAll(written);
+                unflushedWrites.add(new Flush(promise, results, stored));
+                flusherLock.notify();
+                return promise.future();
+            }
+        }
+    }
+
+    /**
+     * Encodes the records of the events of an atomic write after the records of the previous atomic writes.
+     *
+     * @return the rejection of the atomic write, which then has no records.
+     */
+    private Optional<Exception> encode(AtomicWrite atomicWrite, Records encoded) {
+        List<PersistentRepr> events = JavaConverters.seqAsJavaList(atomicWrite.payload());
+        int start = encoded.buffer.position();
+        int entries = encoded.indexEntries.size();
+
+        try {
+            for (int i = 0; i < events.size(); i++) {
+                encodeEvent(events.get(i), i == events.size() - 1, encoded);
+            }
+            if (encoded.buffer.position() - start + TERMINATOR_LENGTH > segmentSize) {
+                throw new IllegalArgumentException(String.format(
+                        "Atomic write of %d bytes does not fit in a segment of %d bytes", encoded.buffer.position() - start, segmentSize));
+            }
+        }
+        catch (Exception e) {
+            // Serializers may throw checked exceptions, such as NotSerializableException.
+            encoded.buffer.position(start);
+            encoded.indexEntries.subList(entries, encoded.indexEntries.size()).clear();
+            return Optional.of(e);
+        }
+        encoded.atomicWriteEnds.add(encoded.buffer.position());
+        return Optional.empty();
+    }
+
+    /**
+     * Hides the events of a persistence identifier up to a sequence number.
+     */
+    void deleteTo(String persistenceId, long toSequenceNr) {
+        Records encoded = records.get();
+
+        encoded.clear();
+        encoded.beginRecord();
+        encoded.buffer.put(DELETED_TO);
+        int sequenceNrOffset = encoded.buffer.position();
+        encoded.buffer.putLong(toSequenceNr);
+        encoded.putString(persistenceId);
+
+        synchronized (this) {
+            PersistenceIdIndex index = persistenceIds.get(persistenceId);
+            if (index == null) {
+                return;
+            }
+            long deletedTo = Math.min(toSequenceNr, index.highestSequenceNr);
+            encoded.buffer.putLong(sequenceNrOffset, deletedTo);
+            encoded.endRecord();
+
+            Segment segment = segmentFor(encoded.buffer.position());
+            encoded.buffer.flip();
+            segment.writer.put(encoded.buffer);
+            terminate(segment);
+            if (fsync) {
+                segment.buffer.force();
+            }
+            index.deletedTo = Math.max(index.deletedTo, deletedTo);
+        }
+    }
+
+    synchronized long highestSequenceNr(String persistenceId) {
+        PersistenceIdIndex index = persistenceIds.get(persistenceId);
+        return index == null ? 0 : index.highestSequenceNr;
+    }
+
+    void replay(String persistenceId, long fromSequenceNr, long toSequenceNr, long max, Consumer<PersistentRepr> replay) {
+        for (long position : positions(persistenceId, fromSequenceNr, toSequenceNr, max)) {
+            replay.accept(read(position).persistentRepr());
+        }
+    }
+
+    List<EventEnvelope> eventsByPersistenceId(String persistenceId, long fromSequenceNr, long toSequenceNr, int max) {
+        long[] positions = positions(persistenceId, fromSequenceNr, toSequenceNr, max);
+        List<EventEnvelope> events = new ArrayList<>(positions.length);
+
+        for (long position : positions) {
+            Event event = read(position);
+            events.add(EventEnvelope.apply(Offset.sequence(event.sequenceNr), event.persistenceId, event.sequenceNr, event.payload));
+        }
+        return events;
+    }
+
+    /**
+     * @return the events of the tag after the offset, the offset of an event is its ordinal number in the tag.
+     */
+    List<EventEnvelope> eventsByTag(String tag, long afterOffset, int max) {
+        long[] positions;
+
+        synchronized (this) {
+            Positions tagPositions = tags.get(tag);
+            if (tagPositions == null || afterOffset >= tagPositions.size) {
+                return Collections.emptyList();
+            }
+            int from = Math.toIntExact(afterOffset);
+            positions = Arrays.copyOfRange(tagPositions.positions, from, Math.min(tagPositions.size, from + max));
+        }
+
+        List<EventEnvelope> events = new ArrayList<>(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            Event event = read(positions[i]);
+            events.add(EventEnvelope.apply(Offset.sequence(afterOffset + i + 1), event.persistenceId, event.sequenceNr, event.payload));
+        }
+        return events;
+    }
+
+    private synchronized long[] positions(String persistenceId, long fromSequenceNr, long toSequenceNr, long max) {
+        PersistenceIdIndex index = persistenceIds.get(persistenceId);
+        if (index == null) {
+            return new long[0];
+        }
+
+        int from = Arrays.binarySearch(index.sequenceNrs, 0, index.size, Math.max(fromSequenceNr, index.deletedTo + 1));
+        if (from < 0) {
+            from = -from - 1;
+        }
+        int to = from;
+        while (to < index.size && index.sequenceNrs[to] <= toSequenceNr && to - from < max) {
+            to++;
+        }
+        return Arrays.copyOfRange(index.positions, from, to);
+    }
+
+    private void encodeEvent(PersistentRepr persistentRepr, boolean last, Records encoded) {
+        Object payload = persistentRepr.payload();
+        Set<String> eventTags = Collections.emptySet();
+        if (payload instanceof Tagged) {
+            eventTags = JavaConverters.setAsJavaSet(((Tagged) payload).tags());
+            payload = ((Tagged) payload).payload();
+        }
+        if (eventTags.size() > MAX_TAGS) {
+            throw new IllegalArgumentException(String.format("Event with %d tags, at most %d are supported", eventTags.size(), MAX_TAGS));
+        }
+        Serializer serializer = serialization.findSerializerFor(payload);
+        byte[] bytes = serializer.toBinary(payload);
+
+        int offset = encoded.beginRecord();
+        encoded.buffer.put(last ? LAST_EVENT : EVENT);
+        encoded.buffer.putLong(persistentRepr.sequenceNr());
+        encoded.putString(persistentRepr.persistenceId());
+        encoded.putString(persistentRepr.writerUuid());
+        encoded.putString(persistentRepr.manifest());
+        encoded.ensureCapacity(4);
+        encoded.buffer.putInt(serializer.identifier());
+        encoded.putString(manifest(serializer, payload));
+        encoded.ensureCapacity(1);
+        encoded.buffer.put((byte) eventTags.size());
+        for (String tag : eventTags) {
+            encoded.putString(tag);
+        }
+        encoded.ensureCapacity(4 + bytes.length);
+        encoded.buffer.putInt(bytes.length);
+        encoded.buffer.put(bytes);
+        encoded.endRecord();
+
+        encoded.indexEntries.add(new IndexEntry(offset, persistentRepr.persistenceId(), persistentRepr.sequenceNr(), eventTags));
+    }
+
+    private static String manifest(Serializer serializer, Object payload) {
+        if (serializer instanceof SerializerWithStringManifest) {
+            return ((SerializerWithStringManifest) serializer).manifest(payload);
+        }
+        return serializer.includeManifest() ? payload.getClass().getName() : "";
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Segment segmentFor(int length) {
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.writer.remaining() < length + TERMINATOR_LENGTH) {
+            segment = openSegment(segment.index + 1);
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Marks the end of the records of a segment, so a recovery does not read past it into older contents.
+     */
+    private static void terminate(Segment segment) {
+        if (segment.writer.remaining() >= TERMINATOR_LENGTH) {
+            segment.writer.putInt(segment.writer.position(), 0);
+        }
+    }
+
+    private void index(IndexEntry entry) {
+        persistenceIds.computeIfAbsent(entry.persistenceId, id -> new PersistenceIdIndex()).add(entry.sequenceNr, entry.position);
+        for (String tag : entry.tags) {
+            tags.computeIfAbsent(tag, t -> new Positions()).add(entry.position);
+        }
+    }
+
+    private Event read(long position) {
+        ByteBuffer buffer = segments.get(segmentIndex(position)).buffer.duplicate();
+        buffer.position(offset(position) + HEADER_LENGTH + 1);
+
+        long sequenceNr = buffer.getLong();
+        String persistenceId = getString(buffer);
+        String writerUuid = getString(buffer);
+        String eventManifest = getString(buffer);
+        int serializerId = buffer.getInt();
+        String manifest = getString(buffer);
+        int tagCount = buffer.get() & 0xFF;
+        for (int i = 0; i < tagCount; i++) {
+            getString(buffer);
+        }
+        int length = buffer.getInt();
+        buffer.limit(buffer.position() + length);
+
+        Object payload = serialization.deserializeByteBuffer(buffer.slice(), serializerId, manifest);
+        return new Event(persistenceId, sequenceNr, writerUuid, eventManifest, payload);
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            Collections.sort(files);
+
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int index = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = openSegment(index);
+                segments.add(segment);
+                recover(segment);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (segments.isEmpty()) {
+            segments.add(openSegment(0));
+        }
+
+        long events = 0;
+        for (PersistenceIdIndex index : persistenceIds.values()) {
+            events += index.size;
+        }
+        log.info("Opened {} segments in {} with {} events of {} persistence ids", segments.size(), directory, events, persistenceIds.size());
+    }
+
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        List<IndexEntry> atomicWrite = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        int position = 0;
+        int recovered = 0;
+
+        while (position + HEADER_LENGTH <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_LENGTH + length > segmentSize) {
+                break;
+            }
+            crc.reset();
+            byte[] body = new byte[length];
+            buffer.position(position + HEADER_LENGTH);
+            buffer.get(body);
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                log.warning("Invalid record at {} of segment {}, the segment is recovered up to there", position, segment.index);
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(body);
+            byte type = record.get();
+            if (type == DELETED_TO) {
+                long deletedTo = record.getLong();
+                PersistenceIdIndex index = persistenceIds.computeIfAbsent(getString(record), id -> new PersistenceIdIndex());
+                index.deletedTo = Math.max(index.deletedTo, deletedTo);
+                recovered = position + HEADER_LENGTH + length;
+            }
+            else {
+                long sequenceNr = record.getLong();
+                String persistenceId = getString(record);
+                getString(record);
+                getString(record);
+                record.getInt();
+                getString(record);
+                Set<String> eventTags = new LinkedHashSet<>();
+                int tagCount = record.get() & 0xFF;
+                for (int i = 0; i < tagCount; i++) {
+                    eventTags.add(getString(record));
+                }
+                atomicWrite.add(new IndexEntry(position(segment.index, position), persistenceId, sequenceNr, eventTags));
+
+                if (type == LAST_EVENT) {
+                    atomicWrite.forEach(this::index);
+                    atomicWrite.clear();
+                    recovered = position + HEADER_LENGTH + length;
+                }
+            }
+            position += HEADER_LENGTH + length;
+        }
+
+        if (!atomicWrite.isEmpty()) {
+            log.warning("Incomplete atomic write at {} of segment {} is discarded", recovered, segment.index);
+        }
+        segment.writer.position(recovered);
+        terminate(segment);
+    }
+
+    private Segment openSegment(int index) {
+        Path file = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(index, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces the segments that were written to disk, adds the positions of their events and completes the writes that
+     * waited for them, until interrupted. The writes that are still waiting then fail.
+     */
+    private void flush() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<Segment> flushSegments;
+                List<Flush> flushWrites;
+
+                synchronized (flusherLock) {
+                    while (unflushedWrites.isEmpty()) {
+                        try {
+                            flusherLock.wait();
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    flushSegments = unflushedSegments;
+                    flushWrites = unflushedWrites;
+                    unflushedSegments = new LinkedHashSet<>();
+                    unflushedWrites = new ArrayList<>();
+                }
+
+                try {
+                    for (Segment segment : flushSegments) {
+                        segment.buffer.force();
+                    }
+                }
+                catch (RuntimeException e) {
+                    for (Flush flush : flushWrites) {
+                        flush.promise.failure(e);
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    for (Flush flush : flushWrites) {
+                        flush.indexEntries.forEach(this::index);
+                    }
+                }
+                for (Flush flush : flushWrites) {
+                    flush.promise.success(flush.results);
+                }
+            }
+        }
+        finally {
+            List<Flush> failedWrites;
+            synchronized (flusherLock) {
+                flusherStopped = true;
+                failedWrites = unflushedWrites;
+                unflushedSegments = new LinkedHashSet<>();
+                unflushedWrites = new ArrayList<>();
+            }
+            IllegalStateException stopped = new IllegalStateException("The mapped journal flusher has stopped");
+            for (Flush flush : failedWrites) {
+                flush.promise.failure(stopped);
+            }
+        }
+    }
+
+    private static long position(int segmentIndex, int offset) {
+        return ((long) segmentIndex << 32) | offset;
+    }
+
+    private static int segmentIndex(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, %d segments]", getClass().getSimpleName(), directory, segments.size());
+    }
+
+    private static class Segment {
+        private final int index;
+        private final MappedByteBuffer buffer;
+        // Only used by writes, the buffer itself is only duplicated.
+        private final ByteBuffer writer;
+
+        private Segment(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+        }
+    }
+
+    /**
+     * The positions of the events of a persistence identifier, in the order of their sequence numbers.
+     */
+    private static class PersistenceIdIndex {
+        private long[] sequenceNrs = new long[8];
+        private long[] positions = new long[8];
+        private int size = 0;
+        private long highestSequenceNr = 0;
+        private long deletedTo = 0;
+
+        private void add(long sequenceNr, long position) {
+            if (size == positions.length) {
+                sequenceNrs = Arrays.copyOf(sequenceNrs, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            sequenceNrs[size] = sequenceNr;
+            positions[size] = position;
+            size++;
+            highestSequenceNr = Math.max(highestSequenceNr, sequenceNr);
+        }
+    }
+
+    private static class Positions {
+        private long[] positions = new long[64];
+        private int size = 0;
+
+        private void add(long position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+    }
+
+    /**
+     * An event to add to the positions, with the position of its record, or its offset while it is being encoded.
+     */
+    private static class IndexEntry {
+        private final long position;
+        private final String persistenceId;
+        private final long sequenceNr;
+        private final Set<String> tags;
+
+        private IndexEntry(long position, String persistenceId, long sequenceNr, Set<String> tags) {
+            this.position = position;
+            this.persistenceId = persistenceId;
+            this.sequenceNr = sequenceNr;
+            this.tags = tags;
+        }
+
+        private IndexEntry at(long position) {
+            return new IndexEntry(position, persistenceId, sequenceNr, tags);
+        }
+    }
+
+    /**
+     * The records of the atomic writes of one write, encoded by the thread that writes them before the store is
+     * locked. Each record has a header with its length and CRC.
+     */
+    private static class Records {
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final CRC32 crc = new CRC32();
+        private int recordOffset;
+        private final List<IndexEntry> indexEntries = new ArrayList<>();
+        private final List<Integer> atomicWriteEnds = new ArrayList<>();
+
+        private void clear() {
+            buffer.clear();
+            indexEntries.clear();
+            atomicWriteEnds.clear();
+        }
+
+        /**
+         * Reserves the header of a record.
+         *
+         * @return the offset of the record.
+         */
+        private int beginRecord() {
+            ensureCapacity(HEADER_LENGTH + 16);
+            recordOffset = buffer.position();
+            buffer.position(recordOffset + HEADER_LENGTH);
+            return recordOffset;
+        }
+
+        /**
+         * Writes the length and the CRC of the record that was begun last.
+         */
+        private void endRecord() {
+            int length = buffer.position() - recordOffset - HEADER_LENGTH;
+
+            crc.reset();
+            crc.update(buffer.array(), recordOffset + HEADER_LENGTH, length);
+            buffer.putInt(recordOffset, length);
+            buffer.putInt(recordOffset + 4, (int) crc.getValue());
+        }
+
+        private void putString(String value) {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_STRING_LENGTH) {
+                throw new IllegalArgumentException(String.format("String of %d bytes, at most %d are supported", bytes.length, MAX_STRING_LENGTH));
+            }
+            ensureCapacity(2 + bytes.length);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void ensureCapacity(int length) {
+            if (buffer.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    private static class Event {
+        private final String persistenceId;
+        private final long sequenceNr;
+        private final String writerUuid;
+        private final String manifest;
+        private final Object payload;
+
+        private Event(String persistenceId, long sequenceNr, String writerUuid, String manifest, Object payload) {
+            this.persistenceId = persistenceId;
+            this.sequenceNr = sequenceNr;
+            this.writerUuid = writerUuid;
+            this.manifest = manifest;
+            this.payload = payload;
+        }
+
+        private PersistentRepr persistentRepr() {
+            return PersistentRepr$.MODULE$.apply(payload, sequenceNr, persistenceId, manifest, false, ActorRef.noSender(), writerUuid);
+        }
+    }
+
+    private static class Flush {
+        private final Promise<Iterable<Optional<Exception>>> promise;
+        private final Iterable<Optional<Exception>> results;
+        private final List<IndexEntry> indexEntries;
+
+        private Flush(Promise<Iterable<Optional<Exception>>> promise, Iterable<Optional<Exception>> results,
+                      List<IndexEntry> indexEntries) {
+            this.promise = promise;
+            this.results = results;
+            this.indexEntries = indexEntries;
+        }
+    }
+
+    static class Id extends AbstractExtensionId<MappedJournalStore> implements ExtensionIdProvider {
+        static final Id ID = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return ID;
+        }
+
+        @Override
+        public MappedJournalStore createExtension(ExtendedActorSystem actorSystem) {
+            return new MappedJournalStore(actorSystem);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package akka.sample.persistence;
+
+import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.japi.Pair;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.persistence.query.javadsl.CurrentEventsByPersistenceIdQuery;
+import akka.persistence.query.javadsl.CurrentEventsByTagQuery;
+import akka.persistence.query.javadsl.EventsByPersistenceIdQuery;
+import akka.persistence.query.javadsl.EventsByTagQuery;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import java.util.function.LongPredicate;
+import java.util.function.ToLongFunction;
+
+import static akka.pattern.PatternsCS.after;
+
+/**
+ * Queries of the events of the {@link MappedJournal}, obtained with
+ * {@code PersistenceQuery.get(system).getReadJournalFor(MappedReadJournal.class, MappedReadJournal.IDENTIFIER)}.
+ * <p>
+ * <p>The queries read the events from the store of the journal in the same actor system, in batches of up to
+ * {@code max-buffer-size} events. The live queries look for new events every {@code refresh-interval} when they have
+ * delivered all of the stored events. The offset of an event of a tag is a {@link Sequence} of its ordinal number in
+ * the tag, a query from an offset delivers the events after it.</p>
+ */
+public class MappedReadJournal implements EventsByPersistenceIdQuery, CurrentEventsByPersistenceIdQuery,
+        EventsByTagQuery, CurrentEventsByTagQuery {
+    public static final String IDENTIFIER = "mapped-journal.query";
+
+    private final ActorSystem actorSystem;
+    private final MappedJournalStore store;
+    private final FiniteDuration refreshInterval;
+    private final int maxBufferSize;
+
+    MappedReadJournal(ActorSystem actorSystem, Config config) {
+        this.actorSystem = actorSystem;
+        store = MappedJournalStore.get(actorSystem);
+        refreshInterval = Duration.create(config.getDuration("refresh-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        maxBufferSize = config.getInt("max-buffer-size");
+    }
+
+    @Override
+    public Source<EventEnvelope, NotUsed> eventsByPersistenceId(String persistenceId, long fromSequenceNr, long toSequenceNr) {
+        return eventsByPersistenceId(persistenceId, fromSequenceNr, toSequenceNr, true);
+    }
+
+    @Override
+    public Source<EventEnvelope, NotUsed> currentEventsByPersistenceId(String persistenceId, long fromSequenceNr, long toSequenceNr) {
+        return eventsByPersistenceId(persistenceId, fromSequenceNr, toSequenceNr, false);
+    }
+
+    @Override
+    public Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset) {
+        return eventsByTag(tag, offset, true);
+    }
+
+    @Override
+    public Source<EventEnvelope, NotUsed> currentEventsByTag(String tag, Offset offset) {
+        return eventsByTag(tag, offset, false);
+    }
+
+    private Source<EventEnvelope, NotUsed> eventsByPersistenceId(String persistenceId, long fromSequenceNr, long toSequenceNr, boolean live) {
+        return poll(
+                fromSequenceNr,
+                sequenceNr -> store.eventsByPersistenceId(persistenceId, sequenceNr, toSequenceNr, maxBufferSize),
+                event -> event.sequenceNr() + 1,
+                sequenceNr -> sequenceNr > toSequenceNr,
+                live);
+    }
+
+    private Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset, boolean live) {
+        long afterOffset;
+        if (offset instanceof Sequence) {
+            afterOffset = ((Sequence) offset).value();
+        }
+        else if (offset.equals(Offset.noOffset())) {
+            afterOffset = 0;
+        }
+        else {
+            throw new IllegalArgumentException(String.format("Unsupported offset %s, the mapped journal uses sequence offsets", offset));
+        }
+
+        return poll(
+                afterOffset,
+                position -> store.eventsByTag(tag, position, maxBufferSize),
+                event -> ((Sequence) event.offset()).value(),
+                position -> false,
+                live);
+    }
+
+    /**
+     * Reads batches of events from a position until the end, or until a live query is cancelled.
+     */
+    private Source<EventEnvelope, NotUsed> poll(long from, LongFunction<List<EventEnvelope>> read, ToLongFunction<EventEnvelope> next,
+                                                LongPredicate done, boolean live) {
+        return Source.unfoldAsync(from, (Long position) -> {
+            if (done.test(position)) {
+                return CompletableFuture.completedFuture(Optional.<Pair<Long, List<EventEnvelope>>>empty());
+            }
+            List<EventEnvelope> events = read.apply(position);
+            if (!events.isEmpty()) {
+                return CompletableFuture.completedFuture(Optional.of(Pair.create(next.applyAsLong(events.get(events.size() - 1)), events)));
+            }
+            if (!live) {
+                return CompletableFuture.completedFuture(Optional.<Pair<Long, List<EventEnvelope>>>empty());
+            }
+            return refresh(position);
+        }).mapConcat(events -> events);
+    }
+
+    private CompletionStage<Optional<Pair<Long, List<EventEnvelope>>>> refresh(long position) {
+        return after(refreshInterval, actorSystem.scheduler(), actorSystem.dispatcher(),
+                () -> CompletableFuture.completedFuture(Optional.of(Pair.create(position, Collections.<EventEnvelope>emptyList()))));
+    }
+}
@@ -0,0 +1,29 @@
+package akka.sample.persistence;
+
+import akka.actor.ExtendedActorSystem;
+import akka.persistence.query.ReadJournalProvider;
+import com.typesafe.config.Config;
+
+/**
+ * Provides the {@link MappedReadJournal}, and the {@link MappedScalaReadJournal} for the Scala API, as the
+ * {@code mapped-journal.query} read journal plugin.
+ */
+public class MappedReadJournalProvider implements ReadJournalProvider {
+    private final MappedReadJournal readJournal;
+    private final MappedScalaReadJournal scalaReadJournal;
+
+    public MappedReadJournalProvider(ExtendedActorSystem actorSystem, Config config) {
+        readJournal = new MappedReadJournal(actorSystem, config);
+        scalaReadJournal = new MappedScalaReadJournal(readJournal);
+    }
+
+    @Override
+    public MappedScalaReadJournal scaladslReadJournal() {
+        return scalaReadJournal;
+    }
+
+    @Override
+    public MappedReadJournal javadslReadJournal() {
+        return readJournal;
+    }
+}
@@ -0,0 +1,44 @@
+package akka.sample.persistence;
+
+import akka.NotUsed;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.scaladsl.CurrentEventsByPersistenceIdQuery;
+import akka.persistence.query.scaladsl.CurrentEventsByTagQuery;
+import akka.persistence.query.scaladsl.EventsByPersistenceIdQuery;
+import akka.persistence.query.scaladsl.EventsByTagQuery;
+import akka.stream.scaladsl.Source;
+
+/**
+ * The queries of the {@link MappedReadJournal} for the Scala API, obtained with
+ * {@code PersistenceQuery(system).readJournalFor[MappedScalaReadJournal](MappedReadJournal.IDENTIFIER)}. Each query
+ * is the query of the Java read journal as a Scala source.
+ */
+public class MappedScalaReadJournal implements EventsByPersistenceIdQuery, CurrentEventsByPersistenceIdQuery,
+        EventsByTagQuery, CurrentEventsByTagQuery {
+    private final MappedReadJournal readJournal;
+
+    MappedScalaReadJournal(MappedReadJournal readJournal) {
+        this.readJournal = readJournal;
+    }
+
+    @Override
+    public Source<EventEnvelope, NotUsed> eventsByPersistenceId(String persistenceId, long fromSequenceNr, long toSequenceNr) {
+        return readJournal.eventsByPersistenceId(persistenceId, fromSequenceNr, toSequenceNr).asScala();
+    }
+
+    @Override
+    public Source<EventEnvelope, NotUsed> currentEventsByPersistenceId(String persistenceId, long fromSequenceNr, long toSequenceNr) {
+        return readJournal.currentEventsByPersistenceId(persistenceId, fromSequenceNr, toSequenceNr).asScala();
+    }
+
+    @Override
+    public Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset) {
+        return readJournal.eventsByTag(tag, offset).asScala();
+    }
+
+    @Override
+    public Source<EventEnvelope, NotUsed> currentEventsByTag(String tag, Offset offset) {
+        return readJournal.currentEventsByTag(tag, offset).asScala();
+    }
+}
@@ -0,0 +1,72 @@
+package akka.sample.persistence;
+
+import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.persistence.cassandra.query.javadsl.CassandraReadJournal;
+import akka.persistence.query.EventEnvelope;
+import akka.persistence.query.Offset;
+import akka.persistence.query.PersistenceQuery;
+import akka.persistence.query.TimeBasedUUID;
+import akka.persistence.query.javadsl.EventsByTagQuery;
+import akka.stream.javadsl.Source;
+
+/**
+ * The events by tag query that the read side processes, from the read journal plugin that the
+ * {@code account.read-side.read-journal} setting names.
+ * <p>
+ * <p>The Cassandra read journal has offsets that are time based UUIDs, which are passed on as {@link TimeBasedUUID}
+ * offsets. Any other read journal plugin must implement {@link EventsByTagQuery}, such as the
+ * {@link MappedReadJournal} with its {@link akka.persistence.query.Sequence} offsets.</p>
+ */
+interface ReadSideJournal {
+    static ReadSideJournal create(ActorSystem actorSystem, ReadSideSettings settings) {
+        if (settings.readJournal().equals(CassandraReadJournal.Identifier())) {
+            return new Cassandra(PersistenceQuery.get(actorSystem)
+                    .getReadJournalFor(CassandraReadJournal.class, CassandraReadJournal.Identifier()));
+        }
+        EventsByTagQuery readJournal = PersistenceQuery.get(actorSystem)
+                .getReadJournalFor(EventsByTagQuery.class, settings.readJournal());
+        return new ReadSideJournal() {
+            @Override
+            public Offset firstOffset() {
+                return Offset.noOffset();
+            }
+
+            @Override
+            public Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset) {
+                return readJournal.eventsByTag(tag, offset);
+            }
+        };
+    }
+
+    /**
+     * @return the offset from which a query delivers all of the events of a tag.
+     */
+    Offset firstOffset();
+
+    /**
+     * @return the events of the tag after the offset, and the events that are stored later.
+     */
+    Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset);
+
+    class Cassandra implements ReadSideJournal {
+        private final CassandraReadJournal readJournal;
+
+        private Cassandra(CassandraReadJournal readJournal) {
+            this.readJournal = readJournal;
+        }
+
+        @Override
+        public Offset firstOffset() {
+            return new TimeBasedUUID(readJournal.firstOffset());
+        }
+
+        @Override
+        public Source<EventEnvelope, NotUsed> eventsByTag(String tag, Offset offset) {
+            return readJournal
+                    .eventsByTag(tag, ((TimeBasedUUID) offset).value())
+                    .map(envelope -> EventEnvelope.apply(new TimeBasedUUID(envelope.offset()),
+                            envelope.persistenceId(), envelope.sequenceNr(), envelope.event()));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package akka.sample.persistence;
+
+import akka.persistence.query.Offset;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A local store of the last event offset that the read side has processed for each tag, together with a checkpoint
+ * of the view that the read side built from the events up to that offset.
+ * <p>
+ * <p>Each tag has its own file. A checkpoint is written to a temporary file first, which is then moved over the
+ * previous file, so a crash leaves either the previous or the new checkpoint behind. The offset and the view are in
+ * the same file, so a read side never resumes from an offset without the view that goes with it.</p>
+ * <p>
+ * <p>A view may be made of several parts, one per lane of the read side. The file holds the offset, a format version,
+ * the number of parts and each part with its length. The first format held a single part without a length, it is
+ * recognised by the format version of {@link AccountBalances}, which is also 1.</p>
+ */
+class ReadSideOffsetStore implements ReadSideStore {
+    private static final String SUFFIX = ".checkpoint";
+    private static final int OFFSET_LENGTH = 16;
+    private static final int SINGLE_VIEW_FORMAT = 1;
+    private static final int FORMAT_VERSION = 2;
+    private final Path directory;
+
+    ReadSideOffsetStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Optional<Checkpoint> load(String tag) {
+        Path file = directory.resolve(tag + SUFFIX);
+
+        try {
+            if (Files.exists(file)) {
+                byte[] bytes = Files.readAllBytes(file);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                Offset offset = ReadSideStore.getOffset(buffer);
+                return Optional.of(new Checkpoint(offset, views(buffer)));
+            }
+            return Optional.empty();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void save(String tag, Checkpoint checkpoint) {
+        Path file = directory.resolve(tag + SUFFIX);
+        Path temporary = directory.resolve(tag + SUFFIX + ".tmp");
+        int length = OFFSET_LENGTH + 1 + 4;
+        for (byte[] view : checkpoint.views()) {
+            length += 4 + view.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        ReadSideStore.putOffset(buffer, checkpoint.offset());
+        buffer.put((byte) FORMAT_VERSION);
+        buffer.putInt(checkpoint.views().size());
+        for (byte[] view : checkpoint.views()) {
+            buffer.putInt(view.length);
+            buffer.put(view);
+        }
+
+        try {
+            Files.createDirectories(directory);
+            Files.write(temporary, buffer.array());
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return false, each checkpoint holds the whole view.
+     */
+    @Override
+    public boolean incremental() {
+        return false;
+    }
+
+    private static List<byte[]> views(ByteBuffer buffer) {
+        byte version = buffer.get(buffer.position());
+
+        if (version == SINGLE_VIEW_FORMAT) {
+            return Collections.singletonList(Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit()));
+        }
+        else if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException(String.format("Unknown checkpoint format %d", version));
+        }
+
+        buffer.get();
+        int count = buffer.getInt();
+        List<byte[]> views = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] view = new byte[buffer.getInt()];
+            buffer.get(view);
+            views.add(view);
+        }
+        return views;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", getClass().getSimpleName(), directory);
+    }
+}
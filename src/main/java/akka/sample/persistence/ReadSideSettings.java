@@ -0,0 +1,153 @@
+package akka.sample.persistence;
+
+import com.typesafe.config.Config;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read side settings, read from the {@code account.read-side} configuration section.
+ */
+class ReadSideSettings {
+    private final int parallelism;
+    private final int eventsInFlight;
+    private final String readJournal;
+    private final String offsetStoreType;
+    private final Path offsetStoreDirectory;
+    private final int offsetCommitEvery;
+    private final FiniteDuration offsetCommitInterval;
+    private final FiniteDuration checkpointTimeout;
+    private final FiniteDuration keepAliveInterval;
+    private final FiniteDuration queryTimeout;
+    private final FiniteDuration windowPane;
+    private final FiniteDuration windowAllowedLateness;
+    private final FiniteDuration windowRetention;
+    private final int windowTopN;
+    private final int windowTopCapacity;
+    private final AccountEventTags eventTags;
+
+    private ReadSideSettings(Config config, AccountEventTags eventTags) {
+        parallelism = config.getInt("parallelism") > 0 ? config.getInt("parallelism") : Runtime.getRuntime().availableProcessors();
+        eventsInFlight = config.getInt("events-in-flight");
+        readJournal = config.getString("read-journal");
+        offsetStoreType = config.getString("offset-store.type");
+        offsetStoreDirectory = Paths.get(config.getString("offset-store.dir"));
+        offsetCommitEvery = config.getInt("offset-store.commit-every");
+        offsetCommitInterval = duration(config, "offset-store.commit-interval");
+        checkpointTimeout = duration(config, "offset-store.checkpoint-timeout");
+        keepAliveInterval = duration(config, "keep-alive-interval");
+        queryTimeout = duration(config, "query-timeout");
+        windowPane = duration(config, "windows.pane");
+        windowAllowedLateness = duration(config, "windows.allowed-lateness");
+        windowRetention = duration(config, "windows.retention");
+        windowTopN = config.getInt("windows.top-n");
+        windowTopCapacity = Math.max(windowTopN, config.getInt("windows.top-n-capacity"));
+        if (windowPane.toMicros() <= 0 || windowRetention.toMicros() < windowPane.toMicros()) {
+            throw new IllegalArgumentException(String.format("windows.retention %s must be at least windows.pane %s",
+                    windowRetention, windowPane));
+        }
+        this.eventTags = eventTags;
+    }
+
+    static ReadSideSettings create(Config config) {
+        return new ReadSideSettings(config.getConfig("account.read-side"), AccountEventTags.create(config));
+    }
+
+    /**
+     * @return the number of lanes of the read side of a tag, which apply events in parallel.
+     */
+    int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the upper limit of events of a tag that have been passed on to the lanes and not yet applied.
+     */
+    int eventsInFlight() {
+        return eventsInFlight;
+    }
+
+    /**
+     * @return the plugin identifier of the read journal of the events by tag queries.
+     */
+    String readJournal() {
+        return readJournal;
+    }
+
+    String offsetStoreType() {
+        return offsetStoreType;
+    }
+
+    Path offsetStoreDirectory() {
+        return offsetStoreDirectory;
+    }
+
+    int offsetCommitEvery() {
+        return offsetCommitEvery;
+    }
+
+    FiniteDuration offsetCommitInterval() {
+        return offsetCommitInterval;
+    }
+
+    FiniteDuration checkpointTimeout() {
+        return checkpointTimeout;
+    }
+
+    FiniteDuration keepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    FiniteDuration queryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * @return the size of the tumbling panes that the event time windows are built from.
+     */
+    FiniteDuration windowPane() {
+        return windowPane;
+    }
+
+    /**
+     * @return how long after the latest event time an event may arrive and still be added to its window.
+     */
+    FiniteDuration windowAllowedLateness() {
+        return windowAllowedLateness;
+    }
+
+    /**
+     * @return how far back from the latest event time the panes are kept, the largest window that can be queried.
+     */
+    FiniteDuration windowRetention() {
+        return windowRetention;
+    }
+
+    int windowTopN() {
+        return windowTopN;
+    }
+
+    /**
+     * @return the number of accounts that are tracked per pane to find the accounts with the largest volumes.
+     */
+    int windowTopCapacity() {
+        return windowTopCapacity;
+    }
+
+    AccountEventTags eventTags() {
+        return eventTags;
+    }
+
+    private static FiniteDuration duration(Config config, String path) {
+        return Duration.create(config.getDuration(path, TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[parallelism %d, %s, offsets %s %s, every %d, %s, windows %s, %s]", getClass().getSimpleName(),
+                parallelism, readJournal, offsetStoreType, offsetStoreDirectory, offsetCommitEvery, offsetCommitInterval, windowPane, eventTags);
+    }
+}
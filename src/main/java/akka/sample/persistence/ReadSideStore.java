@@ -0,0 +1,118 @@
+package akka.sample.persistence;
+
+import akka.actor.ActorSystem;
+import akka.cluster.Cluster;
+import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.persistence.query.TimeBasedUUID;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Where the read side of each tag stores its last event offset together with a checkpoint of its view.
+ * <p>
+ * <p>The {@code account.read-side.offset-store.type} setting selects the store, {@code file} for a
+ * {@link ReadSideOffsetStore}, which writes the whole view to a file per tag, or {@code leveldb} for a
+ * {@link LevelDbReadSideStore}, which writes the changed balances to an embedded LevelDB.</p>
+ * <p>
+ * <p>Both stores are local to the node, in a directory of the node under the configured directory, named by the host
+ * and port of the node, so the nodes that share a working directory do not open the same files. A checkpoint is only
+ * seen by the node that stored it. When a tag moves to another node, its read side resumes from the last checkpoint of
+ * the tag on that node, or from the first offset when there is none, and the events since are delivered again. The
+ * view skips the events of each account that it has already applied, so the balances are the same, only the catch up
+ * takes longer.</p>
+ */
+interface ReadSideStore {
+    static ReadSideStore create(ActorSystem actorSystem, ReadSideSettings settings) {
+        switch (settings.offsetStoreType()) {
+            case "file":
+                return new ReadSideOffsetStore(nodeDirectory(actorSystem, settings.offsetStoreDirectory()));
+            case "leveldb":
+                return LevelDbReadSideStore.get(actorSystem);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown read side offset store type %s", settings.offsetStoreType()));
+        }
+    }
+
+    /**
+     * @return the directory of this node under the base directory.
+     */
+    static Path nodeDirectory(ActorSystem actorSystem, Path base) {
+        String node = Cluster.get(actorSystem).selfAddress().hostPort();
+        return base.resolve(node.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * Writes an offset in 16 bytes. A {@link Sequence} is written as a UUID with the most significant bits 0, which
+     * no time based UUID has, so the offsets of the Cassandra read journal are stored as before.
+     */
+    static void putOffset(ByteBuffer buffer, Offset offset) {
+        if (offset instanceof TimeBasedUUID) {
+            UUID uuid = ((TimeBasedUUID) offset).value();
+            buffer.putLong(uuid.getMostSignificantBits());
+            buffer.putLong(uuid.getLeastSignificantBits());
+        }
+        else if (offset instanceof Sequence) {
+            buffer.putLong(0);
+            buffer.putLong(((Sequence) offset).value());
+        }
+        else {
+            throw new IllegalArgumentException(String.format("Unsupported offset %s", offset));
+        }
+    }
+
+    static Offset getOffset(ByteBuffer buffer) {
+        long mostSignificantBits = buffer.getLong();
+        long leastSignificantBits = buffer.getLong();
+        return mostSignificantBits == 0
+                ? new Sequence(leastSignificantBits)
+                : new TimeBasedUUID(new UUID(mostSignificantBits, leastSignificantBits));
+    }
+
+    /**
+     * @return the last checkpoint of the tag, with the whole view, or empty when the tag has no checkpoint.
+     */
+    Optional<Checkpoint> load(String tag);
+
+    /**
+     * Stores a checkpoint, the offset and the view are stored together or not at all.
+     */
+    void save(String tag, Checkpoint checkpoint);
+
+    /**
+     * @return true when a checkpoint only needs the changes of the view since the previous checkpoint.
+     */
+    boolean incremental();
+
+    /**
+     * An event offset and the serialized parts of the view of all of the events up to and possibly a little past the
+     * offset. For an incremental store the parts hold the accounts that changed since the previous checkpoint.
+     */
+    class Checkpoint {
+        private final Offset offset;
+        private final List<byte[]> views;
+
+        Checkpoint(Offset offset, List<byte[]> views) {
+            this.offset = offset;
+            this.views = Collections.unmodifiableList(views);
+        }
+
+        Offset offset() {
+            return offset;
+        }
+
+        List<byte[]> views() {
+            return views;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d views]", getClass().getSimpleName(), offset, views.size());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package akka.sample.persistence;
+
+import com.typesafe.config.Config;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write side settings, read from the {@code account.write-side} configuration section.
+ */
+class WriteSideSettings {
+    private final boolean groupCommitEnabled;
+    private final int groupCommitMaxBatchSize;
+    private final FiniteDuration groupCommitLinger;
+    private final int batchMaxSize;
+    private final FiniteDuration batchTimeout;
+    private final int commandFlowBatchSize;
+    private final FiniteDuration commandFlowLinger;
+    private final int commandFlowParallelism;
+    private final FiniteDuration commandFlowTimeout;
+    private final boolean balanceCacheEnabled;
+    private final FiniteDuration balanceCacheMaxStaleness;
+    private final int balanceCacheMaxEntries;
+    private final boolean admissionEnabled;
+    private final int admissionMaxQueuedPerAccount;
+    private final int admissionMaxQueuedPerNode;
+    private final FiniteDuration admissionEstimateExpiry;
+    private final int numberOfShards;
+    private final int rebalanceThreshold;
+    private final int maxSimultaneousRebalance;
+    private final FiniteDuration passivationIdleTimeout;
+    private final FiniteDuration passivationTick;
+    private final int passivationMaxActive;
+    private final int passivationEvictionSampleSize;
+    private final int snapshotEveryEvents;
+    private final boolean snapshotOnPassivation;
+    private final int snapshotKeep;
+    private final boolean snapshotDeleteEvents;
+    private final AccountEventTags eventTags;
+
+    private WriteSideSettings(Config config, AccountEventTags eventTags) {
+        groupCommitEnabled = config.getBoolean("group-commit.enabled");
+        groupCommitMaxBatchSize = config.getInt("group-commit.max-batch-size");
+        groupCommitLinger = duration(config, "group-commit.linger");
+        batchMaxSize = config.getInt("batch.max-size");
+        batchTimeout = duration(config, "batch.timeout");
+        commandFlowBatchSize = config.getInt("command-flow.batch-size");
+        commandFlowLinger = duration(config, "command-flow.linger");
+        commandFlowParallelism = config.getInt("command-flow.parallelism");
+        commandFlowTimeout = duration(config, "command-flow.timeout");
+        balanceCacheEnabled = config.getBoolean("balance-cache.enabled");
+        balanceCacheMaxStaleness = duration(config, "balance-cache.max-staleness");
+        balanceCacheMaxEntries = config.getInt("balance-cache.max-entries");
+        admissionEnabled = config.getBoolean("admission.enabled");
+        admissionMaxQueuedPerAccount = config.getInt("admission.max-queued-per-account");
+        admissionMaxQueuedPerNode = config.getInt("admission.max-queued-per-node");
+        admissionEstimateExpiry = duration(config, "admission.estimate-expiry");
+        numberOfShards = config.getInt("sharding.number-of-shards");
+        rebalanceThreshold = config.getInt("sharding.rebalance-threshold");
+        maxSimultaneousRebalance = config.getInt("sharding.max-simultaneous-rebalance");
+        passivationIdleTimeout = duration(config, "passivation.idle-timeout");
+        passivationTick = duration(config, "passivation.tick");
+        passivationMaxActive = config.getInt("passivation.max-active");
+        passivationEvictionSampleSize = config.getInt("passivation.eviction-sample-size");
+        snapshotEveryEvents = config.getInt("snapshot.every-n-events");
+        snapshotOnPassivation = config.getBoolean("snapshot.on-passivation");
+        snapshotKeep = config.getInt("snapshot.keep");
+        snapshotDeleteEvents = config.getBoolean("snapshot.delete-events");
+        this.eventTags = eventTags;
+
+        if (commandFlowBatchSize > batchMaxSize) {
+            throw new IllegalArgumentException(String.format("The command flow batch size %d exceeds the batch limit of %d",
+                    commandFlowBatchSize, batchMaxSize));
+        }
+        if (commandFlowTimeout.lteq(batchTimeout)) {
+            throw new IllegalArgumentException(String.format("The command flow timeout %s does not exceed the batch timeout of %s",
+                    commandFlowTimeout, batchTimeout));
+        }
+    }
+
+    static WriteSideSettings create(Config config) {
+        return new WriteSideSettings(config.getConfig("account.write-side"), AccountEventTags.create(config));
+    }
+
+    boolean groupCommitEnabled() {
+        return groupCommitEnabled;
+    }
+
+    int groupCommitMaxBatchSize() {
+        return groupCommitMaxBatchSize;
+    }
+
+    FiniteDuration groupCommitLinger() {
+        return groupCommitLinger;
+    }
+
+    int batchMaxSize() {
+        return batchMaxSize;
+    }
+
+    FiniteDuration batchTimeout() {
+        return batchTimeout;
+    }
+
+    /**
+     * @return the number of commands of the {@link AccountCommandFlow} that are sent as one batch.
+     */
+    int commandFlowBatchSize() {
+        return commandFlowBatchSize;
+    }
+
+    /**
+     * @return how long the {@link AccountCommandFlow} waits for more commands before it sends a batch that is not full.
+     */
+    FiniteDuration commandFlowLinger() {
+        return commandFlowLinger;
+    }
+
+    /**
+     * @return the number of batches of the {@link AccountCommandFlow} that are in flight at the same time.
+     */
+    int commandFlowParallelism() {
+        return commandFlowParallelism;
+    }
+
+    /**
+     * @return how long the {@link AccountCommandFlow} waits for the reply to a batch, which is longer than the batch
+     * timeout so that the write side replies with the outcome of each command first.
+     */
+    FiniteDuration commandFlowTimeout() {
+        return commandFlowTimeout;
+    }
+
+    boolean balanceCacheEnabled() {
+        return balanceCacheEnabled;
+    }
+
+    FiniteDuration balanceCacheMaxStaleness() {
+        return balanceCacheMaxStaleness;
+    }
+
+    int balanceCacheMaxEntries() {
+        return balanceCacheMaxEntries;
+    }
+
+    boolean admissionEnabled() {
+        return admissionEnabled;
+    }
+
+    /**
+     * @return the upper limit of commands that an account buffers for group commit.
+     */
+    int admissionMaxQueuedPerAccount() {
+        return admissionMaxQueuedPerAccount;
+    }
+
+    /**
+     * @return the upper limit of commands that the accounts of a node have accepted and not yet replied to.
+     */
+    int admissionMaxQueuedPerNode() {
+        return admissionMaxQueuedPerNode;
+    }
+
+    FiniteDuration admissionEstimateExpiry() {
+        return admissionEstimateExpiry;
+    }
+
+    int numberOfShards() {
+        return numberOfShards;
+    }
+
+    int rebalanceThreshold() {
+        return rebalanceThreshold;
+    }
+
+    int maxSimultaneousRebalance() {
+        return maxSimultaneousRebalance;
+    }
+
+    FiniteDuration passivationIdleTimeout() {
+        return passivationIdleTimeout;
+    }
+
+    FiniteDuration passivationTick() {
+        return passivationTick;
+    }
+
+    int passivationMaxActive() {
+        return passivationMaxActive;
+    }
+
+    int passivationEvictionSampleSize() {
+        return passivationEvictionSampleSize;
+    }
+
+    int snapshotEveryEvents() {
+        return snapshotEveryEvents;
+    }
+
+    boolean snapshotOnPassivation() {
+        return snapshotOnPassivation;
+    }
+
+    int snapshotKeep() {
+        return snapshotKeep;
+    }
+
+    boolean snapshotDeleteEvents() {
+        return snapshotDeleteEvents;
+    }
+
+    AccountEventTags eventTags() {
+        return eventTags;
+    }
+
+    private static FiniteDuration duration(Config config, String path) {
+        return Duration.create(config.getDuration(path, TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[group-commit %b, %d, %s, batch %d, balance cache %b, shards %d, idle %s, max active %d, snapshot every %d, on passivation %b, keep %d]",
+                getClass().getSimpleName(), groupCommitEnabled, groupCommitMaxBatchSize, groupCommitLinger, batchMaxSize,
+                balanceCacheEnabled, numberOfShards,
+                passivationIdleTimeout, passivationMaxActive, snapshotEveryEvents, snapshotOnPassivation, snapshotKeep);
+    }
+}
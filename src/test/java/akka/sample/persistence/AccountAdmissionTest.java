@@ -0,0 +1,54 @@
+package akka.sample.persistence;
+
+import akka.actor.ActorSystem;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Test;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AccountAdmissionTest {
+    private final ActorSystem actorSystem = ActorSystem.create("test", ConfigFactory.parseString(
+            "akka.loglevel = OFF\n" +
+                    "akka.stdout-loglevel = OFF\n" +
+                    "akka.actor.provider = local\n" +
+                    "account.metrics.jmx = off")
+            .withFallback(ConfigFactory.load()));
+    private final AccountAdmission admission = AccountAdmission.get(actorSystem);
+
+    @After
+    public void terminate() throws Exception {
+        Await.result(actorSystem.terminate(), Duration.create(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shedsACommandThatWaitsForMoreWritesThanItsDeadlineAllows() {
+        admission.written(TimeUnit.MILLISECONDS.toNanos(1));
+        long deadline = AccountAdmission.deadlineIn(100, TimeUnit.MILLISECONDS);
+
+        assertNull(admission.shed(deadline, 50));
+        assertSame(AccountAdmission.DEADLINE_UNREACHABLE, admission.shed(deadline, 500));
+        assertNull(admission.shed(AccountAdmission.NO_DEADLINE, 500));
+    }
+
+    @Test
+    public void chargesABatchOneWriteWhateverItsSize() {
+        admission.written(TimeUnit.MILLISECONDS.toNanos(1));
+
+        // A batch of any size is written by its accounts in parallel, one write each.
+        assertNull(admission.shedBatch(AccountAdmission.deadlineIn(100, TimeUnit.MILLISECONDS)));
+        assertSame(AccountAdmission.DEADLINE_EXPIRED, admission.shedBatch(EpochMicros.now() - 1));
+    }
+
+    @Test
+    public void shedsABatchThatCannotBeWrittenBeforeItsDeadline() {
+        admission.written(TimeUnit.MILLISECONDS.toNanos(500));
+
+        assertSame(AccountAdmission.DEADLINE_UNREACHABLE, admission.shedBatch(AccountAdmission.deadlineIn(100, TimeUnit.MILLISECONDS)));
+    }
+}
@@ -0,0 +1,92 @@
+package akka.sample.persistence;
+
+import akka.sample.persistence.AccountBalances.Outcome;
+import org.junit.Test;
+
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AccountBalancesTest {
+    private static final Currency USD = CurrencyValue.DEFAULT_CURRENCY;
+
+    private final AccountBalances balances = new AccountBalances();
+
+    @Test
+    public void appliesEventsOnce() {
+        assertEquals(Outcome.APPLIED, balances.deposit("a", 1, 1000, USD));
+        assertEquals(Outcome.APPLIED, balances.withdrawal("a", 2, 250, USD));
+        assertEquals(Outcome.DUPLICATE, balances.deposit("a", 2, 1000, USD));
+        assertEquals(Outcome.DUPLICATE, balances.deposit("a", 1, 1000, USD));
+
+        assertEquals(CurrencyValue.ofUnits(750, USD), balances.balance("a"));
+        assertEquals(2, balances.sequenceNr("a"));
+        assertNull(balances.balance("b"));
+    }
+
+    @Test
+    public void skipsEventsInOtherCurrencies() {
+        Currency yen = Currency.getInstance("JPY");
+
+        assertEquals(Outcome.SKIPPED, balances.deposit("a", 1, 1000, yen));
+        assertEquals(Outcome.APPLIED, balances.deposit("a", 2, 1000, USD));
+        assertEquals(Outcome.SKIPPED, balances.withdrawal("a", 3, 10, yen));
+        assertEquals(Outcome.DUPLICATE, balances.withdrawal("a", 3, 10, yen));
+
+        assertEquals(CurrencyValue.ofUnits(1000, USD), balances.balance("a"));
+        assertEquals(3, balances.sequenceNr("a"));
+        assertEquals(2, balances.skipped());
+    }
+
+    @Test
+    public void skipsEventsThatOverflow() {
+        assertEquals(Outcome.APPLIED, balances.deposit("a", 1, Long.MAX_VALUE, USD));
+        assertEquals(Outcome.SKIPPED, balances.deposit("a", 2, 1, USD));
+        assertEquals(Outcome.SKIPPED, balances.withdrawal("b", 1, Long.MIN_VALUE, USD));
+        assertEquals(Outcome.APPLIED, balances.withdrawal("b", 2, Long.MAX_VALUE, USD));
+        assertEquals(Outcome.SKIPPED, balances.withdrawal("b", 3, 2, USD));
+
+        assertEquals(Long.MAX_VALUE, balances.balance("a").units());
+        assertEquals(-Long.MAX_VALUE, balances.balance("b").units());
+        assertEquals(3, balances.skipped());
+    }
+
+    @Test
+    public void roundTripsThroughBytes() {
+        for (int i = 0; i < 100; i++) {
+            balances.deposit("account-" + i, 1, i, USD);
+        }
+        AccountBalances read = AccountBalances.fromBytes(balances.toBytes());
+
+        assertEquals(100, read.size());
+        assertEquals(CurrencyValue.ofUnits(42, USD), read.balance("account-42"));
+        assertEquals(1, read.sequenceNr("account-42"));
+    }
+
+    @Test
+    public void writesOnlyTheChanges() {
+        balances.deposit("a", 1, 10, USD);
+        balances.deposit("b", 1, 20, USD);
+        balances.changesToBytes();
+        balances.deposit("b", 2, 5, USD);
+
+        AccountBalances changes = AccountBalances.fromBytes(balances.changesToBytes());
+        assertEquals(1, changes.size());
+        assertEquals(CurrencyValue.ofUnits(25, USD), changes.balance("b"));
+        assertEquals(0, AccountBalances.fromBytes(balances.changesToBytes()).size());
+    }
+
+    @Test
+    public void distributesOverTables() {
+        balances.deposit("a", 1, 10, USD);
+        balances.deposit("bb", 3, 20, USD);
+        AccountBalances[] targets = {new AccountBalances(), new AccountBalances()};
+        targets[1].deposit("bb", 5, 99, USD);
+
+        balances.distribute(targets, identifier -> identifier.length() - 1);
+        assertEquals(CurrencyValue.ofUnits(10, USD), targets[0].balance("a"));
+        // The target already has a later state of the account.
+        assertEquals(CurrencyValue.ofUnits(99, USD), targets[1].balance("bb"));
+    }
+}
@@ -0,0 +1,47 @@
+package akka.sample.persistence;
+
+import akka.sample.persistence.AccountCommandFlow.Result;
+import akka.sample.persistence.AccountWriteSide.Command;
+import akka.sample.persistence.AccountWriteSide.CommandBatchResult;
+import akka.sample.persistence.AccountWriteSide.CommandDeposit;
+import akka.sample.persistence.AccountWriteSide.CommandOutcomeUnknown;
+import akka.sample.persistence.AccountWriteSide.EventDeposit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AccountCommandFlowTest {
+    private final AccountIdentifier account = AccountIdentifier.create("account-1");
+    private final CurrencyValue amount = CurrencyValue.create("10.00");
+    private final List<Command> commands = Arrays.asList(new CommandDeposit(account, amount), new CommandDeposit(account, amount));
+
+    @Test
+    public void pairsEachCommandWithItsOutcome() {
+        EventDeposit deposit = new EventDeposit(account, amount);
+        CommandOutcomeUnknown unknown = new CommandOutcomeUnknown("No reply from account-1");
+
+        List<Result> results = AccountCommandFlow.results(commands, new CommandBatchResult(new Object[]{deposit, unknown}));
+
+        assertEquals(2, results.size());
+        assertSame(commands.get(0), results.get(0).command());
+        assertSame(deposit, results.get(0).outcome());
+        assertFalse(results.get(0).rejected());
+        assertFalse(results.get(0).unknown());
+        assertSame(commands.get(1), results.get(1).command());
+        assertTrue(results.get(1).unknown());
+        assertFalse(results.get(1).rejected());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresATimeoutLongerThanTheBatchTimeout() {
+        WriteSideSettings.create(ConfigFactory.parseString("account.write-side.command-flow.timeout = 10s")
+                .withFallback(ConfigFactory.load()));
+    }
+}
@@ -0,0 +1,115 @@
+package akka.sample.persistence;
+
+import akka.sample.persistence.AccountPassivation.Entry;
+import akka.sample.persistence.AccountPassivation.Wheel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AccountPassivationTest {
+    private static final long TICK = 1_000;
+    private static final long IDLE_TIMEOUT = 10 * TICK;
+
+    private final Wheel wheel = new Wheel(IDLE_TIMEOUT, TICK);
+    private final List<Entry> idle = new ArrayList<>();
+    private long now = 0;
+
+    @Test
+    public void hasOneSlotPerTickOfTheIdleTimeout() {
+        assertEquals(11, wheel.size());
+        assertEquals(12, new Wheel(IDLE_TIMEOUT + 1, TICK).size());
+    }
+
+    @Test
+    public void passivatesAnIdleEntryOnceItsTimeoutHasPassed() {
+        Entry entry = register();
+
+        ticks(9);
+        assertTrue(idle.isEmpty());
+        ticks(1);
+        assertEquals(Collections.singletonList(entry), idle);
+    }
+
+    @Test
+    public void movesATouchedEntryToTheSlotOfItsNewIdleTime() {
+        Entry entry = register();
+
+        ticks(5);
+        entry.touch(now);
+        ticks(9);
+        assertTrue(idle.isEmpty());
+        ticks(1);
+        assertEquals(Collections.singletonList(entry), idle);
+    }
+
+    @Test
+    public void checksAnEntryAgainWhenItStaysAlive() {
+        Entry entry = register();
+
+        ticks(10);
+        assertEquals(1, idle.size());
+        ticks(9);
+        assertEquals(1, idle.size());
+        ticks(1);
+        assertEquals(2, idle.size());
+        assertEquals(entry, idle.get(1));
+    }
+
+    @Test
+    public void dropsTheEntriesOfStoppedEntities() {
+        Entry entry = register();
+        entry.stopped();
+
+        ticks(30);
+        assertTrue(idle.isEmpty());
+    }
+
+    @Test
+    public void schedulesAnEntryThatIsAlreadyIdleOnTheNextTick() {
+        Entry entry = new Entry(null);
+        entry.touch(now - 2 * IDLE_TIMEOUT);
+        wheel.schedule(entry, now - 2 * IDLE_TIMEOUT, now);
+
+        ticks(1);
+        assertEquals(Collections.singletonList(entry), idle);
+    }
+
+    @Test
+    public void passivatesEachEntryOnceWhenTheEntitiesStop() {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(register());
+            now += TICK;
+            wheel.tick(now, this::stop);
+        }
+        for (int i = 0; i < 30; i++) {
+            now += TICK;
+            wheel.tick(now, this::stop);
+        }
+        assertEquals(entries, idle);
+    }
+
+    private Entry register() {
+        Entry entry = new Entry(null);
+        entry.touch(now);
+        wheel.schedule(entry, now, now);
+        return entry;
+    }
+
+    private void stop(Entry entry) {
+        idle.add(entry);
+        entry.stopped();
+    }
+
+    private void ticks(int count) {
+        for (int i = 0; i < count; i++) {
+            now += TICK;
+            wheel.tick(now, idle::add);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package akka.sample.persistence;
+
+import akka.sample.persistence.AccountWriteSide.CommandAccountBatch;
+import akka.sample.persistence.AccountWriteSide.CommandBatch;
+import akka.sample.persistence.AccountWriteSide.CommandBatchResult;
+import akka.sample.persistence.AccountWriteSide.CommandDeposit;
+import akka.sample.persistence.AccountWriteSide.CommandGetAccount;
+import akka.sample.persistence.AccountWriteSide.CommandOutcomeUnknown;
+import akka.sample.persistence.AccountWriteSide.CommandRejected;
+import akka.sample.persistence.AccountWriteSide.CommandWithdrawal;
+import akka.sample.persistence.AccountWriteSide.EventDeposit;
+import akka.sample.persistence.AccountWriteSide.EventWithdrawal;
+import akka.sample.persistence.AccountWriteSide.GetAccountNotFound;
+import akka.sample.persistence.AccountWriteSide.GetAccountResponse;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AccountSerializerTest {
+    private final AccountSerializer serializer = new AccountSerializer();
+    private final AccountIdentifier accountIdentifier = AccountIdentifier.create("account-1");
+    private final CurrencyValue amount = CurrencyValue.create("99.95");
+    private final long time = 1_496_000_000_123_456L;
+
+    @Test
+    public void roundTripsEvents() {
+        EventDeposit deposit = roundTrip(new EventDeposit(accountIdentifier, amount, time));
+        assertEquals(accountIdentifier, deposit.accountIdentifier());
+        assertEquals(amount, deposit.amount());
+        assertEquals(time, deposit.time());
+
+        EventWithdrawal withdrawal = roundTrip(new EventWithdrawal(accountIdentifier, amount, time));
+        assertEquals(accountIdentifier, withdrawal.accountIdentifier());
+        assertEquals(amount, withdrawal.amount());
+        assertEquals(time, withdrawal.time());
+    }
+
+    @Test
+    public void roundTripsCommandsWithDeadlines() {
+        CommandDeposit deposit = roundTrip(new CommandDeposit(accountIdentifier, amount, time));
+        assertEquals(amount, deposit.amount());
+        assertEquals(time, deposit.deadline());
+
+        CommandWithdrawal withdrawal = roundTrip(new CommandWithdrawal(accountIdentifier, amount));
+        assertEquals(amount, withdrawal.amount());
+        assertEquals(AccountAdmission.NO_DEADLINE, withdrawal.deadline());
+
+        CommandGetAccount getAccount = roundTrip(new CommandGetAccount(accountIdentifier, time));
+        assertEquals(accountIdentifier, getAccount.accountIdentifier());
+        assertEquals(time, getAccount.deadline());
+    }
+
+    @Test
+    public void roundTripsResponsesAndValues() {
+        Account account = new Account(accountIdentifier, CurrencyValue.create("-12.34"));
+        assertEquals(account.balance(), this.<GetAccountResponse>roundTrip(new GetAccountResponse(account)).account().balance());
+        assertEquals(accountIdentifier, this.<GetAccountNotFound>roundTrip(new GetAccountNotFound(accountIdentifier)).accountIdentifier());
+        assertEquals(account.balance(), this.<Account>roundTrip(account).balance());
+
+        CurrencyValue yen = CurrencyValue.ofUnits(Long.MIN_VALUE, Currency.getInstance("JPY"));
+        assertEquals(yen, roundTrip(yen));
+        assertEquals(accountIdentifier, roundTrip(accountIdentifier));
+    }
+
+    @Test
+    public void roundTripsBatchesAndTheirOutcomes() {
+        CommandDeposit deposit = new CommandDeposit(accountIdentifier, amount);
+        CommandWithdrawal withdrawal = new CommandWithdrawal(AccountIdentifier.create("account-2"), amount, time);
+
+        CommandBatch batch = roundTrip(new CommandBatch(Arrays.asList(deposit, withdrawal), time));
+        assertEquals(time, batch.deadline());
+        assertEquals(2, batch.commands().size());
+        assertEquals(amount, ((CommandDeposit) batch.commands().get(0)).amount());
+        assertEquals(time, batch.commands().get(1).deadline());
+
+        CommandAccountBatch accountBatch = roundTrip(new CommandAccountBatch(accountIdentifier, Arrays.asList(deposit, deposit), time));
+        assertEquals(accountIdentifier, accountBatch.accountIdentifier());
+        assertEquals(time, accountBatch.deadline());
+        assertEquals(2, accountBatch.commands().size());
+
+        CommandBatchResult result = roundTrip(new CommandBatchResult(new Object[]{
+                new EventDeposit(accountIdentifier, amount, time), new CommandRejected("Deadline expired"),
+                new CommandOutcomeUnknown("No reply")}));
+        assertEquals(time, ((EventDeposit) result.outcomes().get(0)).time());
+        assertEquals("Deadline expired", ((CommandRejected) result.outcomes().get(1)).reason());
+        assertTrue(result.outcomes().get(2) instanceof CommandOutcomeUnknown);
+        assertEquals(1, result.rejected());
+        assertEquals(1, result.unknown());
+    }
+
+    @Test
+    public void readsFromByteBuffers() {
+        EventDeposit event = new EventDeposit(accountIdentifier, amount, time);
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        serializer.toBinary(event, buffer);
+        buffer.flip();
+
+        EventDeposit read = (EventDeposit) serializer.fromBinary(buffer, serializer.manifest(event));
+        assertEquals(time, read.time());
+        assertEquals(amount, read.amount());
+    }
+
+    @Test
+    public void readsVersion1Events() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeUTF(accountIdentifier.identifier());
+        // The amount as the scale and unscaled value of a BigDecimal, 99.950 with a long unscaled value.
+        writeVarLong(3, out);
+        writeVarLong(0, out);
+        writeVarLong(99_950, out);
+        // The time as the epoch second and nanosecond.
+        writeVarLong(1_496_000_000L, out);
+        writeVarLong(123_456_789L, out);
+
+        EventDeposit event = (EventDeposit) serializer.fromBinary(bytes.toByteArray(), "ED");
+        assertEquals(amount, event.amount());
+        // The wall time of the system time zone that was written as if it were UTC.
+        assertEquals(EpochMicros.of(LocalDateTime.ofEpochSecond(1_496_000_000L, 123_456_789, ZoneOffset.UTC)), event.time());
+    }
+
+    @Test
+    public void readsVersion2Events() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(2);
+        out.writeUTF(accountIdentifier.identifier());
+        writeVarLong(9995, out);
+        out.writeUTF("USD");
+        writeVarLong(1_496_000_000L, out);
+        writeVarLong(123_456_789L, out);
+
+        EventWithdrawal event = (EventWithdrawal) serializer.fromBinary(bytes.toByteArray(), "EW");
+        assertEquals(amount, event.amount());
+        // The wall time of the system time zone that was written as if it were UTC.
+        assertEquals(EpochMicros.of(LocalDateTime.ofEpochSecond(1_496_000_000L, 123_456_789, ZoneOffset.UTC)), event.time());
+    }
+
+    @Test
+    public void readsVersion3CommandsWithoutDeadline() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(3);
+        out.writeUTF(accountIdentifier.identifier());
+        writeVarLong(9995, out);
+        out.writeUTF("USD");
+
+        CommandDeposit command = (CommandDeposit) serializer.fromBinary(bytes.toByteArray(), "CD");
+        assertEquals(amount, command.amount());
+        assertEquals(AccountAdmission.NO_DEADLINE, command.deadline());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersions() {
+        serializer.fromBinary(new byte[]{99}, "ED");
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T roundTrip(T message) {
+        return (T) serializer.fromBinary(serializer.toBinary(message), serializer.manifest(message));
+    }
+
+    private static void writeVarLong(long value, DataOutputStream out) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.writeByte((int) zigZag);
+    }
+}
@@ -0,0 +1,57 @@
+package akka.sample.persistence;
+
+import org.junit.Test;
+
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AccountTest {
+    private final Account account = new Account(AccountIdentifier.create("account-1"), CurrencyValue.zero());
+
+    @Test
+    public void appliesDepositsAndWithdrawals() {
+        assertTrue(account.deposit(CurrencyValue.create("10.00")));
+        assertTrue(account.withdrawal(CurrencyValue.create("2.50")));
+        assertEquals(CurrencyValue.create("7.50"), account.balance());
+    }
+
+    @Test
+    public void rejectsOtherCurrencies() {
+        CurrencyValue yen = CurrencyValue.ofUnits(100, Currency.getInstance("JPY"));
+
+        assertNotNull(account.rejectDeposit(yen, account.balanceUnits()));
+        assertNotNull(account.rejectWithdrawal(yen, account.balanceUnits()));
+        assertFalse(account.deposit(yen));
+        assertFalse(account.withdrawal(yen));
+        assertEquals(0, account.balanceUnits());
+    }
+
+    @Test
+    public void rejectsOverflows() {
+        CurrencyValue max = CurrencyValue.ofUnits(Long.MAX_VALUE, CurrencyValue.DEFAULT_CURRENCY);
+        CurrencyValue one = CurrencyValue.ofUnits(1, CurrencyValue.DEFAULT_CURRENCY);
+
+        assertNull(account.rejectDeposit(max, 0));
+        assertNotNull(account.rejectDeposit(one, Long.MAX_VALUE));
+        assertNotNull(account.rejectWithdrawal(max, -2));
+        assertNull(account.rejectWithdrawal(max, -1));
+        assertNotNull(account.rejectWithdrawal(CurrencyValue.ofUnits(Long.MIN_VALUE, CurrencyValue.DEFAULT_CURRENCY), 0));
+
+        assertTrue(account.deposit(max));
+        assertFalse(account.deposit(one));
+        assertEquals(Long.MAX_VALUE, account.balanceUnits());
+    }
+
+    @Test
+    public void checksAgainstTheAcceptedBalance() {
+        CurrencyValue half = CurrencyValue.ofUnits(Long.MAX_VALUE / 2 + 1, CurrencyValue.DEFAULT_CURRENCY);
+
+        assertNull(account.rejectDeposit(half, account.balanceUnits()));
+        assertNotNull(account.rejectDeposit(half, account.balanceUnits() + half.units()));
+    }
+}
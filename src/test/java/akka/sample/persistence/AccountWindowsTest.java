@@ -0,0 +1,168 @@
+package akka.sample.persistence;
+
+import akka.sample.persistence.AccountWriteSide.EventDeposit;
+import akka.sample.persistence.AccountWriteSide.EventWithdrawal;
+import akka.sample.persistence.AccountsView.GetWindows;
+import akka.sample.persistence.AccountsView.Window;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import scala.concurrent.duration.Duration;
+
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AccountWindowsTest {
+    private static final Currency USD = CurrencyValue.DEFAULT_CURRENCY;
+
+    // Panes of a minute, 10 seconds of lateness, 5 panes retained and the 2 largest volumes of 3 counters per pane.
+    private final ReadSideSettings settings = ReadSideSettings.create(ConfigFactory.parseString(
+            "account.read-side.windows {\n" +
+                    "  pane = 1m\n" +
+                    "  allowed-lateness = 10s\n" +
+                    "  retention = 5m\n" +
+                    "  top-n = 2\n" +
+                    "  top-n-capacity = 3\n" +
+                    "}")
+            .withFallback(ConfigFactory.load()));
+    private final AccountWindows windows = new AccountWindows(settings, true);
+
+    @Test
+    public void addsEventsToThePaneOfTheirEventTime() {
+        assertTrue(windows.add(deposit("a", 1000, seconds(10))));
+        assertTrue(windows.add(deposit("b", 3000, seconds(20))));
+        assertTrue(windows.add(withdrawal("a", 500, seconds(30))));
+        assertFalse(windows.add(new EventDeposit(AccountIdentifier.create("c"),
+                CurrencyValue.ofUnits(100, Currency.getInstance("EUR")), seconds(40))));
+
+        List<Window> latest = windows.windows(query(1, 1, 1));
+        assertEquals(1, latest.size());
+        Window window = latest.get(0);
+        assertEquals(0, window.start());
+        assertEquals(seconds(60), window.end());
+        assertFalse(window.closed());
+        assertFalse(window.partial());
+        assertEquals(new AccountsView.Totals(2, 4000, 1000, 3000).toString(), window.deposits().toString());
+        assertEquals(new AccountsView.Totals(1, 500, 500, 500).toString(), window.withdrawals().toString());
+        assertEquals(1, windows.otherCurrency());
+    }
+
+    @Test
+    public void addsEventsWithinTheAllowedLatenessAndCountsTheLaterOnes() {
+        windows.add(deposit("a", 100, seconds(65)));
+        assertEquals(seconds(55), windows.watermark());
+        assertTrue(windows.add(deposit("a", 200, seconds(58))));
+
+        windows.add(deposit("a", 100, seconds(75)));
+        assertFalse(windows.add(deposit("a", 400, seconds(59))));
+        assertEquals(1, windows.late());
+
+        List<Window> latest = windows.windows(query(1, 1, 2));
+        assertTrue(latest.get(0).closed());
+        assertEquals(200, latest.get(0).deposits().sum().units());
+        assertFalse(latest.get(1).closed());
+        assertEquals(200, latest.get(1).deposits().sum().units());
+    }
+
+    @Test
+    public void mergesThePanesThatASlidingWindowCovers() {
+        windows.add(deposit("a", 100, seconds(0)));
+        windows.add(deposit("a", 200, seconds(60)));
+        windows.add(deposit("b", 300, seconds(120)));
+
+        List<Window> latest = windows.windows(query(2, 1, 3));
+        assertEquals(3, latest.size());
+        assertEquals(seconds(-60), latest.get(0).start());
+        assertEquals(100, latest.get(0).deposits().sum().units());
+        assertEquals(300, latest.get(1).deposits().sum().units());
+        Window last = latest.get(2);
+        assertEquals(seconds(60), last.start());
+        assertEquals(seconds(180), last.end());
+        assertEquals(new AccountsView.Totals(2, 500, 200, 300).toString(), last.deposits().toString());
+        assertEquals("b", last.topAccounts().get(0).accountIdentifier().identifier());
+        assertEquals("a", last.topAccounts().get(1).accountIdentifier().identifier());
+    }
+
+    @Test
+    public void evictsThePanesThatLeaveTheRetention() {
+        windows.add(deposit("a", 100, seconds(0)));
+        windows.add(deposit("a", 200, minutes(7)));
+
+        List<Window> latest = windows.windows(query(1, 1, 100));
+        // The latest pane and the 5 panes retained before it.
+        assertEquals(6, latest.size());
+        assertEquals(minutes(2), latest.get(0).start());
+        long sum = latest.stream().mapToLong(window -> window.deposits().sum().units()).sum();
+        assertEquals(200, sum);
+
+        // The slot of the first pane was reused, so an event that is not late lands in an empty pane.
+        windows.add(deposit("a", 400, minutes(14)));
+        assertEquals(400, windows.windows(query(5, 5, 100)).stream()
+                .mapToLong(window -> window.deposits().sum().units()).sum());
+    }
+
+    @Test
+    public void keepsTheLargestVolumesOfAPaneInBoundedCounters() {
+        windows.add(deposit("a", 1000, seconds(1)));
+        windows.add(deposit("b", 500, seconds(2)));
+        windows.add(deposit("c", 100, seconds(3)));
+        // d takes the counter of c, with its volume.
+        windows.add(deposit("d", 200, seconds(4)));
+        windows.add(withdrawal("d", 300, seconds(5)));
+
+        Window window = windows.windows(query(1, 1, 1)).get(0);
+        assertEquals(2, window.topAccounts().size());
+        assertEquals("a", window.topAccounts().get(0).accountIdentifier().identifier());
+        assertEquals("d", window.topAccounts().get(1).accountIdentifier().identifier());
+        // Overestimated by the volume of c, the smallest of the pane when d arrived.
+        assertEquals(600, window.topAccounts().get(1).volume().units());
+    }
+
+    @Test
+    public void marksTheWindowsOfTheFirstEventPartialAfterARestart() {
+        AccountWindows restarted = new AccountWindows(settings, false);
+        restarted.add(deposit("a", 100, minutes(3) + seconds(30)));
+        restarted.add(deposit("a", 100, minutes(4) + seconds(30)));
+
+        List<Window> latest = restarted.windows(query(1, 1, 2));
+        assertTrue(latest.get(0).partial());
+        assertFalse(latest.get(1).partial());
+        assertTrue(restarted.windows(query(2, 1, 1)).get(0).partial());
+    }
+
+    @Test
+    public void rejectsQueriesThatThePanesCannotAnswer() {
+        assertNull(AccountWindows.invalid(query(5, 1, 3), settings));
+        assertNotNull(AccountWindows.invalid(new GetWindows(Duration.create(90, TimeUnit.SECONDS),
+                Duration.create(1, TimeUnit.MINUTES), 1), settings));
+        assertNotNull(AccountWindows.invalid(query(1, 0, 1), settings));
+        assertNotNull(AccountWindows.invalid(query(6, 1, 1), settings));
+        assertNotNull(AccountWindows.invalid(query(1, 1, 0), settings));
+    }
+
+    private static GetWindows query(int sizeMinutes, int slideMinutes, int count) {
+        return new GetWindows(Duration.create(sizeMinutes, TimeUnit.MINUTES), Duration.create(slideMinutes, TimeUnit.MINUTES), count);
+    }
+
+    private static EventDeposit deposit(String account, long units, long time) {
+        return new EventDeposit(AccountIdentifier.create(account), CurrencyValue.ofUnits(units, USD), time);
+    }
+
+    private static EventWithdrawal withdrawal(String account, long units, long time) {
+        return new EventWithdrawal(AccountIdentifier.create(account), CurrencyValue.ofUnits(units, USD), time);
+    }
+
+    private static long seconds(long seconds) {
+        return TimeUnit.SECONDS.toMicros(seconds);
+    }
+
+    private static long minutes(long minutes) {
+        return TimeUnit.MINUTES.toMicros(minutes);
+    }
+}
@@ -0,0 +1,112 @@
+package akka.sample.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.sample.persistence.AccountWriteSide.Command;
+import akka.sample.persistence.AccountWriteSide.CommandAccountBatch;
+import akka.sample.persistence.AccountWriteSide.CommandBatchResult;
+import akka.sample.persistence.AccountWriteSide.CommandDeposit;
+import akka.sample.persistence.AccountWriteSide.CommandGetAccount;
+import akka.sample.persistence.AccountWriteSide.GetAccountResponse;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static akka.pattern.PatternsCS.ask;
+import static akka.pattern.PatternsCS.gracefulStop;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AccountWriteSideTest {
+    private static final long TIMEOUT = 10_000;
+
+    private final AccountIdentifier accountIdentifier = AccountIdentifier.create("account-1");
+    private Path snapshots;
+    private ActorSystem actorSystem;
+
+    @Before
+    public void start() throws IOException {
+        snapshots = Files.createTempDirectory("account-snapshots");
+        actorSystem = ActorSystem.create("test", ConfigFactory.parseString(String.format(
+                "akka.loglevel = OFF\n" +
+                        "akka.stdout-loglevel = OFF\n" +
+                        "akka.actor.provider = local\n" +
+                        "akka.persistence.journal.plugin = \"akka.persistence.journal.inmem\"\n" +
+                        "akka.persistence.snapshot-store.plugin = \"akka.persistence.snapshot-store.local\"\n" +
+                        "akka.persistence.snapshot-store.local.dir = \"%s\"", snapshots.toString().replace("\\", "/")))
+                .withFallback(ConfigFactory.load()));
+    }
+
+    @After
+    public void terminate() throws Exception {
+        Await.result(actorSystem.terminate(), Duration.create(10, TimeUnit.SECONDS));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshots)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(snapshots);
+    }
+
+    @Test
+    public void recoversTheSnapshotThatWasDueWithinABatch() throws Exception {
+        recoversTheSnapshotThatWasDueWithinABatch(false);
+    }
+
+    @Test
+    public void recoversTheSnapshotThatWasDueWithinAGroupCommit() throws Exception {
+        recoversTheSnapshotThatWasDueWithinABatch(true);
+    }
+
+    /**
+     * A snapshot is due at the second of the three events of the batch, which are written together.
+     */
+    private void recoversTheSnapshotThatWasDueWithinABatch(boolean groupCommit) throws Exception {
+        WriteSideSettings settings = WriteSideSettings.create(ConfigFactory.parseString(String.format(
+                "account.write-side.snapshot.every-n-events = 2\n" +
+                        "account.write-side.snapshot.on-passivation = off\n" +
+                        "account.write-side.group-commit.enabled = %b", groupCommit))
+                .withFallback(ConfigFactory.load()));
+        ActorRef account = actorSystem.actorOf(AccountWriteSide.props(accountIdentifier, settings));
+
+        List<Command> commands = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            commands.add(new CommandDeposit(accountIdentifier, CurrencyValue.ofUnits(i * 100, CurrencyValue.DEFAULT_CURRENCY)));
+        }
+        CommandBatchResult result = (CommandBatchResult) ask(account,
+                new CommandAccountBatch(accountIdentifier, commands, AccountAdmission.NO_DEADLINE), TIMEOUT)
+                .toCompletableFuture().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(0, result.rejected());
+        awaitSnapshot();
+        gracefulStop(account, Duration.create(TIMEOUT, TimeUnit.MILLISECONDS)).toCompletableFuture().get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        ActorRef recovered = actorSystem.actorOf(AccountWriteSide.props(accountIdentifier, settings));
+        GetAccountResponse response = (GetAccountResponse) ask(recovered, new CommandGetAccount(accountIdentifier), TIMEOUT)
+                .toCompletableFuture().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(600, response.account().balanceUnits());
+    }
+
+    private void awaitSnapshot() throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            // The local snapshot store writes a temporary file and then renames it.
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshots, "snapshot-*[0-9]")) {
+                if (files.iterator().hasNext()) {
+                    return;
+                }
+            }
+            Thread.sleep(50);
+        }
+        fail("No snapshot was saved");
+    }
+}
@@ -0,0 +1,76 @@
+package akka.sample.persistence;
+
+import akka.sample.persistence.AccountWriteSide.CommandBatchResult;
+import akka.sample.persistence.AccountWriteSide.CommandOutcomeUnknown;
+import akka.sample.persistence.AccountWriteSide.CommandRejected;
+import akka.sample.persistence.AccountWriteSide.EventDeposit;
+import akka.sample.persistence.AccountWriteSide.EventWithdrawal;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AccountsWriteSideTest {
+    private final AccountIdentifier account1 = AccountIdentifier.create("account-1");
+    private final AccountIdentifier account2 = AccountIdentifier.create("account-2");
+    private final CurrencyValue amount = CurrencyValue.create("10.00");
+
+    @Test
+    public void putsTheOutcomesBackInTheOrderOfTheBatch() {
+        EventDeposit deposit1 = new EventDeposit(account1, amount);
+        EventWithdrawal withdrawal1 = new EventWithdrawal(account1, amount);
+        EventDeposit deposit2 = new EventDeposit(account2, amount);
+
+        CommandBatchResult result = AccountsWriteSide.combine(3,
+                Arrays.asList(Arrays.asList(0, 2), Collections.singletonList(1)),
+                Arrays.asList(reply(new CommandBatchResult(new Object[]{deposit1, withdrawal1})),
+                        reply(new CommandBatchResult(new Object[]{deposit2}))));
+
+        assertEquals(Arrays.asList(deposit1, deposit2, withdrawal1), result.outcomes());
+        assertEquals(0, result.rejected());
+    }
+
+    @Test
+    public void givesEachCommandOfAnAccountItsRejectionOrUnknownOutcome() {
+        CommandRejected rejected = new CommandRejected("Account queue full");
+        CommandOutcomeUnknown unknown = new CommandOutcomeUnknown("No reply from account-2");
+
+        CommandBatchResult result = AccountsWriteSide.combine(4,
+                Arrays.asList(Arrays.asList(0, 3), Arrays.asList(1, 2)),
+                Arrays.asList(reply(rejected), reply(unknown)));
+
+        assertSame(rejected, result.outcomes().get(0));
+        assertSame(unknown, result.outcomes().get(1));
+        assertSame(unknown, result.outcomes().get(2));
+        assertSame(rejected, result.outcomes().get(3));
+        assertEquals(2, result.rejected());
+        assertEquals(2, result.unknown());
+    }
+
+    @Test
+    public void rejectsTheCommandsOfAnUnexpectedReply() {
+        CommandBatchResult result = AccountsWriteSide.combine(1,
+                Collections.singletonList(Collections.singletonList(0)),
+                Collections.singletonList(reply("unexpected")));
+
+        assertTrue(result.outcomes().get(0) instanceof CommandRejected);
+    }
+
+    @Test
+    public void rejectsTheCommandsOfAResultOfAnotherSize() {
+        CommandBatchResult result = AccountsWriteSide.combine(2,
+                Collections.singletonList(Arrays.asList(0, 1)),
+                Collections.singletonList(reply(new CommandBatchResult(new Object[]{new EventDeposit(account1, amount)}))));
+
+        assertEquals(2, result.rejected());
+    }
+
+    private static CompletableFuture<Object> reply(Object reply) {
+        return CompletableFuture.completedFuture(reply);
+    }
+}
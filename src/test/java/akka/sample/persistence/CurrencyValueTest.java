@@ -0,0 +1,69 @@
+package akka.sample.persistence;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CurrencyValueTest {
+    private static final Currency YEN = Currency.getInstance("JPY");
+
+    @Test
+    public void parsesAmountsIntoMinorUnits() {
+        assertEquals(9995, CurrencyValue.create("99.95").units());
+        assertEquals(9990, CurrencyValue.create("99.9").units());
+        assertEquals(-1, CurrencyValue.create("-0.01").units());
+        assertEquals(10000, CurrencyValue.create(100).units());
+        assertEquals(1234, CurrencyValue.create(new BigDecimal("1234"), YEN).units());
+        assertEquals(new BigDecimal("99.95"), CurrencyValue.create("99.95").amount());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void rejectsMoreFractionDigitsThanTheCurrency() {
+        CurrencyValue.create("99.955");
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void rejectsAmountsThatDoNotFit() {
+        CurrencyValue.create("100000000000000000.00");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsMalformedAmounts() {
+        CurrencyValue.create("12,50");
+    }
+
+    @Test
+    public void roundsDoublesHalfEven() {
+        assertEquals(9995, CurrencyValue.create(99.95).units());
+        assertEquals(2, CurrencyValue.create(0.025).units());
+        assertEquals(4, CurrencyValue.create(0.035).units());
+        assertEquals(-2, CurrencyValue.create(-0.025).units());
+    }
+
+    @Test
+    public void comparesUnitsAndCurrency() {
+        assertEquals(CurrencyValue.create("1.50"), CurrencyValue.ofUnits(150, CurrencyValue.DEFAULT_CURRENCY));
+        assertTrue(!CurrencyValue.ofUnits(150, YEN).equals(CurrencyValue.ofUnits(150, CurrencyValue.DEFAULT_CURRENCY)));
+        assertTrue(CurrencyValue.zero().isZero());
+    }
+
+    @Test
+    public void readsJavaSerializedValues() throws Exception {
+        CurrencyValue value = CurrencyValue.ofUnits(-12345, YEN);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertEquals(value, in.readObject());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package akka.sample.persistence;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EpochMicrosTest {
+    private static final ZoneId BERLIN = ZoneId.of("Europe/Berlin");
+
+    @Test
+    public void readsLegacyTimesAsWallTimesOfTheZone() {
+        LocalDateTime summer = LocalDateTime.of(2017, 6, 1, 12, 30, 15, 123_456_789);
+
+        assertEquals(micros(Instant.parse("2017-06-01T10:30:15.123456Z")), EpochMicros.of(summer, BERLIN));
+        assertEquals(micros(Instant.parse("2017-06-01T12:30:15.123456Z")), EpochMicros.of(summer, ZoneOffset.UTC));
+        assertEquals(summer.truncatedTo(ChronoUnit.MICROS), EpochMicros.toLocalDateTime(EpochMicros.of(summer, BERLIN), BERLIN));
+    }
+
+    @Test
+    public void takesTheEarlierTimeWhenTheClocksGoBack() {
+        LocalDateTime repeated = LocalDateTime.of(2017, 10, 29, 2, 30);
+
+        assertEquals(micros(Instant.parse("2017-10-29T00:30:00Z")), EpochMicros.of(repeated, BERLIN));
+    }
+
+    @Test
+    public void followsTheWallClock() {
+        long before = micros(Instant.now());
+        long now = EpochMicros.now();
+        long after = micros(Instant.now());
+
+        // The anchor may be up to a second old, so allow for the drift of the nano time within it.
+        assertTrue(now >= before - 1_000);
+        assertTrue(now <= after + 1_000);
+    }
+
+    @Test
+    public void neverGoesBackwards() {
+        long previous = EpochMicros.now();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1_500);
+        // Across at least one new anchor.
+        while (System.nanoTime() < deadline) {
+            long now = EpochMicros.now();
+            assertTrue(now >= previous);
+            previous = now;
+        }
+    }
+
+    @Test
+    public void printsTimesAsInstants() {
+        assertEquals("2017-06-01T10:30:15.123456Z", EpochMicros.toString(micros(Instant.parse("2017-06-01T10:30:15.123456Z"))));
+        assertEquals("1969-12-31T23:59:59.999999Z", EpochMicros.toString(-1));
+    }
+
+    private static long micros(Instant instant) {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, instant);
+    }
+}
@@ -0,0 +1,218 @@
+package akka.sample.persistence;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.persistence.AtomicWrite;
+import akka.persistence.PersistentRepr;
+import akka.persistence.PersistentRepr$;
+import akka.persistence.journal.Tagged;
+import akka.persistence.query.EventEnvelope;
+import akka.sample.persistence.AccountWriteSide.EventDeposit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import scala.collection.JavaConverters;
+import scala.concurrent.Await;
+import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedJournalStoreTest {
+    private static final String PERSISTENCE_ID = "account-1";
+    private static final Path SEGMENT = Paths.get("segment-0000000000.log");
+
+    private final List<ActorSystem> actorSystems = new ArrayList<>();
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("mapped-journal");
+    }
+
+    @After
+    public void terminate() throws Exception {
+        for (ActorSystem actorSystem : actorSystems) {
+            Await.result(actorSystem.terminate(), Duration.create(10, TimeUnit.SECONDS));
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void replaysAndQueriesTheWrittenEvents() throws Exception {
+        MappedJournalStore store = open(false);
+
+        assertEquals(Arrays.asList(Optional.empty(), Optional.empty()),
+                write(store, atomicWrite(1, 1, "tag-1"), atomicWrite(2, 3, "tag-1")));
+        assertEquals(3, store.highestSequenceNr(PERSISTENCE_ID));
+        assertEquals(Arrays.asList(1L, 2L, 3L), replay(store));
+
+        List<EventEnvelope> tagged = store.eventsByTag("tag-1", 1, 10);
+        assertEquals(2, tagged.size());
+        assertEquals(2, tagged.get(0).sequenceNr());
+        assertEquals(amount(2), ((EventDeposit) tagged.get(0).event()).amount());
+    }
+
+    @Test
+    public void recoversUpToTheLastCompleteAtomicWrite() throws Exception {
+        MappedJournalStore store = open(false);
+        write(store, atomicWrite(1, 1), atomicWrite(2, 3));
+
+        // Tear the last record, as if the process died while the second atomic write was copied.
+        int second = recordOffset(1);
+        int third = recordOffset(2);
+        try (FileChannel channel = FileChannel.open(directory.resolve(SEGMENT), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[recordOffset(3) - third - 8]), third + 8);
+        }
+
+        MappedJournalStore recovered = open(false);
+        assertEquals(1, recovered.highestSequenceNr(PERSISTENCE_ID));
+        assertEquals(Collections.singletonList(1L), replay(recovered));
+
+        // The next write goes over the torn atomic write.
+        write(recovered, atomicWrite(2, 2));
+        assertEquals(second, recordOffset(1));
+        assertEquals(Arrays.asList(1L, 2L), replay(open(false)));
+    }
+
+    @Test
+    public void rejectsAtomicWritesWithTooManyTagsOrTooLongStrings() throws Exception {
+        MappedJournalStore store = open(false);
+        String[] tags = IntStream.range(0, 256).mapToObj(i -> "tag-" + i).toArray(String[]::new);
+        char[] longIdentifier = new char[70_000];
+        Arrays.fill(longIdentifier, 'a');
+
+        List<Optional<Exception>> results = write(store,
+                atomicWrite(1, 1, tags),
+                new AtomicWrite(JavaConverters.asScalaBuffer(Collections.singletonList(
+                        event(new String(longIdentifier), 1, amount(1)))).toList()),
+                atomicWrite(1, 1, Arrays.copyOf(tags, 255)));
+
+        assertTrue(results.get(0).get() instanceof IllegalArgumentException);
+        assertTrue(results.get(1).get() instanceof IllegalArgumentException);
+        assertFalse(results.get(2).isPresent());
+        assertEquals(Collections.singletonList(1L), replay(store));
+        assertEquals(1, store.eventsByTag("tag-254", 0, 10).size());
+        assertEquals(Collections.singletonList(1L), replay(open(false)));
+    }
+
+    @Test
+    public void showsTheEventsOfAForcedWriteAndFailsWritesWhenTheFlusherStops() throws Exception {
+        ActorSystem actorSystem = actorSystem();
+        MappedJournalStore store = new MappedJournalStore(actorSystem, config(true));
+
+        write(store, atomicWrite(1, 2, "tag-1"));
+        assertEquals(2, store.highestSequenceNr(PERSISTENCE_ID));
+        assertEquals(2, store.eventsByTag("tag-1", 0, 10).size());
+
+        Await.result(actorSystem.terminate(), Duration.create(10, TimeUnit.SECONDS));
+        for (int attempt = 0; ; attempt++) {
+            try {
+                write(store, atomicWrite(3, 3));
+            }
+            catch (IllegalStateException e) {
+                break;
+            }
+            if (attempt == 100) {
+                fail("The writes did not fail after the flusher stopped");
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(2, store.highestSequenceNr(PERSISTENCE_ID));
+    }
+
+    private MappedJournalStore open(boolean fsync) {
+        return new MappedJournalStore(actorSystem(), config(fsync));
+    }
+
+    private ActorSystem actorSystem() {
+        ActorSystem actorSystem = ActorSystem.create("test", ConfigFactory.parseString(
+                "akka.loglevel = OFF\n" +
+                        "akka.stdout-loglevel = OFF\n" +
+                        "akka.actor.serializers.account = \"akka.sample.persistence.AccountSerializer\"\n" +
+                        "akka.actor.serialization-bindings {\n" +
+                        "  \"akka.sample.persistence.AccountWriteSide$EventDeposit\" = account\n" +
+                        "}")
+                .withFallback(ConfigFactory.defaultReference()));
+        actorSystems.add(actorSystem);
+        return actorSystem;
+    }
+
+    private Config config(boolean fsync) {
+        return ConfigFactory.parseString(String.format("dir = \"%s\"\nsegment-size = 64KiB\nfsync = %s",
+                directory.toString().replace("\\", "/"), fsync));
+    }
+
+    /**
+     * @return the offset of a record in the first segment, found by following the lengths of the records before it.
+     */
+    private int recordOffset(int record) throws IOException {
+        ByteBuffer segment = ByteBuffer.wrap(Files.readAllBytes(directory.resolve(SEGMENT)));
+        int offset = 0;
+        for (int i = 0; i < record; i++) {
+            offset += 8 + segment.getInt(offset);
+        }
+        return offset;
+    }
+
+    private static AtomicWrite atomicWrite(long fromSequenceNr, long toSequenceNr, String... tags) {
+        Set<String> eventTags = new HashSet<>(Arrays.asList(tags));
+        List<PersistentRepr> events = new ArrayList<>();
+        for (long sequenceNr = fromSequenceNr; sequenceNr <= toSequenceNr; sequenceNr++) {
+            EventDeposit event = new EventDeposit(AccountIdentifier.create(PERSISTENCE_ID), amount(sequenceNr), sequenceNr);
+            events.add(event(PERSISTENCE_ID, sequenceNr, eventTags.isEmpty() ? event : new Tagged(event, eventTags)));
+        }
+        return new AtomicWrite(JavaConverters.asScalaBuffer(events).toList());
+    }
+
+    private static PersistentRepr event(String persistenceId, long sequenceNr, Object payload) {
+        return PersistentRepr$.MODULE$.apply(payload, sequenceNr, persistenceId, "", false, ActorRef.noSender(), "writer");
+    }
+
+    private static CurrencyValue amount(long sequenceNr) {
+        return CurrencyValue.ofUnits(sequenceNr * 100, CurrencyValue.DEFAULT_CURRENCY);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Optional<Exception>> write(MappedJournalStore store, AtomicWrite... atomicWrites) throws Exception {
+        Future<Iterable<Optional<Exception>>> written = store.write(Arrays.asList(atomicWrites));
+        List<Optional<Exception>> results = new ArrayList<>();
+        Await.result(written, Duration.create(10, TimeUnit.SECONDS)).forEach(results::add);
+        return results;
+    }
+
+    private static List<Long> replay(MappedJournalStore store) {
+        List<PersistentRepr> events = new ArrayList<>();
+        store.replay(PERSISTENCE_ID, 1, Long.MAX_VALUE, Long.MAX_VALUE, events::add);
+        return events.stream().map(PersistentRepr::sequenceNr).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,68 @@
+package akka.sample.persistence;
+
+import akka.persistence.query.Offset;
+import akka.persistence.query.Sequence;
+import akka.persistence.query.TimeBasedUUID;
+import akka.sample.persistence.ReadSideStore.Checkpoint;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReadSideOffsetStoreTest {
+    // A time based UUID, version 1, as the Cassandra read journal uses.
+    private static final UUID TIME_BASED = UUID.fromString("e0d0c3a0-4f5a-11e7-9598-0800200c9a66");
+
+    @Test
+    public void writesTimeBasedAndSequenceOffsetsInSixteenBytes() {
+        for (Offset offset : Arrays.asList(new TimeBasedUUID(TIME_BASED), new Sequence(0), new Sequence(Long.MAX_VALUE))) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            ReadSideStore.putOffset(buffer, offset);
+            buffer.flip();
+            assertEquals(offset, ReadSideStore.getOffset(buffer));
+        }
+    }
+
+    @Test
+    public void readsTheTimeBasedOffsetsOfEarlierCheckpoints() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(TIME_BASED.getMostSignificantBits()).putLong(TIME_BASED.getLeastSignificantBits()).flip();
+        assertEquals(new TimeBasedUUID(TIME_BASED), ReadSideStore.getOffset(buffer));
+    }
+
+    @Test
+    public void storesTheLastCheckpointOfEachTag() throws IOException {
+        Path directory = Files.createTempDirectory("read-side-offsets");
+        ReadSideOffsetStore store = new ReadSideOffsetStore(directory);
+        byte[] lane0 = {1, 2, 3};
+        byte[] lane1 = {4};
+
+        assertFalse(store.load("tag-1").isPresent());
+        store.save("tag-1", new Checkpoint(new Sequence(7), Arrays.asList(lane0, lane1)));
+        store.save("tag-1", new Checkpoint(new Sequence(9), Arrays.asList(lane1, lane0)));
+        store.save("tag-2", new Checkpoint(new TimeBasedUUID(TIME_BASED), Arrays.asList(lane0)));
+
+        Checkpoint checkpoint = store.load("tag-1").get();
+        assertEquals(new Sequence(9), checkpoint.offset());
+        assertEquals(2, checkpoint.views().size());
+        assertArrayEquals(lane1, checkpoint.views().get(0));
+        assertArrayEquals(lane0, checkpoint.views().get(1));
+        assertEquals(new TimeBasedUUID(TIME_BASED), store.load("tag-2").get().offset());
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}